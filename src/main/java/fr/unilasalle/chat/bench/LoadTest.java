@@ -0,0 +1,267 @@
+package fr.unilasalle.chat.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator used to compare the server connection modes.
+ *
+ * Optionally parks a number of idle (never authenticated) connections first,
+ * then opens N sessions (register + login as load0..loadN-1 in 'general'),
+ * reports how many could be held at once, and has load0 send timestamped
+ * messages to measure the delivery latency seen by every other session.
+ *
+ * Usage: java fr.unilasalle.chat.bench.LoadTest <host> <port> <sessions> [messages] [idle]
+ */
+public class LoadTest {
+    private static final String PING = "PING ";
+
+    private final String host;
+    private final int port;
+    private final List<Session> sessions = new ArrayList<>();
+    private final List<Socket> idleSockets = new ArrayList<>();
+
+    public LoadTest(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Syntax: java LoadTest <host> <port> <sessions> [messages] [idle]");
+            return;
+        }
+        LoadTest test = new LoadTest(args[0], Integer.parseInt(args[1]));
+        int count = Integer.parseInt(args[2]);
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int idle = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        test.openIdle(idle);
+        test.connect(count);
+        Thread.sleep(2000); // Let the login broadcasts settle
+        test.measureBroadcast(messages);
+        test.close();
+    }
+
+    /**
+     * Opens connections that only wait for AUTH_REQUIRED and then stay silent,
+     * still draining whatever the server broadcasts like a real client would.
+     */
+    void openIdle(int count) {
+        if (count == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            try {
+                Socket socket = new Socket(host, port);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                String line;
+                while ((line = reader.readLine()) != null && !line.equals("AUTH_REQUIRED")) {
+                    // Skip the connected users line
+                }
+                if (line == null) {
+                    socket.close();
+                    break;
+                }
+                idleSockets.add(socket);
+                Thread.ofVirtual().start(() -> {
+                    try {
+                        while (reader.readLine() != null) {
+                            // Discard
+                        }
+                    } catch (IOException ignored) {
+                    }
+                });
+            } catch (IOException e) {
+                System.out.println("Idle connection " + i + " failed: " + e.getMessage());
+                break;
+            }
+        }
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("Idle connections held: " + idleSockets.size() + "/" + count + " in " + ms + " ms");
+    }
+
+    /**
+     * Opens and logs in the sessions, one virtual thread each.
+     */
+    void connect(int count) throws InterruptedException {
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(count);
+        long start = System.nanoTime();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < count; i++) {
+                String name = "load" + i;
+                executor.execute(() -> {
+                    try {
+                        Session s = new Session(name);
+                        s.login();
+                        synchronized (sessions) {
+                            sessions.add(s);
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        }
+
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("Sessions logged in: " + sessions.size() + "/" + count
+                + " (" + failures.get() + " failed) in " + ms + " ms");
+    }
+
+    /**
+     * Sends messages from the first session and reports the fan-out latency.
+     */
+    void measureBroadcast(int messages) throws InterruptedException {
+        Session sender = null;
+        for (Session s : sessions) {
+            if (s.name.equals("load0")) {
+                sender = s;
+            }
+        }
+        if (sender == null || sessions.size() < 2) {
+            System.out.println("Not enough sessions to measure broadcast latency");
+            return;
+        }
+
+        int receivers = sessions.size() - 1;
+        CountDownLatch received = new CountDownLatch(receivers * messages);
+        for (Session s : sessions) {
+            if (s != sender) {
+                s.expect(messages, received);
+            }
+        }
+
+        for (int i = 0; i < messages; i++) {
+            sender.send(PING + System.nanoTime());
+            Thread.sleep(10);
+        }
+        if (!received.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Timed out, " + received.getCount() + " deliveries missing");
+        }
+
+        long[] all = new long[receivers * messages];
+        int n = 0;
+        for (Session s : sessions) {
+            if (s != sender) {
+                for (int i = 0; i < s.latencyCount; i++) {
+                    all[n++] = s.latencies[i];
+                }
+            }
+        }
+        Arrays.sort(all, 0, n);
+        if (n == 0) {
+            return;
+        }
+        System.out.printf("Broadcast latency over %d deliveries: p50=%.2f ms p99=%.2f ms max=%.2f ms%n",
+                n, all[n / 2] / 1e6, all[(int) (n * 0.99)] / 1e6, all[n - 1] / 1e6);
+    }
+
+    void close() {
+        for (Session s : sessions) {
+            s.close();
+        }
+        for (Socket socket : idleSockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private class Session {
+        final String name;
+        final Socket socket;
+        final BufferedReader reader;
+        final PrintWriter writer;
+        volatile long[] latencies = new long[0];
+        volatile int latencyCount;
+        volatile CountDownLatch received;
+
+        Session(String name) throws IOException {
+            this.name = name;
+            this.socket = new Socket(host, port);
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.writer = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        void login() throws IOException {
+            waitFor("AUTH_REQUIRED");
+            writer.println("/register " + name + " load");
+            readLine(); // REGISTRATION_SUCCESS or _FAIL if it already exists
+            writer.println("/login " + name + " load");
+            String reply = waitFor("LOGIN_");
+            if (!reply.startsWith("LOGIN_SUCCESS")) {
+                throw new IOException(reply);
+            }
+            Thread.ofVirtual().start(this::readLoop);
+        }
+
+        void expect(int messages, CountDownLatch latch) {
+            latencies = new long[messages];
+            latencyCount = 0;
+            received = latch;
+        }
+
+        void send(String line) {
+            writer.println(line);
+        }
+
+        private void readLoop() {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int idx = line.indexOf("]: " + PING);
+                    if (idx > 0 && received != null && line.startsWith("CHANMSG ")) {
+                        long sent = Long.parseLong(line.substring(idx + 3 + PING.length()).trim());
+                        if (latencyCount < latencies.length) {
+                            latencies[latencyCount++] = System.nanoTime() - sent;
+                        }
+                        received.countDown();
+                    }
+                }
+            } catch (IOException | NumberFormatException ignored) {
+            }
+        }
+
+        private String waitFor(String prefix) throws IOException {
+            String line;
+            while (!(line = readLine()).startsWith(prefix)) {
+                // Skip broadcasts received meanwhile
+            }
+            return line;
+        }
+
+        private String readLine() throws IOException {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Connection closed by server");
+            }
+            return line;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package fr.unilasalle.chat.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reconnect storm against a running server: every worker logs in as its
+ * own user (storm0..stormN-1), waits for the end of the login, drops the
+ * connection and starts again, as clients do after a server restart or a
+ * network blip. Runs once with the line-by-line login and once with
+ * /bundle, and reports logins per second and login latency for each.
+ *
+ * Usage: java fr.unilasalle.chat.bench.LoginBenchmark <host> <port> [workers] [seconds]
+ */
+public class LoginBenchmark {
+    private static final String PASSWORD = "storm";
+
+    private final String host;
+    private final int port;
+
+    public LoginBenchmark(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Syntax: java LoginBenchmark <host> <port> [workers] [seconds]");
+            return;
+        }
+        LoginBenchmark bench = new LoginBenchmark(args[0], Integer.parseInt(args[1]));
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        bench.prepare(workers);
+        bench.storm(workers, seconds, false);
+        bench.storm(workers, seconds, true);
+    }
+
+    /**
+     * Registers the users and fills the history of 'general', so every
+     * login has a full history page to send.
+     */
+    void prepare(int workers) throws IOException {
+        for (int i = 0; i < workers; i++) {
+            try (Socket socket = new Socket(host, port)) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+                waitFor(reader, "AUTH_REQUIRED");
+                writer.println("/register storm" + i + " " + PASSWORD);
+                waitFor(reader, "REGISTRATION_"); // _FAIL if it already exists
+                if (i == 0) {
+                    writer.println("/login storm0 " + PASSWORD);
+                    waitFor(reader, "CHANNELLIST");
+                    for (int m = 0; m < 50; m++) {
+                        writer.println("history filler " + m);
+                    }
+                    // Back to us once the last one is stored
+                    while (!waitFor(reader, "CHANMSG ").endsWith("history filler 49")) {
+                        // Earlier fillers
+                    }
+                }
+            }
+        }
+    }
+
+    void storm(int workers, int seconds, boolean bundled) throws InterruptedException {
+        AtomicInteger logins = new AtomicInteger();
+        AtomicInteger busy = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        long[][] latencies = new long[workers][];
+        int[] counts = new int[workers];
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long start = System.nanoTime();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int w = 0; w < workers; w++) {
+                int worker = w;
+                executor.execute(() -> {
+                    long[] mine = new long[1024];
+                    int n = 0;
+                    while (System.nanoTime() < deadline) {
+                        long t0 = System.nanoTime();
+                        try {
+                            String reply = login("storm" + worker, bundled);
+                            if (reply.startsWith("LOGIN_FAIL_ALREADY_CONNECTED")) {
+                                // The server has not seen our last disconnect yet
+                                busy.incrementAndGet();
+                                continue;
+                            }
+                            logins.incrementAndGet();
+                            if (n == mine.length) {
+                                mine = Arrays.copyOf(mine, n * 2);
+                            }
+                            mine[n++] = System.nanoTime() - t0;
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    latencies[worker] = mine;
+                    counts[worker] = n;
+                });
+            }
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        int total = 0;
+        for (int c : counts) {
+            total += c;
+        }
+        long[] all = new long[total];
+        int n = 0;
+        for (int w = 0; w < workers; w++) {
+            System.arraycopy(latencies[w], 0, all, n, counts[w]);
+            n += counts[w];
+        }
+        Arrays.sort(all);
+        System.out.printf("%-7s %d workers: %.0f logins/s (%d logins, %d already connected, %d failed)",
+                bundled ? "bundle" : "lines", workers, logins.get() / elapsed, logins.get(), busy.get(),
+                failures.get());
+        if (n > 0) {
+            System.out.printf(" p50=%.2f ms p99=%.2f ms max=%.2f ms", all[n / 2] / 1e6,
+                    all[(int) (n * 0.99)] / 1e6, all[n - 1] / 1e6);
+        }
+        System.out.println();
+    }
+
+    /**
+     * One connection: logs in, reads up to the end of the login and drops
+     * the connection without /quit. Returns the reply to /login.
+     */
+    private String login(String name, boolean bundled) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            waitFor(reader, "AUTH_REQUIRED");
+            if (bundled) {
+                writer.println("/bundle");
+            }
+            writer.println("/login " + name + " " + PASSWORD);
+            String reply = waitFor(reader, "LOGIN_");
+            if (reply.startsWith("LOGIN_FAIL")) {
+                if (reply.equals("LOGIN_FAIL_INVALID")) {
+                    throw new IOException(reply);
+                }
+                return reply;
+            }
+            if (!bundled) {
+                // The channel list ends what a login needs, pending requests aside
+                waitFor(reader, "CHANNELLIST");
+            }
+            return reply;
+        }
+    }
+
+    private static String waitFor(BufferedReader reader, String prefix) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        throw new IOException("Connection closed by server");
+    }
+}
@@ -0,0 +1,122 @@
+package fr.unilasalle.chat.bench;
+
+import fr.unilasalle.chat.server.DatabaseService;
+import fr.unilasalle.chat.server.MessageWriter;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages persisted per second, on a throw-away database file.
+ *
+ * "unpooled" reproduces the historical saveMessage (one DriverManager
+ * connection and one statement compile per message, default rollback journal);
+ * "pooled" commits each message in its own transaction on the pool's writer
+ * connection (a MessageWriter limited to batches of one); "batched" goes
+ * through a default MessageWriter. Both wait for each commit, like the
+ * ack_after_commit durability mode.
+ *
+ * Usage: java fr.unilasalle.chat.bench.PersistenceBenchmark [messages] [threads]
+ */
+public class PersistenceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        Class.forName("org.sqlite.JDBC");
+
+        File unpooledFile = File.createTempFile("bench-unpooled", ".db");
+        File pooledFile = File.createTempFile("bench-pooled", ".db");
+        File batchedFile = File.createTempFile("bench-batched", ".db");
+        try {
+            String unpooledUrl = "jdbc:sqlite:" + unpooledFile.getAbsolutePath();
+            createTable(unpooledUrl);
+            report("unpooled", messages, threads, i -> saveUnpooled(unpooledUrl, i));
+
+            DatabaseService db = new DatabaseService("jdbc:sqlite:" + pooledFile.getAbsolutePath());
+            MessageWriter single = new MessageWriter(db, 1, 0);
+            single.start();
+            report("pooled", messages, threads, i -> single.saveMessage("general", "bench", "message " + i).join());
+            single.close();
+            db.close();
+
+            DatabaseService batchedDb = new DatabaseService("jdbc:sqlite:" + batchedFile.getAbsolutePath());
+            MessageWriter writer = new MessageWriter(batchedDb);
+            writer.start();
+            report("batched", messages, threads, i -> writer.saveMessage("general", "bench", "message " + i).join());
+            writer.close();
+            batchedDb.close();
+        } finally {
+            deleteWithSidecars(unpooledFile);
+            deleteWithSidecars(pooledFile);
+            deleteWithSidecars(batchedFile);
+        }
+    }
+
+    interface Save {
+        void save(int i) throws Exception;
+    }
+
+    private static void report(String label, int messages, int threads, Save save) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(messages);
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            for (int i = 0; i < messages; i++) {
+                int n = i;
+                executor.execute(() -> {
+                    try {
+                        save.save(n);
+                    } catch (Exception e) {
+                        System.out.println(label + ": " + e.getMessage());
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        }
+        double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.printf("%-9s %d messages, %d threads: %.0f msg/s%n", label, messages, threads, messages / seconds);
+    }
+
+    private static void createTable(String url) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url)) {
+            conn.createStatement().execute("CREATE TABLE IF NOT EXISTS messages (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT, channel TEXT, username TEXT, content TEXT, " +
+                    "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP)");
+        }
+    }
+
+    private static void saveUnpooled(String url, int i) throws SQLException {
+        String sql = "INSERT INTO messages(channel, username, content) VALUES(?, ?, ?)";
+        // The rollback journal only allows one writer: retry like a busy client would
+        for (int attempt = 0; ; attempt++) {
+            try (Connection conn = DriverManager.getConnection(url);
+                    PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, "general");
+                pstmt.setString(2, "bench");
+                pstmt.setString(3, "message " + i);
+                pstmt.executeUpdate();
+                return;
+            } catch (SQLException e) {
+                if (attempt >= 50 || !e.getMessage().contains("BUSY")) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static void deleteWithSidecars(File db) {
+        db.delete();
+        new File(db.getPath() + "-wal").delete();
+        new File(db.getPath() + "-shm").delete();
+        new File(db.getPath() + "-journal").delete();
+    }
+}
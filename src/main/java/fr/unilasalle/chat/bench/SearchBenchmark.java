@@ -0,0 +1,105 @@
+package fr.unilasalle.chat.bench;
+
+import fr.unilasalle.chat.server.DatabaseService;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * /search latency on a throw-away database filled with random messages:
+ * the FTS5 index used by DatabaseService.searchMessages against the
+ * historical "content LIKE '%query%'" scan.
+ *
+ * Usage: java fr.unilasalle.chat.bench.SearchBenchmark [messages]
+ */
+public class SearchBenchmark {
+    private static final String[] WORDS = ("bonjour salut merci demain projet réunion serveur client message "
+            + "fichier photo musique film soirée match équipe cours examen note devoir café train retard "
+            + "weekend vacances anniversaire cadeau question réponse problème solution idée").split(" ");
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        File file = File.createTempFile("bench-search", ".db");
+        String url = "jdbc:sqlite:" + file.getAbsolutePath();
+        try {
+            DatabaseService db = new DatabaseService(url);
+            long start = System.nanoTime();
+            fill(url, messages);
+            System.out.printf("filled %d messages in %d ms%n", messages,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            for (String query : new String[] { "anniversaire", "cadeau anniversaire", "anniv*", "xylophone", "zeppelin" }) {
+                int found = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < 10; i++) {
+                    found = db.searchMessages(query, "user1", 0, 50).size();
+                }
+                long indexed = (System.nanoTime() - start) / 10;
+
+                start = System.nanoTime();
+                int scanned = like(url, query.replace("*", ""));
+                long like = System.nanoTime() - start;
+                System.out.printf("%-14s fts5 %6.2f ms (%d results)   like %8.2f ms (%d rows)%n", query,
+                        indexed / 1e6, found, like / 1e6, scanned);
+            }
+            db.close();
+        } finally {
+            file.delete();
+            new File(file.getPath() + "-wal").delete();
+            new File(file.getPath() + "-shm").delete();
+        }
+    }
+
+    private static void fill(String url, int messages) throws Exception {
+        Random random = new Random(42);
+        try (Connection conn = DriverManager.getConnection(url)) {
+            conn.setAutoCommit(false);
+            // One message in ten is private
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "INSERT INTO messages(channel, username, content) VALUES(?, ?, ?)");
+                    PreparedStatement pstmtPrivate = conn.prepareStatement(
+                            "INSERT INTO private_messages(sender, receiver, content) VALUES(?, ?, ?)")) {
+                for (int i = 0; i < messages; i++) {
+                    StringBuilder content = new StringBuilder();
+                    for (int w = 0; w < 8; w++) {
+                        content.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                    }
+                    if (i % 5000 == 1) {
+                        content.append("xylophone");
+                    }
+                    PreparedStatement insert = i % 10 == 0 ? pstmtPrivate : pstmt;
+                    insert.setString(1, i % 10 == 0 ? "user" + random.nextInt(500) : "channel" + random.nextInt(20));
+                    insert.setString(2, "user" + random.nextInt(500));
+                    insert.setString(3, content.toString());
+                    insert.executeUpdate();
+                    if (i % 100_000 == 99_999) {
+                        conn.commit();
+                    }
+                }
+            }
+            conn.commit();
+        }
+    }
+
+    private static int like(String url, String query) throws Exception {
+        try (Connection conn = DriverManager.getConnection(url);
+                PreparedStatement pstmt = conn.prepareStatement("SELECT channel FROM messages WHERE content LIKE ? "
+                        + "UNION ALL SELECT sender FROM private_messages WHERE (sender = 'user1' OR receiver = 'user1') "
+                        + "AND content LIKE ?")) {
+            pstmt.setString(1, "%" + query + "%");
+            pstmt.setString(2, "%" + query + "%");
+            int rows = 0;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    rows++;
+                }
+            }
+            return rows;
+        }
+    }
+}
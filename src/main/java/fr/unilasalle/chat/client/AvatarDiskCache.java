@@ -0,0 +1,134 @@
+package fr.unilasalle.chat.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Avatars kept on disk between runs. Images are stored once per version
+ * (the avatar file name on the server, shared by every user of the default
+ * avatar) and an index maps each user to the version we have. The least
+ * recently used images are deleted once the directory goes over its size
+ * limit.
+ *
+ * Reads and writes touch the disk, call them off the EDT.
+ */
+public class AvatarDiskCache {
+    private static final String INDEX = "index.properties";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Properties index = new Properties();
+
+    public AvatarDiskCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(directory);
+            Path file = directory.resolve(INDEX);
+            if (Files.exists(file)) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    index.load(in);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Avatar cache unavailable: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Version we have on disk for {@code user}, null if none. Only looks at
+     * the index, the image may have been deleted since.
+     */
+    public synchronized String getVersion(String user) {
+        return index.getProperty(user);
+    }
+
+    /**
+     * Image we have for {@code user}, null if none.
+     */
+    public byte[] read(String user) {
+        String version = getVersion(user);
+        if (version == null) {
+            return null;
+        }
+        Path file = imagePath(version);
+        try {
+            byte[] data = Files.readAllBytes(file);
+            // Recently used, evicted last
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return data;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores the image of {@code version} as the avatar of {@code user}.
+     */
+    public synchronized void put(String user, String version, byte[] data) {
+        try {
+            Path file = imagePath(version);
+            Path temp = Files.createTempFile(directory, "avatar", ".tmp");
+            Files.write(temp, data);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            index.setProperty(user, version);
+            evict();
+            saveIndex();
+        } catch (IOException e) {
+            System.out.println("Could not cache avatar of " + user + ": " + e.getMessage());
+        }
+    }
+
+    private void evict() throws IOException {
+        List<Path> images = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.img")) {
+            for (Path file : files) {
+                images.add(file);
+                total += Files.size(file);
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        images.sort(Comparator.comparingLong(file -> {
+            try {
+                return Files.getLastModifiedTime(file).toMillis();
+            } catch (IOException e) {
+                return 0L;
+            }
+        }));
+        for (Path file : images) {
+            if (total <= maxBytes) {
+                break;
+            }
+            total -= Files.size(file);
+            Files.deleteIfExists(file);
+        }
+        // Forget the users whose image is gone
+        index.values().removeIf(version -> !Files.exists(imagePath((String) version)));
+    }
+
+    private void saveIndex() throws IOException {
+        Path temp = Files.createTempFile(directory, "index", ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            index.store(out, "user=avatar version");
+        }
+        Files.move(temp, directory.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path imagePath(String version) {
+        // Versions are server file names, keep them to a safe character set
+        return directory.resolve(version.replaceAll("[^A-Za-z0-9._-]", "_") + ".img");
+    }
+}
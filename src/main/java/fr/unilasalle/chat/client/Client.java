@@ -1,18 +1,40 @@
 package fr.unilasalle.chat.client;
 
+import fr.unilasalle.chat.protocol.FrameReader;
+import fr.unilasalle.chat.protocol.Opcode;
+import fr.unilasalle.chat.protocol.Packet;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Client {
+    private static final int RECONNECT_ATTEMPTS = 5;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
     private String hostname;
     private int port;
     private String userName;
     private MessageListener listener;
     private Socket socket;
     private ReadThread readThread;
-    private PrintWriter writer;
+    private OutputStream out;
+    private FrameReader reader;
+    private boolean preferBinary;
+    private volatile boolean binary;
+    private boolean resumable;
+    // Sequence number of the last message seen in each channel
+    private final Map<String, Long> lastSeq = new ConcurrentHashMap<>();
+    private volatile String resumeToken;
+    private volatile String channel = "general";
+    private volatile boolean resuming;
 
     public Client(String hostname, int port, MessageListener listener) {
         this.hostname = hostname;
@@ -22,17 +44,18 @@ public class Client {
 
     public void execute() {
         try {
-            socket = new Socket(hostname, port);
+            List<String> received = connect();
             if (listener != null)
                 listener.onMessageReceived("Connected to the chat server");
+            sendSessionOptions();
+            for (String message : received) {
+                receive(message);
+            }
 
             // Handle reading in a separate thread that notifies the listener
             readThread = new ReadThread(socket, this);
             readThread.start();
 
-            // Output stream for sending messages
-            writer = new PrintWriter(socket.getOutputStream(), true);
-
         } catch (UnknownHostException ex) {
             if (listener != null)
                 listener.onMessageReceived("Server not found: " + ex.getMessage());
@@ -42,12 +65,263 @@ public class Client {
         }
     }
 
+    /**
+     * Opens the connection, in binary if preferred. Returns the lines
+     * received meanwhile (AUTH_REQUIRED...), for after the first command.
+     */
+    private List<String> connect() throws IOException {
+        socket = new Socket(hostname, port);
+        // Output stream for sending messages
+        out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+        reader = new FrameReader(socket.getInputStream(), Integer.MAX_VALUE - Packet.HEADER_BYTES);
+        binary = false;
+        return preferBinary ? negotiateBinary() : List.of();
+    }
+
+    /**
+     * Before logging in: the login as one LOGIN_BUNDLE, and sequence
+     * numbers if resumable.
+     */
+    private void sendSessionOptions() {
+        sendMessage("/bundle");
+        if (resumable) {
+            sendMessage("/seq");
+        }
+    }
+
+    /**
+     * Asks the server for sequence numbers on the next execute(), so that
+     * a dropped connection is resumed (see reconnect()) instead of ending
+     * the session.
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * After the connection dropped, connects again and resumes the session
+     * from the last message seen in the current channel; the listener only
+     * gets the missed messages. If the server refuses, the listener gets
+     * AUTH_REQUIRED as for a new connection. False when there is nothing
+     * to resume or the server stays unreachable.
+     */
+    boolean reconnect() {
+        String token = resumeToken;
+        if (token == null) {
+            return false;
+        }
+        resumeToken = null; // Single use
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+                resuming = true;
+                List<String> received = connect();
+                sendMessage("/resume " + token + " " + channel + " " + lastSeq.getOrDefault(channel, 0L));
+                for (String message : received) {
+                    receive(message);
+                }
+                readThread = new ReadThread(socket, this);
+                readThread.start();
+                return true;
+            } catch (IOException e) {
+                resuming = false;
+                System.out.println("Reconnect failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A line from the server. Sequence numbers and resume tokens are kept
+     * here, the rest goes to the listener as if they had never been there.
+     */
+    void receive(String line) {
+        if (line.startsWith("CHANSEQ ")) {
+            String[] parts = line.split(" ", 4);
+            if (parts.length == 4) {
+                recordSeq(parts[1], parts[2]);
+                deliver("CHANMSG " + parts[1] + " " + parts[3]);
+                return;
+            }
+        } else if (line.startsWith("HISTORY_ITEM ")) {
+            String[] parts = line.split(" ", 4);
+            if (parts.length == 4) {
+                recordSeq(parts[1], parts[2]);
+            }
+        } else if (line.startsWith("RESUME_TOKEN ")) {
+            resumeToken = line.substring("RESUME_TOKEN ".length());
+            return;
+        } else if (line.startsWith("LOGIN_BUNDLE ")) {
+            try {
+                receiveBundle(Base64.getDecoder().decode(line.substring("LOGIN_BUNDLE ".length())));
+                return;
+            } catch (IllegalArgumentException e) {
+                // Not a bundle, let the listener show it
+            }
+        } else if (line.startsWith("RESUME_END ")) {
+            // "RESUME_END <channel> <last seq> <more>": a long replay comes in parts
+            String[] parts = line.split(" ");
+            if (parts.length == 4 && parts[3].equals("true")) {
+                sendMessage("/missed " + parts[1] + " " + parts[2]);
+            }
+            return;
+        } else if (line.equals("SEQ_ON") || line.equals("BUNDLE_ON")) {
+            return;
+        } else if (line.equals("AUTH_REQUIRED") && resuming) {
+            return; // /resume is on its way
+        } else if (line.startsWith("RESUME_OK ")) {
+            resuming = false;
+        } else if (line.equals("RESUME_FAIL")) {
+            // Log in again, with /bundle and /seq first
+            resuming = false;
+            sendSessionOptions();
+            deliver("AUTH_REQUIRED");
+            return;
+        }
+        deliver(line);
+    }
+
+    void receive(Packet packet) {
+        Opcode opcode = packet.opcode();
+        if (opcode == Opcode.LINE) {
+            receive(packet.text(0));
+            return;
+        }
+        if (opcode == Opcode.LOGIN_BUNDLE && packet.size() == 1) {
+            receiveBundle(packet.bytes(0));
+            return;
+        }
+        if (opcode == Opcode.CHANSEQ && packet.size() == 3) {
+            recordSeq(packet.text(0), packet.text(1));
+            packet = new Packet(Opcode.CHANMSG, packet.text(0), packet.text(2));
+        } else if (opcode == Opcode.HISTORY_ITEM && packet.size() == 3) {
+            recordSeq(packet.text(0), packet.text(1));
+        }
+        if (listener != null) {
+            listener.onPacketReceived(packet);
+        }
+    }
+
+    /**
+     * The lines of a LOGIN_BUNDLE, handled as if they had come one by one.
+     */
+    private void receiveBundle(byte[] bundle) {
+        for (String line : new String(bundle, StandardCharsets.UTF_8).split("\n")) {
+            if (binary) {
+                receive(Packet.fromLine(line));
+            } else {
+                receive(line);
+            }
+        }
+    }
+
+    private void deliver(String line) {
+        if (listener != null) {
+            listener.onMessageReceived(line);
+        }
+    }
+
+    private void recordSeq(String channel, String seq) {
+        try {
+            lastSeq.merge(channel, Long.parseLong(seq), Math::max);
+        } catch (NumberFormatException e) {
+            // Not sequenced
+        }
+    }
+
+    /**
+     * Asks for the binary protocol on the next execute(). Servers that don't
+     * know it are still spoken to in text.
+     */
+    public void setPreferBinary(boolean preferBinary) {
+        this.preferBinary = preferBinary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Sends the request and waits for the answer, as the protocol requires.
+     * Lines received meanwhile (AUTH_REQUIRED...) are returned to be
+     * delivered afterwards, so nothing the listener sends in reply can
+     * cross the switch.
+     */
+    private List<String> negotiateBinary() throws IOException {
+        List<String> received = new ArrayList<>();
+        writeLine(Packet.REQUEST);
+        out.flush();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.equals(Packet.ACCEPTED)) {
+                binary = true;
+                break;
+            }
+            if (line.equals("UNKNOWN_AUTH_COMMAND")) {
+                break; // Server without binary protocol
+            }
+            received.add(line);
+        }
+        return received;
+    }
+
     public void sendMessage(String message) {
-        if (writer != null) {
-            writer.println(message);
+        if (message.startsWith("/join ")) {
+            // Resumed in the channel we were in
+            channel = message.substring("/join ".length()).trim();
+        }
+        if (binary) {
+            send(Packet.fromLine(message));
+        } else {
+            send(message);
+        }
+    }
+
+    /**
+     * Sends a packet, as its text line if the binary protocol is not in use.
+     */
+    public void send(Packet packet) {
+        if (binary) {
+            write(packet.encode());
+        } else {
+            send(packet.toLine());
+        }
+    }
+
+    private synchronized void send(String line) {
+        try {
+            writeLine(line);
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Error sending to server: " + e.getMessage());
+        }
+    }
+
+    private synchronized void write(byte[] packet) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write(packet);
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Error sending to server: " + e.getMessage());
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        if (out != null) {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
         }
     }
 
+    FrameReader getReader() {
+        return reader;
+    }
+
     public void setUserName(String userName) {
         this.userName = userName;
     }
@@ -1,5 +1,15 @@
 package fr.unilasalle.chat.client;
 
+import fr.unilasalle.chat.protocol.Packet;
+
 public interface MessageListener {
     void onMessageReceived(String message);
+
+    /**
+     * Called instead of onMessageReceived() once the binary protocol is in
+     * use. By default the packet is handled as its text line.
+     */
+    default void onPacketReceived(Packet packet) {
+        onMessageReceived(packet.toLine());
+    }
 }
@@ -1,42 +1,42 @@
 package fr.unilasalle.chat.client;
 
-import java.io.BufferedReader;
+import fr.unilasalle.chat.protocol.FrameReader;
+import fr.unilasalle.chat.protocol.Packet;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.Socket;
 
 public class ReadThread extends Thread {
-    private BufferedReader reader;
+    private FrameReader reader;
     private Socket socket;
     private Client client;
 
     public ReadThread(Socket socket, Client client) {
         this.socket = socket;
         this.client = client;
-
-        try {
-            InputStream input = socket.getInputStream();
-            reader = new BufferedReader(new InputStreamReader(input));
-        } catch (IOException ex) {
-            System.out.println("Error getting input stream: " + ex.getMessage());
-            ex.printStackTrace();
-        }
+        // Shared with the client, which may have read the negotiation already
+        this.reader = client.getReader();
     }
 
     public void run() {
         while (true) {
             try {
+                if (client.isBinary()) {
+                    Packet packet = reader.readPacket();
+                    if (packet == null) {
+                        connectionLost("Server connection was closed");
+                        break;
+                    }
+                    client.receive(packet);
+                    continue;
+                }
+
                 String response = reader.readLine();
                 if (response == null) {
-                    if (client.getListener() != null)
-                        client.getListener().onMessageReceived("Server connection was closed");
+                    connectionLost("Server connection was closed");
                     break;
                 }
 
-                if (client.getListener() != null) {
-                    client.getListener().onMessageReceived(response);
-                }
+                client.receive(response);
 
                 // Reprint the prompt (visual polish) check handled in WriteThread
                 // Prompt handling is tricky with GUI vs Console.
@@ -48,10 +48,19 @@ public class ReadThread extends Thread {
                 if (socket.isClosed()) {
                     break;
                 }
-                if (client.getListener() != null)
-                    client.getListener().onMessageReceived("Error reading from server: " + ex.getMessage());
+                connectionLost("Error reading from server: " + ex.getMessage());
                 break;
             }
         }
     }
+
+    /**
+     * Resumes the session on a new connection if possible (and a new
+     * ReadThread takes over), otherwise tells the listener.
+     */
+    private void connectionLost(String message) {
+        if (!client.reconnect() && client.getListener() != null) {
+            client.getListener().onMessageReceived(message);
+        }
+    }
 }
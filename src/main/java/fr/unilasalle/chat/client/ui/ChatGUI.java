@@ -2,6 +2,8 @@ package fr.unilasalle.chat.client.ui;
 
 import fr.unilasalle.chat.client.Client;
 import fr.unilasalle.chat.client.MessageListener;
+import fr.unilasalle.chat.protocol.Opcode;
+import fr.unilasalle.chat.protocol.Packet;
 
 import javax.swing.*;
 import javax.swing.border.CompoundBorder;
@@ -44,6 +46,8 @@ public class ChatGUI extends JFrame implements MessageListener {
     private Set<String> channelUsers = new HashSet<>();
     private Map<String, String> channelUserStatus = new HashMap<>();
     private Map<String, String> channelUserMsg = new HashMap<>();
+    // Friends and pending requests from the last FRIENDLIST, kept current by PRESENCE
+    private Map<String, Friend> friendEntries = new java.util.LinkedHashMap<>();
 
     private boolean isPrivateMode = false; // true if chatting with a friend
 
@@ -51,6 +55,20 @@ public class ChatGUI extends JFrame implements MessageListener {
     private Map<String, StyledDocument> channelDocs = new HashMap<>();
     private String currentChannel = "general";
 
+    // Lazy history: id of the oldest message shown per document key, 0 once
+    // the first message is reached. Older pages load when scrolled to the top.
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private Map<String, Long> historyCursors = new HashMap<>();
+    private java.util.List<String> pendingHistoryPage;
+    private boolean pendingHistoryLatest;
+    private boolean loadingHistory = false;
+    private JScrollPane chatScrollPane;
+    private String lastSearchQuery = "";
+
+    // Files picked for upload, waiting for their TRANSFER_UPLOAD ticket
+    private java.util.Deque<File> pendingUploads = new java.util.ArrayDeque<>();
+    private static final int TRANSFER_ATTEMPTS = 3;
+
     private String username;
     private String password;
     private boolean registerMode;
@@ -59,6 +77,17 @@ public class ChatGUI extends JFrame implements MessageListener {
     private AudioClient audioClient;
     private boolean inCall = false;
     private Map<String, Image> userAvatars = new HashMap<>();
+    // Avatar version (server file name) of each image in userAvatars
+    private Map<String, String> avatarVersions = new HashMap<>();
+    // Avatars of previous runs, read and written on avatarLoader
+    private static final long AVATAR_DISK_CACHE_BYTES = Long.getLong("chat.avatarCache.maxBytes", 32L * 1024 * 1024);
+    private fr.unilasalle.chat.client.AvatarDiskCache avatarDiskCache;
+    private java.util.concurrent.ExecutorService avatarLoader;
+
+    // "binary" asks the server for the binary protocol, "text" keeps lines
+    private static final boolean PREFER_BINARY = !"text".equalsIgnoreCase(System.getProperty("chat.protocol", "binary"));
+    // Packets with a handler of their own, the others go through onMessageReceived()
+    private final Map<Opcode, java.util.function.Consumer<Packet>> packetHandlers = new java.util.EnumMap<>(Opcode.class);
     private JLabel partnerAvatarLabel;
     private JLabel talkingTo;
 
@@ -105,6 +134,14 @@ public class ChatGUI extends JFrame implements MessageListener {
         this.username = username;
         this.password = password;
         this.registerMode = registerMode;
+        this.avatarDiskCache = new fr.unilasalle.chat.client.AvatarDiskCache(java.nio.file.Paths.get(
+                System.getProperty("user.home"), ".unilasalle-chat", "avatars", hostname + "_" + port),
+                AVATAR_DISK_CACHE_BYTES);
+        this.avatarLoader = java.util.concurrent.Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "avatar-loader");
+            t.setDaemon(true);
+            return t;
+        });
         System.out.println("Initializing ChatGUI Window (MSN Style HTML)...");
         setTitle("MSN Messenger - " + username);
         setSize(900, 650);
@@ -148,7 +185,12 @@ public class ChatGUI extends JFrame implements MessageListener {
 
         // Connect to Client
         System.out.println("Connecting to Server...");
+        packetHandlers.put(Opcode.AVATAR_DATA, p -> showAvatarData(p.text(0), p.bytes(1)));
+        packetHandlers.put(Opcode.AVATAR_VERSION, p -> storeAvatarVersion(p.text(0), p.text(1), p.bytes(2)));
+        packetHandlers.put(Opcode.FILEDOWNLOAD, p -> saveDownload(p.text(0), p.bytes(1)));
         client = new Client(hostname, port, this);
+        client.setPreferBinary(PREFER_BINARY);
+        client.setResumable(true);
         client.execute();
 
         // Global Mouse Listener for Click Sounds
@@ -210,6 +252,39 @@ public class ChatGUI extends JFrame implements MessageListener {
         add(header, BorderLayout.NORTH);
     }
 
+    /**
+     * Display form of a private "HISTORY:" line: wizzes become the red banner,
+     * anything else is shown as sent.
+     */
+    private String privateHistoryToDisplay(String raw) {
+        // raw: "[12/02/26 08:53:44] [Jeomin]: WIZZ Jeomin"
+        // Parse regex: [timestamp] [sender]: msg
+        java.util.regex.Pattern p = java.util.regex.Pattern.compile("^\\[(.*?)\\] \\[(.*?)\\]: (.*)$");
+        java.util.regex.Matcher m = p.matcher(raw);
+        if (m.find()) {
+            String ts = m.group(1);
+            String msgSender = m.group(2); // Should match sender in []
+            String msgContent = m.group(3);
+
+            if (msgContent.startsWith("WIZZ ")) {
+                String wizzHtml;
+                if (msgSender.equals(username)) {
+                    wizzHtml = "<div style='color:#FF0000;font-weight:bold;font-size:14px;text-align:center;'>--- Vous avez envoyé un Wizz ! ---</div>";
+                } else {
+                    wizzHtml = "<div style='color:#FF0000;font-weight:bold;font-size:14px;text-align:center;'>--- "
+                            + msgSender + " vous a envoyé un Wizz ! ---</div>";
+                }
+                // Include timestamp as requested by user
+                return "RAW_HTML:<div style='color:gray;font-size:10px;text-align:left;'>" + ts
+                        + "</div>" + wizzHtml;
+            } else {
+                return raw;
+            }
+        } else {
+            return raw;
+        }
+    }
+
     private void processPrivateMessage(String remoteUser, String formattedContent) {
         // Ensure doc exists
         if (!channelDocs.containsKey("PRIV_" + remoteUser)) {
@@ -417,12 +492,12 @@ public class ChatGUI extends JFrame implements MessageListener {
         if (userList != null)
             userList.repaint();
 
-        StyledDocument doc = channelDocs.get(newChannel);
-        if (doc == null) {
-            doc = (StyledDocument) kit.createDefaultDocument();
-            channelDocs.put(newChannel, doc);
-            client.sendMessage("/history " + newChannel);
-        }
+        // The server only sends a channel's messages to its members, so a
+        // document kept from a previous visit misses what was said meanwhile.
+        StyledDocument doc = (StyledDocument) kit.createDefaultDocument();
+        channelDocs.put(newChannel, doc);
+        loadingHistory = true;
+        client.sendMessage("/history " + newChannel + " limit=" + HISTORY_PAGE_SIZE);
         chatArea.setDocument(doc);
         scrollToBottom();
     }
@@ -447,7 +522,7 @@ public class ChatGUI extends JFrame implements MessageListener {
             partnerAvatarLabelFrame.setIcon(new ImageIcon(userAvatars.get(friendName).getScaledInstance(96, 96, Image.SCALE_SMOOTH)));
         } else {
             partnerAvatarLabelFrame.setIcon(null);
-            client.sendMessage("/getavatar " + friendName);
+            requestAvatar(friendName);
         }
         
         if (ownAvatarImage != null) {
@@ -472,7 +547,8 @@ public class ChatGUI extends JFrame implements MessageListener {
         if (doc == null) {
             doc = (StyledDocument) kit.createDefaultDocument();
             channelDocs.put("PRIV_" + friendName, doc);
-            client.sendMessage("/privhistory " + friendName);
+            loadingHistory = true;
+            client.sendMessage("/privhistory " + friendName + " limit=" + HISTORY_PAGE_SIZE);
         }
 
         chatArea.setDocument(doc);
@@ -569,7 +645,9 @@ public class ChatGUI extends JFrame implements MessageListener {
                 if (desc.startsWith("download:")) {
                     String fileId = desc.substring("download:".length());
                     int confirm = JOptionPane.showConfirmDialog(this, "Télécharger " + fileId + " ?", "Téléchargement", JOptionPane.YES_NO_OPTION);
-                    if (confirm == JOptionPane.YES_OPTION) client.sendMessage("/download " + fileId);
+                    if (confirm == JOptionPane.YES_OPTION) client.sendMessage("/transfer download " + fileId);
+                } else if (desc.startsWith("search:")) {
+                    client.sendMessage("/search " + lastSearchQuery + " page=" + desc.substring("search:".length()));
                 }
             }
         });
@@ -578,6 +656,14 @@ public class ChatGUI extends JFrame implements MessageListener {
         JScrollPane scrollPane = new JScrollPane(chatArea, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
         scrollPane.setBorder(BorderFactory.createLineBorder(MsnTheme.BORDER_COLOR));
         scrollPane.setViewportBorder(BorderFactory.createEmptyBorder(0, 0, 0, 5));
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            Adjustable bar = e.getAdjustable();
+            // Reaching the top of a conversation taller than the view loads the previous page
+            if (e.getValue() == bar.getMinimum() && bar.getMaximum() - bar.getMinimum() > bar.getVisibleAmount()) {
+                loadOlderHistory();
+            }
+        });
+        chatScrollPane = scrollPane;
         centerPanel.add(scrollPane, BorderLayout.CENTER);
 
         // Input Area
@@ -632,9 +718,23 @@ public class ChatGUI extends JFrame implements MessageListener {
             inputField.setBackground(msgBgColor);
         });
 
+        JButton fileBtn = new JButton("+");
+        fileBtn.setFont(new Font("Arial", Font.BOLD, 14));
+        fileBtn.setToolTipText("Envoyer un fichier");
+        styleToolbarButton(fileBtn);
+        fileBtn.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                File file = chooser.getSelectedFile();
+                pendingUploads.add(file);
+                client.sendMessage("/transfer upload " + file.length() + " " + file.getName());
+            }
+        });
+
         toolbar.add(colorBtn);
         toolbar.add(bgBtn);
         toolbar.add(resetBtn);
+        toolbar.add(fileBtn);
 
 
 
@@ -692,6 +792,133 @@ public class ChatGUI extends JFrame implements MessageListener {
     }
 
     // Style helper for toolbar buttons
+    /**
+     * Asks for the avatar of another user, as a 96 px thumbnail. The server
+     * answers AVATAR_NOTMODIFIED if the version we have is current.
+     */
+    private void requestAvatar(String user) {
+        String version = avatarVersions.get(user);
+        if (version == null) {
+            version = avatarDiskCache.getVersion(user);
+        }
+        client.sendMessage("/getavatar " + user + " " + (version != null ? version : "-") + " 96");
+    }
+
+    /**
+     * Shows the avatar of {@code user} from the disk cache, read off the EDT.
+     * If the disk does not have {@code expected} (any version if null), the
+     * avatar is left for the lists to request.
+     */
+    private void loadCachedAvatar(String user, String expected) {
+        avatarLoader.execute(() -> {
+            String version = avatarDiskCache.getVersion(user);
+            byte[] data = version != null && (expected == null || expected.equals(version)) ? avatarDiskCache.read(user) : null;
+            Image image = null;
+            if (data != null) {
+                try {
+                    image = javax.imageio.ImageIO.read(new java.io.ByteArrayInputStream(data));
+                } catch (java.io.IOException e) {
+                    // Unreadable, fetched again below
+                }
+            }
+            Image loaded = image;
+            SwingUtilities.invokeLater(() -> {
+                if (loaded != null) {
+                    avatarVersions.put(user, version);
+                    showAvatar(user, loaded);
+                } else if (expected == null) {
+                    // Told it was current but the file is gone
+                    client.sendMessage("/getavatar " + user + " - 96");
+                } else {
+                    requestedAvatars.remove(user);
+                    if (userList != null)
+                        userList.repaint();
+                    if (friendsList != null)
+                        friendsList.repaint();
+                }
+            });
+        });
+    }
+
+    private void showAvatar(String user, Image rawImg) {
+        userAvatars.put(user, rawImg);
+
+        if (user.equals(username)) {
+            ownAvatarImage = rawImg;
+            if (headerAvatar != null) {
+                Image scaled = rawImg.getScaledInstance(50, 50, Image.SCALE_SMOOTH);
+                headerAvatar.setIcon(new ImageIcon(scaled));
+            }
+        }
+
+        // If we are in call with this user, update call window
+        if (inCall && callWindow != null) {
+            callWindow.setPartnerAvatar(rawImg);
+        }
+
+        // Update side avatars in private mode
+        if (isPrivateMode) {
+            if (user.equals(currentChannel)) {
+                if (partnerAvatarLabelFrame != null) {
+                    partnerAvatarLabelFrame.setIcon(new ImageIcon(rawImg.getScaledInstance(96, 96, Image.SCALE_SMOOTH)));
+                }
+            } else if (user.equals(username)) {
+                if (myAvatarLabel != null) {
+                    myAvatarLabel.setIcon(new ImageIcon(rawImg.getScaledInstance(96, 96, Image.SCALE_SMOOTH)));
+                }
+            }
+        }
+
+        // Trigger repaint of lists
+        if (userList != null)
+            userList.repaint();
+        if (friendsList != null)
+            friendsList.repaint();
+    }
+
+    private interface TransferAttempt {
+        void run(fr.unilasalle.chat.transfer.FileTransferClient.Progress progress) throws java.io.IOException;
+    }
+
+    private fr.unilasalle.chat.transfer.FileTransferClient transferClient() {
+        return new fr.unilasalle.chat.transfer.FileTransferClient(serverHost, serverPort + 3);
+    }
+
+    /**
+     * Runs a file transfer in the background with a progress dialog. A
+     * failed attempt is retried, the transfer resumes where it stopped.
+     */
+    private void runTransfer(String title, TransferAttempt attempt) {
+        ProgressMonitor monitor = new ProgressMonitor(this, title, "", 0, 1000);
+        monitor.setMillisToDecideToPopup(200);
+        Thread worker = new Thread(() -> {
+            String error = null;
+            for (int i = 0; i < TRANSFER_ATTEMPTS; i++) {
+                try {
+                    attempt.run((done, total) -> SwingUtilities.invokeLater(() -> {
+                        monitor.setProgress(total > 0 ? (int) (done * 1000 / total) : 1000);
+                        monitor.setNote((done / 1024) + " / " + (total / 1024) + " Ko");
+                    }));
+                    error = null;
+                    break;
+                } catch (java.io.IOException e) {
+                    error = e.getMessage();
+                }
+            }
+            String result = error;
+            SwingUtilities.invokeLater(() -> {
+                monitor.close();
+                if (result != null) {
+                    JOptionPane.showMessageDialog(this, "Erreur de transfert : " + result);
+                } else if (title.startsWith("Téléchargement")) {
+                    JOptionPane.showMessageDialog(this, "Fichier enregistré avec succès !");
+                }
+            });
+        }, "file-transfer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
     private void styleToolbarButton(JButton btn) {
         btn.setPreferredSize(new Dimension(25, 25));
         btn.setBorder(BorderFactory.createEmptyBorder());
@@ -825,7 +1052,7 @@ public class ChatGUI extends JFrame implements MessageListener {
                     label.setIcon(null);
                     if (!requestedAvatars.contains(user)) {
                         requestedAvatars.add(user);
-                        client.sendMessage("/getavatar " + user);
+                        requestAvatar(user);
                     }
                 }
 
@@ -1195,6 +1422,75 @@ public class ChatGUI extends JFrame implements MessageListener {
          */
     }
 
+    private String currentDocKey() {
+        return isPrivateMode ? "PRIV_" + currentChannel : currentChannel;
+    }
+
+    private void loadOlderHistory() {
+        // Views like "!Recherche" are not channels
+        if (loadingHistory || (!isPrivateMode && currentChannel.startsWith("!"))) {
+            return;
+        }
+        Long cursor = historyCursors.get(currentDocKey());
+        if (cursor != null && cursor == 0) {
+            return; // Already showing the first message
+        }
+        String request = isPrivateMode ? "/privhistory " + currentChannel : "/history " + currentChannel;
+        // Without a cursor (history pushed at login) the newest page is reloaded first
+        loadingHistory = true;
+        client.sendMessage(request + " limit=" + HISTORY_PAGE_SIZE + (cursor != null ? " before=" + cursor : ""));
+    }
+
+    /**
+     * Handles the paged replies to /history and /privhistory:
+     * "<tag>_BEGIN <target> <before|latest>", "<tag>_ITEM <target> <id> HISTORY:..."
+     * lines, then "<tag>_END <target> <oldest id> <more>".
+     */
+    private void handleHistoryPage(String message) {
+        boolean priv = message.startsWith("PRIVHISTORY_");
+        String[] parts = message.split(" ", 4);
+        if (parts.length < 3) {
+            return;
+        }
+        String docKey = priv ? "PRIV_" + parts[1] : parts[1];
+
+        if (parts[0].endsWith("_BEGIN")) {
+            pendingHistoryPage = new java.util.ArrayList<>();
+            pendingHistoryLatest = parts[2].equals("latest");
+            if (pendingHistoryLatest) {
+                // The newest page replaces whatever the document showed
+                StyledDocument doc = (StyledDocument) kit.createDefaultDocument();
+                channelDocs.put(docKey, doc);
+                if (docKey.equals(currentDocKey())) {
+                    chatArea.setDocument(doc);
+                }
+            }
+        } else if (parts[0].endsWith("_ITEM") && parts.length == 4 && pendingHistoryPage != null) {
+            String raw = parts[3].startsWith("HISTORY:") ? parts[3].substring("HISTORY:".length()) : parts[3];
+            pendingHistoryPage.add(priv ? privateHistoryToDisplay(raw) : raw);
+        } else if (parts[0].endsWith("_END") && parts.length == 4 && pendingHistoryPage != null) {
+            StyledDocument doc = channelDocs.get(docKey);
+            if (doc instanceof HTMLDocument) {
+                JScrollBar bar = chatScrollPane.getVerticalScrollBar();
+                int fromBottom = bar.getMaximum() - bar.getValue();
+                prependMessagesToDoc((HTMLDocument) doc, pendingHistoryPage);
+                if (pendingHistoryLatest) {
+                    scrollToBottom();
+                } else if (docKey.equals(currentDocKey())) {
+                    // Keep the lines the user was reading in place
+                    SwingUtilities.invokeLater(() -> bar.setValue(bar.getMaximum() - fromBottom));
+                }
+            }
+            try {
+                historyCursors.put(docKey, Boolean.parseBoolean(parts[3]) ? Long.parseLong(parts[2]) : 0L);
+            } catch (NumberFormatException e) {
+                historyCursors.put(docKey, 0L);
+            }
+            pendingHistoryPage = null;
+            loadingHistory = false;
+        }
+    }
+
     private void scrollToBottom() {
         SwingUtilities.invokeLater(() -> chatArea.setCaretPosition(chatArea.getDocument().getLength()));
     }
@@ -1205,111 +1501,130 @@ public class ChatGUI extends JFrame implements MessageListener {
 
     private void appendMessageToDoc(HTMLDocument doc, String msg) {
         try {
+            kit.insertHTML(doc, doc.getLength(), messageToHtml(msg), 0, 0, null);
             if (msg.startsWith("RAW_HTML:")) {
-                kit.insertHTML(doc, doc.getLength(), msg.substring("RAW_HTML:".length()), 0, 0, null);
                 scrollToBottom();
-                return;
             }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            StringBuilder html = new StringBuilder();
-
-            // Handle private messages specially
-            if (msg.startsWith("[Private from ") || msg.startsWith("[Private to ")) {
-                int split = msg.indexOf("]:");
-                if (split > 0) {
-                    String header = msg.substring(1, split);
-                    String content = wrapLongWords(msg.substring(split + 3));
-                    boolean isMe = header.contains(username != null ? username : "");
-                    
-                    html.append("<table class='msg-table' width='100%'><tr>");
-                    if (isMe) {
-                        html.append("<td width='40'></td>");
-                        html.append("<td style='background-color:#f0e6ff; border-right: 3px solid #800080; padding: 5px; text-align: right;'>");
-                    } else {
-                        html.append("<td style='background-color:#f0e6ff; border-left: 3px solid #800080; padding: 5px; text-align: left;'>");
-                    }
-                    
-                    html.append("<div class='header' style='color:#800080; font-weight:bold;'>").append(header).append(":</div>");
-                    html.append("<div class='content' style='font-style:italic;'>").append(content).append("</div>");
-                    html.append("</td>");
-                    
-                    if (!isMe) {
-                        html.append("<td width='40'></td>");
-                    }
-                    html.append("</tr></table>");
-
-                    kit.insertHTML(doc, doc.getLength(), html.toString(), 0, 0, null);
-                    return;
-                }
-            }
+    /**
+     * Inserts history lines, oldest first, above everything already in the
+     * document. Used when older pages are loaded on scroll.
+     */
+    private void prependMessagesToDoc(HTMLDocument doc, java.util.List<String> msgs) {
+        if (msgs.isEmpty()) {
+            return;
+        }
+        StringBuilder html = new StringBuilder();
+        for (String msg : msgs) {
+            html.append(messageToHtml(msg));
+        }
+        try {
+            javax.swing.text.Element body = doc.getElement(doc.getDefaultRootElement(),
+                    javax.swing.text.StyleConstants.NameAttribute, javax.swing.text.html.HTML.Tag.BODY);
+            doc.insertBeforeStart(body.getElement(0), html.toString());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            if (msg.startsWith("[")) {
-                // Check for dd/MM/yyyy HH:mm:ss format
-                if (msg.matches("^\\[\\d{2}/\\d{2}/\\d{4} \\d{2}:\\d{2}:\\d{2}\\] \\[.+?\\]: .+")) {
-                    int firstClose = msg.indexOf("]");
-                    String timestamp = msg.substring(1, firstClose);
+    private String messageToHtml(String msg) {
+        if (msg.startsWith("RAW_HTML:")) {
+            return msg.substring("RAW_HTML:".length());
+        }
 
-                    int secondOpen = msg.indexOf("[", firstClose);
-                    int secondClose = msg.indexOf("]:", secondOpen);
-                    String user = msg.substring(secondOpen + 1, secondClose);
-                    String content = msg.substring(secondClose + 3);
+        StringBuilder html = new StringBuilder();
 
-                    appendFormattedBlock(doc, timestamp, user, content);
-                    return;
+        // Handle private messages specially
+        if (msg.startsWith("[Private from ") || msg.startsWith("[Private to ")) {
+            int split = msg.indexOf("]:");
+            if (split > 0) {
+                String header = msg.substring(1, split);
+                String content = wrapLongWords(msg.substring(split + 3));
+                boolean isMe = header.contains(username != null ? username : "");
+                
+                html.append("<table class='msg-table' width='100%'><tr>");
+                if (isMe) {
+                    html.append("<td width='40'></td>");
+                    html.append("<td style='background-color:#f0e6ff; border-right: 3px solid #800080; padding: 5px; text-align: right;'>");
+                } else {
+                    html.append("<td style='background-color:#f0e6ff; border-left: 3px solid #800080; padding: 5px; text-align: left;'>");
+                }
+                
+                html.append("<div class='header' style='color:#800080; font-weight:bold;'>").append(header).append(":</div>");
+                html.append("<div class='content' style='font-style:italic;'>").append(content).append("</div>");
+                html.append("</td>");
+                
+                if (!isMe) {
+                    html.append("<td width='40'></td>");
                 }
+                html.append("</tr></table>");
 
-                // Check for dd/MM/yy HH:mm:ss format (2-digit year)
-                if (msg.matches("^\\[\\d{2}/\\d{2}/\\d{2} \\d{2}:\\d{2}:\\d{2}\\] \\[.+?\\]: .+")) {
-                    int firstClose = msg.indexOf("]");
-                    String timestamp = msg.substring(1, firstClose);
+                return html.toString();
+            }
+        }
 
-                    int secondOpen = msg.indexOf("[", firstClose);
-                    int secondClose = msg.indexOf("]:", secondOpen);
-                    String user = msg.substring(secondOpen + 1, secondClose);
-                    String content = msg.substring(secondClose + 3);
+        if (msg.startsWith("[")) {
+            // Check for dd/MM/yyyy HH:mm:ss format
+            if (msg.matches("^\\[\\d{2}/\\d{2}/\\d{4} \\d{2}:\\d{2}:\\d{2}\\] \\[.+?\\]: .+")) {
+                int firstClose = msg.indexOf("]");
+                String timestamp = msg.substring(1, firstClose);
 
-                    appendFormattedBlock(doc, timestamp, user, content);
-                    return;
-                }
+                int secondOpen = msg.indexOf("[", firstClose);
+                int secondClose = msg.indexOf("]:", secondOpen);
+                String user = msg.substring(secondOpen + 1, secondClose);
+                String content = msg.substring(secondClose + 3);
+
+                return formattedBlockHtml(timestamp, user, content);
+            }
 
-                // Check for HH:mm:ss format (History/Legacy)
-                if (msg.matches("^\\[\\d{2}:\\d{2}:\\d{2}\\] \\[.+?\\]: .+")) {
-                    int firstClose = msg.indexOf("]");
-                    String timePart = msg.substring(1, firstClose);
+            // Check for dd/MM/yy HH:mm:ss format (2-digit year)
+            if (msg.matches("^\\[\\d{2}/\\d{2}/\\d{2} \\d{2}:\\d{2}:\\d{2}\\] \\[.+?\\]: .+")) {
+                int firstClose = msg.indexOf("]");
+                String timestamp = msg.substring(1, firstClose);
 
-                    int secondOpen = msg.indexOf("[", firstClose);
-                    int secondClose = msg.indexOf("]:", secondOpen);
-                    String user = msg.substring(secondOpen + 1, secondClose);
-                    String content = msg.substring(secondClose + 3);
+                int secondOpen = msg.indexOf("[", firstClose);
+                int secondClose = msg.indexOf("]:", secondOpen);
+                String user = msg.substring(secondOpen + 1, secondClose);
+                String content = msg.substring(secondClose + 3);
 
-                    appendFormattedBlock(doc, timePart, user, content);
-                    return;
-                }
+                return formattedBlockHtml(timestamp, user, content);
+            }
 
-                // Regular message format fallback
-                int split = msg.indexOf("]:");
-                if (split > 0) {
-                    String user = msg.substring(1, split);
-                    if (user.startsWith("["))
-                        user = user.substring(1);
-                    String content = msg.substring(split + 3);
+            // Check for HH:mm:ss format (History/Legacy)
+            if (msg.matches("^\\[\\d{2}:\\d{2}:\\d{2}\\] \\[.+?\\]: .+")) {
+                int firstClose = msg.indexOf("]");
+                String timePart = msg.substring(1, firstClose);
 
-                    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
-                    String timestamp = LocalDateTime.now().format(formatter);
+                int secondOpen = msg.indexOf("[", firstClose);
+                int secondClose = msg.indexOf("]:", secondOpen);
+                String user = msg.substring(secondOpen + 1, secondClose);
+                String content = msg.substring(secondClose + 3);
 
-                    appendFormattedBlock(doc, timestamp, user, content);
-                    return;
-                }
+                return formattedBlockHtml(timePart, user, content);
             }
 
-            // Fallback for simple messages
-            String safeMsg = msg.replace("<", "&lt;").replace(">", "&gt;");
-            kit.insertHTML(doc, doc.getLength(), "<div style='color:gray; font-style:italic;'>" + wrapLongWords(safeMsg) + "</div>", 0,
-                    0, null);
+            // Regular message format fallback
+            int split = msg.indexOf("]:");
+            if (split > 0) {
+                String user = msg.substring(1, split);
+                if (user.startsWith("["))
+                    user = user.substring(1);
+                String content = msg.substring(split + 3);
 
-        } catch (Exception e) {
-            e.printStackTrace();
+                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
+                String timestamp = LocalDateTime.now().format(formatter);
+
+                return formattedBlockHtml(timestamp, user, content);
+            }
         }
+
+        // Fallback for simple messages
+        String safeMsg = msg.replace("<", "&lt;").replace(">", "&gt;");
+        return "<div style='color:gray; font-style:italic;'>" + wrapLongWords(safeMsg) + "</div>";
     }
 
     private String wrapLongWords(String text) {
@@ -1344,8 +1659,7 @@ public class ChatGUI extends JFrame implements MessageListener {
         return sb.toString();
     }
 
-    private void appendFormattedBlock(HTMLDocument doc, String timestamp, String user, String content)
-            throws Exception {
+    private String formattedBlockHtml(String timestamp, String user, String content) {
         String fgHex = "#000000";
         String bgHex = null;
         String cleanContent = content;
@@ -1393,7 +1707,41 @@ public class ChatGUI extends JFrame implements MessageListener {
         }
         html.append("</tr></table>");
 
-        kit.insertHTML(doc, doc.getLength(), html.toString(), 0, 0, null);
+        return html.toString();
+    }
+
+    @Override
+    public void onPacketReceived(Packet packet) {
+        java.util.function.Consumer<Packet> handler = packetHandlers.get(packet.opcode());
+        if (handler == null || packet.size() < packet.opcode().fields) {
+            onMessageReceived(packet.toLine());
+            return;
+        }
+        SwingUtilities.invokeLater(() -> handler.accept(packet));
+    }
+
+    private void showAvatarData(String user, byte[] data) {
+        showAvatar(user, new ImageIcon(data).getImage());
+    }
+
+    private void storeAvatarVersion(String user, String version, byte[] data) {
+        avatarVersions.put(user, version);
+        showAvatar(user, new ImageIcon(data).getImage());
+        avatarLoader.execute(() -> avatarDiskCache.put(user, version, data));
+    }
+
+    private void saveDownload(String fileId, byte[] data) {
+        JFileChooser saver = new JFileChooser();
+        saver.setSelectedFile(new File(fileId)); // Suggest ID as name
+        int res = saver.showSaveDialog(this);
+        if (res == JFileChooser.APPROVE_OPTION) {
+            try {
+                Files.write(saver.getSelectedFile().toPath(), data);
+                JOptionPane.showMessageDialog(this, "Fichier enregistré avec succès !");
+            } catch (Exception e) {
+                JOptionPane.showMessageDialog(this, "Erreur lors de l'enregistrement : " + e.getMessage());
+            }
+        }
     }
 
     @Override
@@ -1423,6 +1771,12 @@ public class ChatGUI extends JFrame implements MessageListener {
                 return;
             }
 
+            if (message.startsWith("RESUME_OK ")) {
+                // Missed messages follow, the lists are still valid
+                appendToChat("Système : Reconnecté.", Color.GRAY);
+                return;
+            }
+
             if (message.equals("REGISTRATION_SUCCESS")) {
                 appendToChat("Système : Compte créé ! Connexion en cours...", Color.GRAY);
                 client.sendMessage("/login " + username + " " + password);
@@ -1519,34 +1873,7 @@ public class ChatGUI extends JFrame implements MessageListener {
                     String formatted = content;
 
                     if (content.startsWith("HISTORY:")) {
-                        String raw = content.substring("HISTORY:".length());
-                        // raw: "[12/02/26 08:53:44] [Jeomin]: WIZZ Jeomin"
-
-                        // Parse regex: [timestamp] [sender]: msg
-                        java.util.regex.Pattern p = java.util.regex.Pattern.compile("^\\[(.*?)\\] \\[(.*?)\\]: (.*)$");
-                        java.util.regex.Matcher m = p.matcher(raw);
-                        if (m.find()) {
-                            String ts = m.group(1);
-                            String msgSender = m.group(2); // Should match sender in []
-                            String msgContent = m.group(3);
-
-                            if (msgContent.startsWith("WIZZ ")) {
-                                String wizzHtml;
-                                if (msgSender.equals(username)) {
-                                    wizzHtml = "<div style='color:#FF0000;font-weight:bold;font-size:14px;text-align:center;'>--- Vous avez envoyé un Wizz ! ---</div>";
-                                } else {
-                                    wizzHtml = "<div style='color:#FF0000;font-weight:bold;font-size:14px;text-align:center;'>--- "
-                                            + msgSender + " vous a envoyé un Wizz ! ---</div>";
-                                }
-                                // Include timestamp as requested by user
-                                formatted = "RAW_HTML:<div style='color:gray;font-size:10px;text-align:left;'>" + ts
-                                        + "</div>" + wizzHtml;
-                            } else {
-                                formatted = raw;
-                            }
-                        } else {
-                            formatted = raw;
-                        }
+                        formatted = privateHistoryToDisplay(content.substring("HISTORY:".length()));
                     } else if (content.startsWith("WIZZ ")) {
                         String wizzSender = content.substring("WIZZ ".length());
                         if (wizzSender.equals(username)) {
@@ -1567,6 +1894,16 @@ public class ChatGUI extends JFrame implements MessageListener {
                 return;
             }
 
+            if (message.startsWith("PRESENCE ")) {
+                handlePresence(message);
+                return;
+            }
+
+            if (message.startsWith("JOIN ") || message.startsWith("PART ")) {
+                handleMembership(message);
+                return;
+            }
+
             if (message.startsWith("USERLIST " + currentChannel + " ")) {
                 // Standard Channel List
                 String users = message.substring(("USERLIST " + currentChannel + " ").length());
@@ -1600,7 +1937,7 @@ public class ChatGUI extends JFrame implements MessageListener {
                         channelUsers.clear();
                         for (String u : users.split(",")) {
                             if (!u.isEmpty())
-                                channelUsers.add(u);
+                                channelUsers.add(u.split(":")[0]);
                         }
                         userList.repaint();
                     }
@@ -1619,6 +1956,11 @@ public class ChatGUI extends JFrame implements MessageListener {
                 return;
             }
 
+            if (message.startsWith("HISTORY_") || message.startsWith("PRIVHISTORY_")) {
+                handleHistoryPage(message);
+                return;
+            }
+
             if (message.startsWith("CHANMSG ")) {
                 String[] parts = message.split(" ", 3);
                 if (parts.length >= 3) {
@@ -1762,6 +2104,7 @@ public class ChatGUI extends JFrame implements MessageListener {
                 // Switch to search view
                 String query = message.substring("SEARCH_START ".length());
                 String searchChan = "!Recherche";
+                lastSearchQuery = query;
 
                 if (!channelDocs.containsKey(searchChan)) {
                     channelDocs.put(searchChan, (HTMLDocument) kit.createDefaultDocument());
@@ -1795,8 +2138,15 @@ public class ChatGUI extends JFrame implements MessageListener {
                 return;
             }
 
-            if (message.equals("SEARCH_END")) {
-                appendToChat("<hr><i>Fin de la recherche.</i>", Color.GRAY);
+            if (message.startsWith("SEARCH_END")) {
+                // "SEARCH_END <page> <more>": results are paged by the server
+                String[] parts = message.split(" ");
+                if (parts.length >= 3 && parts[2].equals("true")) {
+                    int next = Integer.parseInt(parts[1]) + 1;
+                    appendToChat("RAW_HTML:<hr><a href='search:" + next + "'>Résultats suivants</a>", Color.GRAY);
+                } else {
+                    appendToChat("<hr><i>Fin de la recherche.</i>", Color.GRAY);
+                }
                 scrollToBottom();
                 return;
             }
@@ -1812,46 +2162,49 @@ public class ChatGUI extends JFrame implements MessageListener {
             if (message.startsWith("AVATAR_DATA ")) {
                 String[] parts = message.split(" ", 3);
                 if (parts.length >= 3) {
-                    String user = parts[1];
-                    String b64 = parts[2];
                     try {
-                        byte[] data = Base64.getDecoder().decode(b64);
-                        ImageIcon icon = new ImageIcon(data);
-                        Image rawImg = icon.getImage();
-                        userAvatars.put(user, rawImg);
-
-                        if (user.equals(username)) {
-                            ownAvatarImage = rawImg;
-                            if (headerAvatar != null) {
-                                Image scaled = rawImg.getScaledInstance(50, 50, Image.SCALE_SMOOTH);
-                                headerAvatar.setIcon(new ImageIcon(scaled));
-                            }
-                        }
+                        showAvatarData(parts[1], Base64.getDecoder().decode(parts[2]));
+                    } catch (Exception e) {
+                    }
+                }
+                return;
+            }
 
-                        // If we are in call with this user, update call window
-                        if (inCall && callWindow != null) {
-                            callWindow.setPartnerAvatar(rawImg);
-                        }
+            if (message.startsWith("AVATAR_VERSION ")) {
+                // AVATAR_VERSION <user> <version> <base64 thumbnail>
+                String[] parts = message.split(" ", 4);
+                if (parts.length >= 4) {
+                    try {
+                        storeAvatarVersion(parts[1], parts[2], Base64.getDecoder().decode(parts[3]));
+                    } catch (Exception e) {
+                    }
+                }
+                return;
+            }
 
-                        // Update side avatars in private mode
-                        if (isPrivateMode) {
-                            if (user.equals(currentChannel)) {
-                                if (partnerAvatarLabelFrame != null) {
-                                    partnerAvatarLabelFrame.setIcon(new ImageIcon(rawImg.getScaledInstance(96, 96, Image.SCALE_SMOOTH)));
-                                }
-                            } else if (user.equals(username)) {
-                                if (myAvatarLabel != null) {
-                                    myAvatarLabel.setIcon(new ImageIcon(rawImg.getScaledInstance(96, 96, Image.SCALE_SMOOTH)));
-                                }
-                            }
-                        }
+            if (message.startsWith("AVATAR_NOTMODIFIED ")) {
+                // The image we have is current, it may still be on disk only
+                String[] parts = message.split(" ", 3);
+                if (parts.length >= 2 && !userAvatars.containsKey(parts[1])) {
+                    loadCachedAvatar(parts[1], null);
+                }
+                return;
+            }
 
-                        // Trigger repaint of lists
-                        if (userList != null)
-                            userList.repaint();
-                        if (friendsList != null)
-                            friendsList.repaint();
-                    } catch (Exception e) {
+            if (message.startsWith("AVATAR_VERSIONS ")) {
+                // AVATAR_VERSIONS <user>:<version>,... sent at login
+                Map<String, String> versions = new HashMap<>();
+                for (String entry : message.substring("AVATAR_VERSIONS ".length()).split(",")) {
+                    int sep = entry.lastIndexOf(':');
+                    if (sep > 0 && !entry.substring(0, sep).equals(username)) {
+                        versions.put(entry.substring(0, sep), entry.substring(sep + 1));
+                    }
+                }
+                for (Map.Entry<String, String> e : versions.entrySet()) {
+                    if (!e.getValue().equals(avatarVersions.get(e.getKey()))) {
+                        // Held back from the lists until we know if the disk has it
+                        requestedAvatars.add(e.getKey());
+                        loadCachedAvatar(e.getKey(), e.getValue());
                     }
                 }
                 return;
@@ -1859,9 +2212,12 @@ public class ChatGUI extends JFrame implements MessageListener {
 
             if (message.startsWith("AVATAR_UPDATE ")) {
                 String user = message.substring("AVATAR_UPDATE ".length());
-                requestedAvatars.remove(user);
-                userAvatars.remove(user); // Force reload
-                client.sendMessage("/getavatar " + user);
+                if (user.equals(username)) {
+                    client.sendMessage("/getavatar " + user);
+                } else {
+                    // Keeps the current image until the new version arrives
+                    requestAvatar(user);
+                }
                 return;
             }
 
@@ -1889,23 +2245,43 @@ public class ChatGUI extends JFrame implements MessageListener {
                 return;
             }
 
-            if (message.startsWith("FILEDOWNLOAD ")) {
+            if (message.startsWith("TRANSFER_UPLOAD ")) {
+                // TRANSFER_UPLOAD <token> <fileId>
                 String[] parts = message.split(" ", 3);
-                if (parts.length >= 3) {
-                    String fileId = parts[1];
-                    String b64 = parts[2];
+                File file = pendingUploads.poll();
+                if (parts.length >= 3 && file != null) {
+                    String token = parts[1];
+                    runTransfer("Envoi de " + file.getName(),
+                            progress -> transferClient().upload(token, file.toPath(), progress));
+                }
+                return;
+            }
 
+            if (message.startsWith("TRANSFER_DOWNLOAD ")) {
+                // TRANSFER_DOWNLOAD <token> <fileId> <size>
+                String[] parts = message.split(" ", 4);
+                if (parts.length >= 3) {
+                    String token = parts[1];
+                    String fileId = parts[2];
                     JFileChooser saver = new JFileChooser();
-                    saver.setSelectedFile(new File(fileId)); // Suggest ID as name
-                    int res = saver.showSaveDialog(this);
-                    if (res == JFileChooser.APPROVE_OPTION) {
-                        try {
-                            byte[] data = Base64.getDecoder().decode(b64);
-                            Files.write(saver.getSelectedFile().toPath(), data);
-                            JOptionPane.showMessageDialog(this, "Fichier enregistré avec succès !");
-                        } catch (Exception e) {
-                            JOptionPane.showMessageDialog(this, "Erreur lors de l'enregistrement : " + e.getMessage());
-                        }
+                    // File ids are <millis>_<original name>
+                    saver.setSelectedFile(new File(fileId.substring(fileId.indexOf('_') + 1)));
+                    if (saver.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                        File target = saver.getSelectedFile();
+                        runTransfer("Téléchargement de " + target.getName(),
+                                progress -> transferClient().download(token, target.toPath(), progress));
+                    }
+                }
+                return;
+            }
+
+            if (message.startsWith("FILEDOWNLOAD ")) {
+                String[] parts = message.split(" ", 3);
+                if (parts.length >= 3) {
+                    try {
+                        saveDownload(parts[1], Base64.getDecoder().decode(parts[2]));
+                    } catch (IllegalArgumentException e) {
+                        JOptionPane.showMessageDialog(this, "Erreur lors de l'enregistrement : " + e.getMessage());
                     }
                 }
                 return;
@@ -2101,9 +2477,7 @@ public class ChatGUI extends JFrame implements MessageListener {
 
     private void rebuildFriendList(String diff) {
         System.out.println("DEBUG CLIENT: Received FRIENDLIST payload: " + diff);
-        java.util.List<Friend> online = new java.util.ArrayList<>();
-        java.util.List<Friend> offline = new java.util.ArrayList<>();
-        java.util.List<Friend> pending = new java.util.ArrayList<>();
+        friendEntries.clear();
 
         if (!diff.isEmpty()) {
             for (String part : diff.split(",")) {
@@ -2115,19 +2489,25 @@ public class ChatGUI extends JFrame implements MessageListener {
                 // Update maps for real-time mood/status tracking
                 channelUserStatus.put(name, status);
                 channelUserMsg.put(name, msg);
-
-                if (status.equals("pending")) {
-                    pending.add(new Friend(name, "pending", msg));
-                } else if (!status.equals("offline")) {
-                    online.add(new Friend(name, status, msg));
-                } else {
-                    offline.add(new Friend(name, "offline", msg));
-                }
+                friendEntries.put(name, new Friend(name, status, msg));
             }
         }
+        refreshFriendsModel();
+    }
 
-        System.out.println("DEBUG CLIENT: Parsed " + online.size() + " online, " + offline.size() + " offline, "
-                + pending.size() + " pending.");
+    private void refreshFriendsModel() {
+        java.util.List<Friend> online = new java.util.ArrayList<>();
+        java.util.List<Friend> offline = new java.util.ArrayList<>();
+        java.util.List<Friend> pending = new java.util.ArrayList<>();
+        for (Friend f : friendEntries.values()) {
+            if (f.status.equals("pending")) {
+                pending.add(f);
+            } else if (!f.status.equals("offline")) {
+                online.add(f);
+            } else {
+                offline.add(f);
+            }
+        }
 
         SwingUtilities.invokeLater(() -> {
             friendsListModel.clear();
@@ -2151,6 +2531,64 @@ public class ChatGUI extends JFrame implements MessageListener {
         });
     }
 
+    /**
+     * PRESENCE <user> <status> <message>: someone logged in or out or
+     * changed their status or message.
+     */
+    private void handlePresence(String message) {
+        String[] parts = message.split(" ", 4);
+        if (parts.length < 3) {
+            return;
+        }
+        String user = parts[1];
+        String status = parts[2];
+        String msg = parts.length > 3 ? parts[3] : "";
+
+        if (status.equals("offline")) {
+            userListModel.removeElement(user);
+            channelUsers.remove(user);
+        } else if (!userListModel.contains(user)) {
+            userListModel.addElement(user);
+        }
+        channelUserStatus.put(user, status);
+        channelUserMsg.put(user, msg);
+
+        Friend friend = friendEntries.get(user);
+        if (friend != null && !friend.status.equals("pending")) {
+            friendEntries.put(user, new Friend(user, status, msg));
+            refreshFriendsModel();
+        }
+        userList.repaint();
+    }
+
+    /**
+     * JOIN <channel> <user> <status> <message> and PART <channel> <user>,
+     * for the channel we are in.
+     */
+    private void handleMembership(String message) {
+        String[] parts = message.split(" ", 5);
+        if (parts.length < 3) {
+            return;
+        }
+        String targetChannel = parts[1];
+        String user = parts[2];
+        boolean shown = targetChannel.equals(currentChannel)
+                || (isPrivateMode && targetChannel.equals(getPrivateRoomName(username, currentChannel)));
+        if (!shown) {
+            return;
+        }
+        if (parts[0].equals("JOIN")) {
+            channelUsers.add(user);
+            if (parts.length > 3) {
+                channelUserStatus.put(user, parts[3]);
+                channelUserMsg.put(user, parts.length > 4 ? parts[4] : "");
+            }
+        } else {
+            channelUsers.remove(user);
+        }
+        userList.repaint();
+    }
+
     private void shakeWindow() {
         // Force window to front and restore if minimized
         if (getExtendedState() == JFrame.ICONIFIED) {
@@ -2211,7 +2649,7 @@ public class ChatGUI extends JFrame implements MessageListener {
                     lbl.setIcon(null);
                     if (!requestedAvatars.contains(f.name)) {
                         requestedAvatars.add(f.name);
-                        client.sendMessage("/getavatar " + f.name);
+                        requestAvatar(f.name);
                     }
                 }
 
@@ -1,13 +1,15 @@
 package fr.unilasalle.chat.client.ui;
 
 import fr.unilasalle.chat.client.Client;
+import fr.unilasalle.chat.protocol.Opcode;
+import fr.unilasalle.chat.protocol.Packet;
+import fr.unilasalle.chat.protocol.Payload;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.io.File;
 import java.nio.file.Files;
-import java.util.Base64;
 
 public class ProfileDialog extends JDialog {
     private String username;
@@ -59,8 +61,8 @@ public class ProfileDialog extends JDialog {
                 File f = chooser.getSelectedFile();
                 try {
                     byte[] data = Files.readAllBytes(f.toPath());
-                    String b64 = Base64.getEncoder().encodeToString(data);
-                    client.sendMessage("/setavatar " + b64);
+                    // Raw bytes in binary, Base64 in text
+                    client.send(new Packet(Opcode.SET_AVATAR, new Payload(data)));
                     
                     ImageIcon icon = new ImageIcon(data);
                     this.currentAvatar = icon.getImage();
@@ -0,0 +1,59 @@
+package fr.unilasalle.chat.cluster;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscriptions and delivery shared by the bus implementations.
+ */
+public abstract class AbstractMessageBus implements MessageBus {
+
+    private final String nodeId;
+    private final Map<String, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+    protected final AtomicLong published = new AtomicLong();
+    protected final AtomicLong received = new AtomicLong();
+    protected final AtomicLong dropped = new AtomicLong();
+
+    protected AbstractMessageBus(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void subscribe(String topic, Subscriber subscriber) {
+        subscribers.computeIfAbsent(topic, k -> new CopyOnWriteArrayList<>()).add(subscriber);
+    }
+
+    /**
+     * Hands a message from another node to the subscribers of its topic. A
+     * failing subscriber does not stop the others, nor the bus.
+     */
+    protected void deliver(String origin, String topic, String[] fields) {
+        received.incrementAndGet();
+        List<Subscriber> list = subscribers.get(topic);
+        if (list == null) {
+            return;
+        }
+        for (Subscriber subscriber : list) {
+            try {
+                subscriber.onMessage(origin, fields);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public String stats() {
+        return "node=" + nodeId + " published=" + published.get() + " received=" + received.get() + " dropped="
+                + dropped.get();
+    }
+}
@@ -0,0 +1,80 @@
+package fr.unilasalle.chat.cluster;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A bus between nodes of the same JVM, for running several servers in one
+ * process (tests, demos). Nodes on the same {@link Hub} see each other.
+ * Each node receives on its own thread, like over a network, so a
+ * publisher never runs another node's subscribers.
+ */
+public class LoopbackBus extends AbstractMessageBus {
+
+    /**
+     * The nodes that can reach each other.
+     */
+    public static class Hub {
+        private final List<LoopbackBus> nodes = new CopyOnWriteArrayList<>();
+    }
+
+    private final Hub hub;
+    private final ExecutorService inbox;
+
+    public LoopbackBus(String nodeId, Hub hub) {
+        super(nodeId);
+        this.hub = hub;
+        this.inbox = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "bus-" + nodeId);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void start() {
+        for (LoopbackBus other : hub.nodes) {
+            other.receive(nodeId(), NODE_UP, new String[0]);
+            receive(other.nodeId(), NODE_UP, new String[0]);
+        }
+        hub.nodes.add(this);
+    }
+
+    @Override
+    public void publish(String topic, String... fields) {
+        published.incrementAndGet();
+        for (LoopbackBus other : hub.nodes) {
+            if (other != this) {
+                other.receive(nodeId(), topic, fields);
+            }
+        }
+    }
+
+    @Override
+    public void send(String node, String topic, String... fields) {
+        published.incrementAndGet();
+        for (LoopbackBus other : hub.nodes) {
+            if (other != this && other.nodeId().equals(node)) {
+                other.receive(nodeId(), topic, fields);
+                return;
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    private void receive(String origin, String topic, String[] fields) {
+        inbox.execute(() -> deliver(origin, topic, fields));
+    }
+
+    @Override
+    public void close() {
+        if (hub.nodes.remove(this)) {
+            for (LoopbackBus other : hub.nodes) {
+                other.receive(nodeId(), NODE_DOWN, new String[0]);
+            }
+        }
+        inbox.shutdown();
+    }
+}
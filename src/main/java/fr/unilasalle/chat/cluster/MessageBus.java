@@ -0,0 +1,60 @@
+package fr.unilasalle.chat.cluster;
+
+import java.io.IOException;
+
+/**
+ * Publish/subscribe between the nodes of a cluster. A message published on
+ * a topic reaches the subscribers of that topic on every other node, never
+ * on the publishing node itself. Messages from one node arrive in the order
+ * they were published; a message published while a node is unreachable is
+ * lost for that node, which catches up on the state it needs when
+ * {@link #NODE_UP} is delivered again.
+ *
+ * Subscribers run on the bus threads and must not block.
+ */
+public interface MessageBus extends AutoCloseable {
+
+    /** Sent by the bus itself when another node becomes reachable; no fields. */
+    String NODE_UP = "node.up";
+    /** Sent by the bus itself when another node is gone; no fields. */
+    String NODE_DOWN = "node.down";
+
+    interface Subscriber {
+        /**
+         * @param origin id of the node that published the message
+         * @param fields shared with the other subscribers, do not modify
+         */
+        void onMessage(String origin, String[] fields);
+    }
+
+    /**
+     * Name of this node, unique in the cluster.
+     */
+    String nodeId();
+
+    /**
+     * Adds a subscriber; call before {@link #start()}.
+     */
+    void subscribe(String topic, Subscriber subscriber);
+
+    /**
+     * Sends the message to the other nodes, without waiting for them.
+     */
+    void publish(String topic, String... fields);
+
+    /**
+     * Sends the message to the subscribers of one node only; dropped if that
+     * node is unknown or unreachable.
+     */
+    void send(String node, String topic, String... fields);
+
+    void start() throws IOException;
+
+    /**
+     * Counters for /stats.
+     */
+    String stats();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,345 @@
+package fr.unilasalle.chat.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bus over TCP: every node listens on its own address and keeps one
+ * outgoing connection to each other node, on which it writes what it
+ * publishes. A message is encoded once and queued for every peer:
+ *
+ * <pre>
+ * topic (writeUTF) | field count (4 bytes) | fields, each length (4 bytes) + UTF-8
+ * </pre>
+ *
+ * The first message of a connection is NODE_UP with the sender's id as
+ * its only field. NODE_UP is delivered locally once the connections to
+ * and from a node are both up, NODE_DOWN once its incoming connection
+ * closes. A peer that is down is retried every second; what is published
+ * meanwhile is dropped for it.
+ * <p>
+ * An idle connection carries a heartbeat every second. An incoming
+ * connection silent for five seconds is closed. Once a node's incoming
+ * connection is gone, the outgoing one to it is closed as well and
+ * retried, since it is never read and could not notice on its own.
+ */
+public class TcpBus extends AbstractMessageBus {
+    private static final long RETRY_MILLIS = 1000;
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final int PEER_TIMEOUT_MILLIS = 5000;
+    private static final String HEARTBEAT = "bus.heartbeat";
+    private static final byte[] HEARTBEAT_MESSAGE = encode(HEARTBEAT, new String[0]);
+    // History pages are sent as one field per line
+    private static final int MAX_FIELDS = 64 * 1024;
+    private static final int MAX_FIELD_BYTES = 64 * 1024 * 1024;
+
+    private final InetSocketAddress listenAddress;
+    private final List<Peer> peers = new ArrayList<>();
+    private final List<Socket> inbound = new CopyOnWriteArrayList<>();
+    // Sender of each incoming connection, once its NODE_UP is read
+    private final Map<Socket, String> inboundOrigins = new ConcurrentHashMap<>();
+    private ServerSocket serverSocket;
+    private volatile boolean running = true;
+
+    /**
+     * @param listenAddress where the other nodes connect, also the id of this node
+     * @param peerAddresses the other nodes
+     * @param queueCapacity messages that may wait for a slow peer before new ones are dropped
+     */
+    public TcpBus(InetSocketAddress listenAddress, List<InetSocketAddress> peerAddresses, int queueCapacity) {
+        super(listenAddress.getHostString() + ":" + listenAddress.getPort());
+        this.listenAddress = listenAddress;
+        for (InetSocketAddress address : peerAddresses) {
+            peers.add(new Peer(address, queueCapacity));
+        }
+    }
+
+    /**
+     * Parses "host:port".
+     */
+    public static InetSocketAddress parseAddress(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected host:port, got " + hostPort);
+        }
+        return new InetSocketAddress(hostPort.substring(0, colon).trim(),
+                Integer.parseInt(hostPort.substring(colon + 1).trim()));
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(listenAddress.getPort()));
+        Thread acceptor = new Thread(this::acceptLoop, "bus-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers) {
+            Thread t = new Thread(peer, "bus-out-" + peer.address.getPort());
+            t.setDaemon(true);
+            t.start();
+        }
+        System.out.println("Cluster bus " + nodeId() + " listening, " + peers.size() + " peers");
+    }
+
+    @Override
+    public void publish(String topic, String... fields) {
+        byte[] message = encode(topic, fields);
+        published.incrementAndGet();
+        for (Peer peer : peers) {
+            peer.offer(message);
+        }
+    }
+
+    @Override
+    public void send(String node, String topic, String... fields) {
+        published.incrementAndGet();
+        for (Peer peer : peers) {
+            if (peer.id.equals(node)) {
+                peer.offer(encode(topic, fields));
+                return;
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    private static byte[] encode(String topic, String[] fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(topic);
+            out.writeInt(fields.length);
+            for (String field : fields) {
+                byte[] b = field.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(PEER_TIMEOUT_MILLIS);
+                inbound.add(socket);
+                Thread t = new Thread(() -> readLoop(socket), "bus-in-" + socket.getPort());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Cluster bus accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the messages of one peer until its connection closes, then
+     * reports it gone.
+     */
+    private void readLoop(Socket socket) {
+        String origin = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                String topic = in.readUTF();
+                int count = in.readInt();
+                if (count < 0 || count > MAX_FIELDS) {
+                    throw new IOException("Bad field count " + count);
+                }
+                String[] fields = new String[count];
+                for (int i = 0; i < count; i++) {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_FIELD_BYTES) {
+                        throw new IOException("Bad field length " + length);
+                    }
+                    byte[] b = new byte[length];
+                    in.readFully(b);
+                    fields[i] = new String(b, StandardCharsets.UTF_8);
+                }
+                if (origin == null) {
+                    if (!topic.equals(NODE_UP) || count != 1) {
+                        throw new IOException("Expected NODE_UP first");
+                    }
+                    // NODE_UP is for our own connection to it, see Peer
+                    origin = fields[0];
+                    inboundOrigins.put(socket, origin);
+                } else if (!topic.equals(HEARTBEAT)) {
+                    deliver(origin, topic, fields);
+                }
+            }
+        } catch (EOFException e) {
+            // Peer closed
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("Cluster bus peer " + (origin != null ? origin : socket.getRemoteSocketAddress())
+                        + " lost: " + e.getMessage());
+            }
+        } finally {
+            inbound.remove(socket);
+            inboundOrigins.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            // A connection left over from before a restart may close after the new one is up
+            if (origin != null && running && !inboundOrigins.containsValue(origin)) {
+                deliver(origin, NODE_DOWN, new String[0]);
+                for (Peer peer : peers) {
+                    if (peer.id.equals(origin)) {
+                        peer.close();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Socket socket : inbound) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+    }
+
+    /**
+     * The outgoing connection to one node and the messages waiting for it.
+     */
+    private class Peer implements Runnable {
+        final InetSocketAddress address;
+        final String id;
+        final BlockingQueue<byte[]> queue;
+        volatile boolean connected;
+        volatile Socket socket;
+
+        Peer(InetSocketAddress address, int capacity) {
+            this.address = address;
+            this.id = address.getHostString() + ":" + address.getPort();
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void offer(byte[] message) {
+            if (!connected || !queue.offer(message)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try (Socket s = new Socket()) {
+                    s.connect(address, (int) RETRY_MILLIS);
+                    s.setTcpNoDelay(true);
+                    socket = s;
+                    BufferedOutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+                    out.write(encode(NODE_UP, new String[] { nodeId() }));
+                    out.flush();
+                    awaitConnectionBack(out);
+                    queue.clear();
+                    connected = true;
+                    deliver(id, NODE_UP, new String[0]);
+                    while (running) {
+                        byte[] message = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                        if (message == null) {
+                            message = HEARTBEAT_MESSAGE;
+                        }
+                        out.write(message);
+                        // Batch what is already queued into one write
+                        while ((message = queue.poll()) != null) {
+                            out.write(message);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    if (connected) {
+                        System.out.println("Cluster bus lost " + address + ": " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    socket = null;
+                }
+                sleepBeforeRetry();
+            }
+        }
+
+        /**
+         * Waits for the node to connect to us. A stopped process still
+         * completes the connections waiting in its backlog, only one that
+         * runs connects back.
+         */
+        private void awaitConnectionBack(BufferedOutputStream out) throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + PEER_TIMEOUT_MILLIS;
+            long nextHeartbeat = 0;
+            while (!inboundOrigins.containsValue(id)) {
+                long now = System.currentTimeMillis();
+                if (!running || now >= deadline) {
+                    throw new IOException("no connection back from " + id);
+                }
+                if (now >= nextHeartbeat) {
+                    out.write(HEARTBEAT_MESSAGE);
+                    out.flush();
+                    nextHeartbeat = now + HEARTBEAT_MILLIS;
+                }
+                Thread.sleep(50);
+            }
+        }
+
+        private void sleepBeforeRetry() {
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package fr.unilasalle.chat.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads text lines and packets from a blocking stream. Both come out of the
+ * same buffer, so a connection can read lines, negotiate the binary
+ * protocol and go on with packets without losing bytes read ahead.
+ */
+public class FrameReader {
+    private static final int INITIAL_BUFFER = 16 * 1024;
+
+    private final InputStream in;
+    private final int maxBytes;
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+    private int position;
+    private int limit;
+
+    /**
+     * @param maxBytes longest line or packet accepted
+     */
+    public FrameReader(InputStream in, int maxBytes) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Next line without its terminator (UTF-8, a trailing '\r' is dropped),
+     * or null at the end of the stream.
+     */
+    public String readLine() throws IOException {
+        int scanned = position;
+        while (true) {
+            for (int i = scanned; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    String line = decode(position, i);
+                    position = i + 1;
+                    return line;
+                }
+            }
+            scanned = limit;
+            if (limit - position > maxBytes) {
+                throw new ProtocolException("Line longer than " + maxBytes + " bytes");
+            }
+            int shift = position;
+            if (!fill(limit - position + 1)) {
+                if (position == limit) {
+                    return null;
+                }
+                // Last line without terminator
+                String line = decode(position, limit);
+                position = limit;
+                return line;
+            }
+            scanned -= shift - position;
+        }
+    }
+
+    /**
+     * Next packet, or null at the end of the stream.
+     */
+    public Packet readPacket() throws IOException {
+        if (!fill(Packet.HEADER_BYTES)) {
+            return null;
+        }
+        int length = ((buffer[position + 1] & 0xff) << 24) | ((buffer[position + 2] & 0xff) << 16)
+                | ((buffer[position + 3] & 0xff) << 8) | (buffer[position + 4] & 0xff);
+        if (length < 0 || length > maxBytes) {
+            throw new ProtocolException("Packet longer than " + maxBytes + " bytes");
+        }
+        if (!fill(Packet.HEADER_BYTES + length)) {
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.wrap(buffer, position, Packet.HEADER_BYTES + length);
+        Packet packet = Packet.decode(frame);
+        position += Packet.HEADER_BYTES + length;
+        if (buffer.length > 4 * INITIAL_BUFFER && position == limit) {
+            // Don't keep a big upload buffer around for an idle session
+            buffer = new byte[INITIAL_BUFFER];
+            position = 0;
+            limit = 0;
+        }
+        return packet;
+    }
+
+    private String decode(int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads until at least {@code needed} bytes are buffered. The buffered
+     * bytes may move to the start of the buffer. Returns false at the end
+     * of the stream.
+     */
+    private boolean fill(int needed) throws IOException {
+        if (limit - position >= needed) {
+            return true;
+        }
+        if (position + needed > buffer.length) {
+            byte[] target = needed > buffer.length ? new byte[Math.max(needed, buffer.length * 2)] : buffer;
+            System.arraycopy(buffer, position, target, 0, limit - position);
+            buffer = target;
+            limit -= position;
+            position = 0;
+        }
+        while (limit - position < needed) {
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n < 0) {
+                return false;
+            }
+            limit += n;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,97 @@
+package fr.unilasalle.chat.protocol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Message types of the binary protocol. Each one stands for a line of the
+ * text protocol: its keyword followed by {@code fields} space-separated
+ * fields, the last one taking the rest of the line (like split(" ", n + 1)).
+ * The field at {@code binaryField}, if any, is Base64 in the text protocol
+ * and raw bytes in the binary one.
+ *
+ * Codes are part of the wire format: add new types, never renumber.
+ * Lines without a type of their own travel as LINE.
+ */
+public enum Opcode {
+    /** Any line, as is. */
+    LINE(0, null, 1, -1),
+
+    // Client to server, fields as split by the server: "/cmd <arg> <rest>"
+    LOGIN(1, "/login", 2, -1),
+    REGISTER(2, "/register", 2, -1),
+    JOIN_CHANNEL(3, "/join", 2, -1),
+    SEND_PRIVATE(4, "/privmsg", 2, -1),
+    SET_STATUS(5, "/status", 2, -1),
+    SET_MESSAGE(6, "/setmsg", 2, -1),
+    HISTORY(7, "/history", 2, -1),
+    PRIVATE_HISTORY(8, "/privhistory", 2, -1),
+    SEARCH(9, "/search", 2, -1),
+    UPLOAD(10, "/upload", 2, 1),
+    DOWNLOAD(11, "/download", 2, -1),
+    SET_AVATAR(12, "/setavatar", 2, 0),
+    GET_AVATAR(13, "/getavatar", 2, -1),
+    TRANSFER(14, "/transfer", 2, -1),
+
+    // Server to client
+    CHANMSG(64, "CHANMSG", 2, -1),
+    PRIVMSG(65, "PRIVMSG", 2, -1),
+    PRESENCE(66, "PRESENCE", 3, -1),
+    JOIN(67, "JOIN", 4, -1),
+    PART(68, "PART", 2, -1),
+    USERLIST(69, "USERLIST", 2, -1),
+    ALLUSERS(70, "ALLUSERS", 1, -1),
+    CHANNELLIST(71, "CHANNELLIST", 1, -1),
+    FRIENDLIST(72, "FRIENDLIST", 1, -1),
+    HISTORY_ITEM(73, "HISTORY_ITEM", 3, -1),
+    PRIVHISTORY_ITEM(74, "PRIVHISTORY_ITEM", 3, -1),
+    SEARCH_RESULT(75, "SEARCH_RESULT", 1, -1),
+    FILE(76, "FILE", 2, -1),
+    FILEDOWNLOAD(77, "FILEDOWNLOAD", 2, 1),
+    AVATAR_DATA(78, "AVATAR_DATA", 2, 1),
+    AVATAR_VERSION(79, "AVATAR_VERSION", 3, 2),
+    AVATAR_NOTMODIFIED(80, "AVATAR_NOTMODIFIED", 2, -1),
+    AVATAR_VERSIONS(81, "AVATAR_VERSIONS", 1, -1),
+    AVATAR_UPDATE(82, "AVATAR_UPDATE", 1, -1),
+    CHANSEQ(83, "CHANSEQ", 3, -1),
+    LOGIN_BUNDLE(84, "LOGIN_BUNDLE", 1, 0);
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+    private static final Map<String, Opcode> BY_KEYWORD = new HashMap<>();
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+            if (opcode.keyword != null) {
+                BY_KEYWORD.put(opcode.keyword, opcode);
+            }
+        }
+    }
+
+    public final int code;
+    /** First word of the equivalent text line, null for LINE. */
+    public final String keyword;
+    public final int fields;
+    public final int binaryField;
+
+    Opcode(int code, String keyword, int fields, int binaryField) {
+        this.code = code;
+        this.keyword = keyword;
+        this.fields = fields;
+        this.binaryField = binaryField;
+    }
+
+    /**
+     * The type with this code, or null if unknown.
+     */
+    public static Opcode forCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+
+    /**
+     * The type whose keyword is {@code keyword} (case-sensitive), or null.
+     */
+    public static Opcode forKeyword(String keyword) {
+        return BY_KEYWORD.get(keyword);
+    }
+}
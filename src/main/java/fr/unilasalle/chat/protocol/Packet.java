@@ -0,0 +1,170 @@
+package fr.unilasalle.chat.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One message of the binary protocol:
+ *
+ * <pre>
+ * opcode (1 byte) | length (4 bytes) | length bytes of fields
+ * field = length (4 bytes) | bytes (UTF-8 text, or raw for the binary field)
+ * </pre>
+ *
+ * Integers are big-endian. Fields may contain spaces and newlines; a
+ * message with fewer fields than its opcode allows is the text line with
+ * fewer words. Every packet converts to and from its text line, so code
+ * written for the text protocol keeps working on packets.
+ *
+ * A connection starts with the text protocol. The client asks for the
+ * binary one by sending the line {@link #REQUEST} and sends nothing else
+ * until the server answers: {@link #ACCEPTED} means every byte after both
+ * lines is packets, anything else (older servers) means text goes on.
+ */
+public final class Packet {
+    public static final String REQUEST = "/protocol binary";
+    public static final String ACCEPTED = "PROTOCOL binary";
+    /** Opcode and length. */
+    public static final int HEADER_BYTES = 5;
+
+    private final Opcode opcode;
+    // String, or Payload for the binary field
+    private final Object[] fields;
+
+    /**
+     * @param fields Strings, and a Payload at the opcode's binary field
+     */
+    public Packet(Opcode opcode, Object... fields) {
+        this.opcode = opcode;
+        this.fields = fields;
+    }
+
+    public Opcode opcode() {
+        return opcode;
+    }
+
+    public int size() {
+        return fields.length;
+    }
+
+    /**
+     * Field {@code i} as text; Base64 for the binary field.
+     */
+    public String text(int i) {
+        Object field = fields[i];
+        return field instanceof Payload ? ((Payload) field).base64() : (String) field;
+    }
+
+    /**
+     * Field {@code i} as bytes; raw for the binary field, UTF-8 otherwise.
+     */
+    public byte[] bytes(int i) {
+        Object field = fields[i];
+        return field instanceof Payload ? ((Payload) field).bytes() : ((String) field).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The packet standing for a text line: its typed form if the first word
+     * is a known keyword (and the binary field is valid Base64), LINE
+     * otherwise.
+     */
+    public static Packet fromLine(String line) {
+        int space = line.indexOf(' ');
+        Opcode opcode = Opcode.forKeyword(space < 0 ? line : line.substring(0, space));
+        if (opcode == null) {
+            return new Packet(Opcode.LINE, line);
+        }
+        Object[] fields = space < 0 ? new Object[0] : line.substring(space + 1).split(" ", opcode.fields);
+        // split() returns a String[], which can't hold the Payload
+        fields = Arrays.copyOf(fields, fields.length, Object[].class);
+        if (opcode.binaryField >= 0 && opcode.binaryField < fields.length) {
+            try {
+                fields[opcode.binaryField] = Payload.fromBase64((String) fields[opcode.binaryField]);
+            } catch (IllegalArgumentException e) {
+                return new Packet(Opcode.LINE, line);
+            }
+        }
+        return new Packet(opcode, fields);
+    }
+
+    /**
+     * The equivalent line of the text protocol.
+     */
+    public String toLine() {
+        if (opcode == Opcode.LINE) {
+            return text(0);
+        }
+        StringBuilder sb = new StringBuilder(opcode.keyword);
+        for (int i = 0; i < fields.length; i++) {
+            sb.append(' ').append(text(i));
+        }
+        return sb.toString();
+    }
+
+    public byte[] encode() {
+        byte[][] raw = new byte[fields.length][];
+        int length = 0;
+        for (int i = 0; i < fields.length; i++) {
+            raw[i] = bytes(i);
+            length += 4 + raw[i].length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + length);
+        out.put((byte) opcode.code).putInt(length);
+        for (byte[] field : raw) {
+            out.putInt(field.length).put(field);
+        }
+        return out.array();
+    }
+
+    /**
+     * Reads the packet starting at the buffer's position, which must hold
+     * all of it. The position is moved past the packet.
+     */
+    public static Packet decode(ByteBuffer in) throws ProtocolException {
+        int code = in.get() & 0xff;
+        int length = in.getInt();
+        Opcode opcode = Opcode.forCode(code);
+        if (opcode == null) {
+            throw new ProtocolException("Unknown opcode " + code);
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new ProtocolException("Bad packet length " + length);
+        }
+        int end = in.position() + length;
+        Object[] fields = new Object[opcode.fields];
+        int count = 0;
+        while (in.position() < end) {
+            if (count == fields.length || end - in.position() < 4) {
+                throw new ProtocolException("Bad fields in " + opcode);
+            }
+            int size = in.getInt();
+            if (size < 0 || size > end - in.position()) {
+                throw new ProtocolException("Bad fields in " + opcode);
+            }
+            if (count == opcode.binaryField) {
+                byte[] data = new byte[size];
+                in.get(data);
+                fields[count] = new Payload(data);
+            } else if (in.hasArray()) {
+                fields[count] = new String(in.array(), in.arrayOffset() + in.position(), size, StandardCharsets.UTF_8);
+                in.position(in.position() + size);
+            } else {
+                byte[] data = new byte[size];
+                in.get(data);
+                fields[count] = new String(data, StandardCharsets.UTF_8);
+            }
+            count++;
+        }
+        if (opcode == Opcode.LINE && count != 1) {
+            throw new ProtocolException("LINE needs one field");
+        }
+        if (count < fields.length) {
+            Object[] present = new Object[count];
+            System.arraycopy(fields, 0, present, 0, count);
+            fields = present;
+        }
+        return new Packet(opcode, fields);
+    }
+}
@@ -0,0 +1,48 @@
+package fr.unilasalle.chat.protocol;
+
+import java.util.Base64;
+
+/**
+ * Binary field of a packet (an image, a file). Sent as is to binary
+ * clients; its Base64 form for text clients is computed once, when first
+ * needed, so a payload shared by many messages is encoded at most once.
+ */
+public final class Payload {
+    private final byte[] bytes;
+    private volatile String base64;
+
+    public Payload(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Decodes a Base64 field of the text protocol.
+     *
+     * @throws IllegalArgumentException if {@code base64} is not valid Base64
+     */
+    public static Payload fromBase64(String base64) {
+        Payload payload = new Payload(Base64.getDecoder().decode(base64));
+        payload.base64 = base64;
+        return payload;
+    }
+
+    /**
+     * The raw bytes. Shared, do not modify.
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public String base64() {
+        String b = base64;
+        if (b == null) {
+            b = Base64.getEncoder().encodeToString(bytes);
+            base64 = b;
+        }
+        return b;
+    }
+}
@@ -0,0 +1,161 @@
+package fr.unilasalle.chat.server;
+
+import fr.unilasalle.chat.protocol.Payload;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+/**
+ * Avatars ready to send: the original image and thumbnails at the sizes the
+ * client displays, each keeping its Base64 for text clients once computed,
+ * so a /getavatar does no disk read, encoding or scaling once an avatar is
+ * cached. Entries are keyed by avatar
+ * file name, which changes on every /setavatar and serves as the version.
+ * The least recently used avatars are dropped once the cache holds more
+ * than its byte budget.
+ */
+public class AvatarCache {
+    public static final String DEFAULT_AVATAR = "default.png";
+    /** Thumbnail sizes in pixels, the first one is used when none is asked. */
+    static final int[] SIZES = { 96, 50 };
+
+    public static final class Avatar {
+        final String version;
+        final Payload original;
+        final Payload[] thumbnails;
+        final long bytes;
+
+        Avatar(String version, Payload original, Payload[] thumbnails) {
+            this.version = version;
+            this.original = original;
+            this.thumbnails = thumbnails;
+            long total = original.length();
+            for (Payload thumbnail : thumbnails) {
+                total += thumbnail.length();
+            }
+            // Room for the Base64 of everything
+            this.bytes = total + (total + 2) / 3 * 4;
+        }
+
+        /**
+         * PNG at {@code size} pixels, or the largest thumbnail if that size
+         * is not rendered.
+         */
+        Payload thumbnail(int size) {
+            for (int i = 0; i < SIZES.length; i++) {
+                if (SIZES[i] == size) {
+                    return thumbnails[i];
+                }
+            }
+            return thumbnails[0];
+        }
+    }
+
+    private final BlobStore blobStore;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Avatar> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+
+    public AvatarCache(BlobStore blobStore, long maxBytes) {
+        this.blobStore = blobStore;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The avatar stored as {@code name}, falling back to the default avatar
+     * when there is none. Returns null only if the default is missing too.
+     */
+    public Avatar get(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            name = DEFAULT_AVATAR;
+        }
+        Avatar avatar = lookup(name);
+        if (avatar == null) {
+            avatar = load(name);
+        }
+        if (avatar == null && !name.equals(DEFAULT_AVATAR)) {
+            return get(DEFAULT_AVATAR);
+        }
+        return avatar;
+    }
+
+    /**
+     * Counts a revalidation answered without sending the image.
+     */
+    void recordNotModified() {
+        notModified.incrementAndGet();
+    }
+
+    private synchronized Avatar lookup(String name) {
+        Avatar avatar = entries.get(name);
+        if (avatar != null) {
+            hits.incrementAndGet();
+        }
+        return avatar;
+    }
+
+    private Avatar load(String name) {
+        misses.incrementAndGet();
+        Path file = blobStore.resolve("avatars/" + name);
+        if (file == null) {
+            return null;
+        }
+        // Decoded and scaled outside the lock, a concurrent load of the same
+        // avatar just does the work twice
+        Avatar avatar;
+        try {
+            byte[] data = Files.readAllBytes(file);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+            Payload[] thumbnails = new Payload[SIZES.length];
+            for (int i = 0; i < SIZES.length; i++) {
+                thumbnails[i] = image != null ? scale(image, SIZES[i]) : new Payload(data);
+            }
+            avatar = new Avatar(name, new Payload(data), thumbnails);
+        } catch (IOException e) {
+            System.out.println("Error loading avatar " + name + ": " + e.getMessage());
+            return null;
+        }
+        synchronized (this) {
+            Avatar previous = entries.put(name, avatar);
+            if (previous != null) {
+                bytes -= previous.bytes;
+            }
+            bytes += avatar.bytes;
+            java.util.Iterator<Map.Entry<String, Avatar>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && entries.size() > 1 && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().bytes;
+                eldest.remove();
+            }
+        }
+        return avatar;
+    }
+
+    private static Payload scale(BufferedImage image, int size) throws IOException {
+        BufferedImage scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, size, size, null);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(scaled, "png", out);
+        return new Payload(out.toByteArray());
+    }
+
+    public synchronized String stats() {
+        return "entries=" + entries.size() + " bytes=" + bytes + " max=" + maxBytes + " hits=" + hits.get()
+                + " misses=" + misses.get() + " notModified=" + notModified.get();
+    }
+}
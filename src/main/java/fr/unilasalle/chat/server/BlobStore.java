@@ -0,0 +1,244 @@
+package fr.unilasalle.chat.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Content-addressed storage for shared files and avatars. Every content is
+ * stored once, as blobs/<first two hex digits>/<sha-256>, whatever the
+ * number of names pointing at it. Names ("transfer/<file id>",
+ * "avatars/<file>") and reference counts live in the database; a blob is
+ * deleted when its last name is released.
+ *
+ * Storing a content and deleting it are serialized per shard (the first
+ * two hex digits of the hash), so a blob cannot be deleted between the
+ * check that it exists and the new reference to it. Different contents
+ * are stored and released in parallel.
+ *
+ * Names stored before the blob store existed are still found at their old
+ * path under the working directory.
+ */
+public class BlobStore {
+    private final DatabaseService db;
+    private final Path root;
+    private final Path staging;
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong dedupeHits = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final ReentrantLock[] shardLocks = new ReentrantLock[256];
+
+    public BlobStore(DatabaseService db, Path root) throws IOException {
+        this.db = db;
+        this.root = root.toAbsolutePath();
+        this.staging = this.root.resolve("staging");
+        Files.createDirectories(staging);
+        for (int i = 0; i < shardLocks.length; i++) {
+            shardLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Directory for files being received, on the same file system as the
+     * blobs so they can be moved in without a copy.
+     */
+    public Path getStagingDirectory() {
+        return staging;
+    }
+
+    /**
+     * Stores {@code data} under {@code name}.
+     */
+    public void put(String name, byte[] data) throws IOException {
+        String hash = sha256(data);
+        Path temp = Files.createTempFile(staging, "put", ".tmp");
+        try {
+            Files.write(temp, data);
+            commit(name, temp, hash, data.length);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Stores the content of {@code file} under {@code name}. The file is
+     * moved into the store, or deleted if the same content is already there.
+     * {@code sha256} may be null if the caller has not hashed it.
+     */
+    public void putFile(String name, Path file, String sha256) throws IOException {
+        String hash = sha256 != null ? sha256 : sha256(file);
+        try {
+            commit(name, file, hash, Files.size(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void commit(String name, Path file, String hash, long size) throws IOException {
+        Path blob = blobPath(hash);
+        stored.incrementAndGet();
+        String orphan;
+        ReentrantLock lock = shardLock(hash);
+        lock.lock();
+        try {
+            if (Files.exists(blob)) {
+                dedupeHits.incrementAndGet();
+                bytesSaved.addAndGet(size);
+            } else {
+                Files.createDirectories(blob.getParent());
+                Files.move(file, blob, StandardCopyOption.ATOMIC_MOVE);
+            }
+            orphan = db.bindBlob(name, hash, size);
+        } catch (SQLException e) {
+            throw new IOException("Could not record " + name, e);
+        } finally {
+            lock.unlock();
+        }
+        // The previous content of the name, under its own shard lock
+        deleteIfOrphan(orphan);
+    }
+
+    /**
+     * File holding the content of {@code name}, or null if there is none.
+     */
+    public Path resolve(String name) {
+        String hash = db.getBlobHash(name);
+        if (hash != null) {
+            Path blob = blobPath(hash);
+            return Files.exists(blob) ? blob : null;
+        }
+        Path legacy = Paths.get(name);
+        return Files.isRegularFile(legacy) ? legacy : null;
+    }
+
+    /**
+     * Forgets {@code name}, deleting its content if nothing else uses it.
+     */
+    public void release(String name) {
+        try {
+            deleteIfOrphan(db.unbindBlob(name));
+        } catch (IOException | SQLException e) {
+            System.out.println("Error releasing " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the blob if it still has no reference: a name may have been
+     * bound to it since its count reached zero.
+     */
+    private void deleteIfOrphan(String hash) throws IOException {
+        if (hash == null) {
+            return;
+        }
+        ReentrantLock lock = shardLock(hash);
+        lock.lock();
+        try {
+            if (db.deleteBlob(hash)) {
+                Files.deleteIfExists(blobPath(hash));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes blobs without references, such as those left behind by a
+     * crash between writing a blob and recording it. Returns the number of
+     * files removed. Only safe before transfers are accepted.
+     */
+    public int collectGarbage() {
+        int removed = 0;
+        try {
+            Set<String> referenced = db.getReferencedBlobs();
+            try (DirectoryStream<Path> shards = Files.newDirectoryStream(root)) {
+                for (Path shard : shards) {
+                    if (shard.equals(staging) || !Files.isDirectory(shard)) {
+                        continue;
+                    }
+                    try (DirectoryStream<Path> blobs = Files.newDirectoryStream(shard)) {
+                        for (Path blob : blobs) {
+                            String hash = blob.getFileName().toString();
+                            if (!referenced.contains(hash)) {
+                                db.deleteBlob(hash);
+                                Files.deleteIfExists(blob);
+                                removed++;
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException | SQLException e) {
+            System.out.println("Error collecting blobs: " + e.getMessage());
+        }
+        return removed;
+    }
+
+    /**
+     * Clears the staging area. Only safe before transfers are accepted.
+     */
+    public void clearStaging() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(staging)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            System.out.println("Error clearing staging: " + e.getMessage());
+        }
+    }
+
+    public String stats() {
+        long[] usage = db.getBlobUsage();
+        return "names=" + usage[0] + " blobs=" + usage[1] + " logicalBytes=" + usage[2] + " storedBytes=" + usage[3]
+                + " puts=" + stored.get() + " dedupeHits=" + dedupeHits.get() + " bytesSaved=" + bytesSaved.get();
+    }
+
+    private ReentrantLock shardLock(String hash) {
+        return shardLocks[Integer.parseInt(hash.substring(0, 2), 16)];
+    }
+
+    private Path blobPath(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static String sha256(byte[] data) {
+        MessageDigest digest = newDigest();
+        digest.update(data);
+        return toHex(digest);
+    }
+
+    private static String sha256(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return toHex(digest);
+    }
+}
@@ -0,0 +1,97 @@
+package fr.unilasalle.chat.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Numbers the messages of one channel and delivers them in id order.
+ * The lock is held only to give a message its id and queue it for the
+ * writer. A delivery waits until every earlier message of the channel has
+ * been delivered or dropped. Whichever thread finds the oldest message
+ * ready delivers it and the ready ones after it. Delivery only queues
+ * frames, so a slow socket does not hold up the channel.
+ */
+final class ChannelSequencer {
+
+    /** A numbered message waiting for its turn. */
+    static final class Slot {
+        final ChatMessage message;
+        final CompletableFuture<Void> committed;
+        // Null when the message is dropped
+        private Runnable delivery;
+        private boolean ready;
+
+        private Slot(ChatMessage message, CompletableFuture<Void> committed) {
+            this.message = message;
+            this.committed = committed;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Slot> pending = new ArrayDeque<>();
+    private boolean draining;
+
+    /**
+     * Gives the message the next id of the channel and queues it for the
+     * writer. The caller must then pass the slot to {@link #ready}.
+     */
+    Slot append(MessageWriter writer, String channel, String userName, String content) {
+        lock.lock();
+        try {
+            ChatMessage message = writer.newChannelMessage(channel, userName, content);
+            Slot slot = new Slot(message, writer.save(message));
+            pending.add(slot);
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the slot as ready and runs the deliveries that are now in order.
+     *
+     * @param delivery run in id order, null to drop the message
+     */
+    void ready(Slot slot, Runnable delivery) {
+        lock.lock();
+        try {
+            slot.delivery = delivery;
+            slot.ready = true;
+        } finally {
+            lock.unlock();
+        }
+        drain();
+    }
+
+    private void drain() {
+        while (true) {
+            Slot next;
+            lock.lock();
+            try {
+                next = pending.peek();
+                if (draining || next == null || !next.ready) {
+                    return;
+                }
+                pending.poll();
+                draining = true;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                if (next.delivery != null) {
+                    next.delivery.run();
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                lock.lock();
+                try {
+                    draining = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package fr.unilasalle.chat.server;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * A channel or private message accepted by the server, with the id it is
+ * stored under. Ids are handed out by MessageWriter before the row is written,
+ * so the message can be delivered and referenced right away.
+ */
+public final class ChatMessage {
+    private static final DateTimeFormatter SQL_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneOffset.UTC);
+
+    final long id;
+    final String channel; // null for a private message
+    final String sender;
+    final String receiver; // null for a channel message
+    final String content;
+    final long timestamp; // epoch millis
+
+    private ChatMessage(long id, String channel, String sender, String receiver, String content, long timestamp) {
+        this.id = id;
+        this.channel = channel;
+        this.sender = sender;
+        this.receiver = receiver;
+        this.content = content;
+        this.timestamp = timestamp;
+    }
+
+    static ChatMessage channelMessage(long id, String channel, String sender, String content) {
+        return new ChatMessage(id, channel, sender, null, content, System.currentTimeMillis());
+    }
+
+    static ChatMessage privateMessage(long id, String sender, String receiver, String content) {
+        return new ChatMessage(id, null, sender, receiver, content, System.currentTimeMillis());
+    }
+
+    boolean isPrivate() {
+        return receiver != null;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * UTC "yyyy-MM-dd HH:mm:ss", the format of SQLite's CURRENT_TIMESTAMP.
+     */
+    String sqlTimestamp() {
+        return SQL_TIMESTAMP.format(Instant.ofEpochMilli(timestamp));
+    }
+}
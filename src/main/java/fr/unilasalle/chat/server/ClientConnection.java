@@ -0,0 +1,31 @@
+package fr.unilasalle.chat.server;
+
+/**
+ * Outbound side of a client session. Frames go through a bounded OutboundQueue
+ * and are written in batches by the transport: a flush task for the blocking
+ * modes, the session's event loop for the NIO mode.
+ */
+interface ClientConnection {
+
+    /**
+     * Queues one protocol line. The frame may be queued for other clients
+     * too and must be written as is.
+     * canWait is true when called by the session itself, see OutboundQueue.offer().
+     */
+    void send(Frame frame, boolean canWait);
+
+    /**
+     * Frames sent from now on use the binary protocol.
+     */
+    void setBinary();
+
+    /**
+     * The lines waiting to be written, for metrics.
+     */
+    OutboundQueue outbound();
+
+    /**
+     * Closes the underlying socket. Safe to call several times.
+     */
+    void close();
+}
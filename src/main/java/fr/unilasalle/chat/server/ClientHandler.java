@@ -1,24 +1,42 @@
 package fr.unilasalle.chat.server;
 
+import fr.unilasalle.chat.protocol.FrameReader;
+import fr.unilasalle.chat.protocol.Opcode;
+import fr.unilasalle.chat.protocol.Packet;
+import fr.unilasalle.chat.protocol.Payload;
 import java.io.*;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.util.Base64;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable {
     private Socket socket;
     private Server server;
-    private PrintWriter writer;
+    private volatile ClientConnection connection;
     private String userName;
+    private volatile boolean disconnected = false;
+    // Channel messages carry their sequence number, see /seq
+    private volatile boolean sequenced;
+    // The login is answered with one LOGIN_BUNDLE frame, see /bundle
+    private boolean bundled;
+    // Thread currently running this session's own code (see sendMessage)
+    private volatile Thread sessionThread;
 
     public ClientHandler(Socket socket, Server server) {
         this.socket = socket;
         this.server = server;
     }
 
-    private String channel = "general";
+    /**
+     * Creates a handler driven by an NIO event loop: run() is never called,
+     * lines are pushed through handleLine() instead.
+     */
+    ClientHandler(ClientConnection connection, Server server) {
+        this.connection = connection;
+        this.server = server;
+    }
+
+    private volatile String channel = "general";
     private String status = "online";
     private String statusMessage = "";
     private String avatar = null;
@@ -58,539 +76,756 @@ public class ClientHandler extends Thread {
     public void run() {
         try {
             InputStream input = socket.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+            FrameReader reader = new FrameReader(input, ServerConfig.MAX_LINE_BYTES);
 
-            OutputStream output = socket.getOutputStream();
-            writer = new PrintWriter(output, true);
+            connection = new SocketConnection(socket, server.getFlushExecutor());
+            sessionThread = Thread.currentThread();
+            onConnect();
 
-            printUsers();
+            String clientMessage;
+            while ((clientMessage = reader.readLine()) != null) {
+                handleLine(clientMessage);
+                if (clientMessage.equals(Packet.REQUEST)) {
+                    // The client waits for the answer, whatever follows is packets
+                    Packet packet;
+                    while ((packet = reader.readPacket()) != null) {
+                        handlePacket(packet);
+                    }
+                    break;
+                }
+            }
 
-            String userName;
-            String prompt = "AUTH_REQUIRED"; // Use strict protocol keyword
-            writer.println(prompt);
+        } catch (IOException ex) {
+            System.out.println("Error in ClientHandler: " + ex.getMessage());
+        } finally {
+            onDisconnect();
+        }
+    }
 
-            while (true) {
-                String authLine = reader.readLine();
-                if (authLine == null)
-                    return;
+    /**
+     * Called once the transport is ready, before any line is read.
+     */
+    void onConnect() {
+        Thread previous = sessionThread;
+        sessionThread = Thread.currentThread();
+        try {
+            printUsers();
+            sendMessage("AUTH_REQUIRED"); // Use strict protocol keyword
+        } finally {
+            sessionThread = previous;
+        }
+    }
 
-                String[] parts = authLine.split(" ", 3);
-                String command = parts[0].toLowerCase();
+    /**
+     * Entry point for every line received from the client, whatever the
+     * transport (blocking socket thread or NIO event loop). Lines of one
+     * session are always delivered one at a time and in order.
+     */
+    void handleLine(String clientMessage) {
+        Thread previous = sessionThread;
+        sessionThread = Thread.currentThread();
+        try {
+            dispatchLine(clientMessage);
+        } finally {
+            sessionThread = previous;
+        }
+    }
 
-                if (command.equals("/register") && parts.length == 3) {
-                    if (server.getDbService().register(parts[1], parts[2])) {
-                        writer.println("REGISTRATION_SUCCESS");
-                    } else {
-                        writer.println("REGISTRATION_FAIL");
-                    }
-                } else if (command.equals("/login") && parts.length == 3) {
-                    if (server.getDbService().authenticate(parts[1], parts[2])) {
-                        // Check if already online
-                        if (server.addUserName(parts[1])) {
-                            this.userName = parts[1];
-                            this.avatar = server.getDbService().getAvatar(this.userName); // Load avatar
-                            this.statusMessage = server.getDbService().getStatusMessage(this.userName); // Load status message
-                            
-                            server.broadcastAllUsers(); // Update global list now that name is set
-                            System.out.println("DEBUG: triggering friend status update for " + this.userName);
-                            server.broadcastFriendStatusUpdate(this.userName);
-
-                            // Send login success with avatar info?
-                            String b64Msg = Base64.getEncoder().encodeToString((this.statusMessage != null ? this.statusMessage : "").getBytes());
-                            writer.println("LOGIN_SUCCESS " + this.userName + " " + (this.avatar != null ? this.avatar : "default.png") + " " + b64Msg);
-                            writer.println("Welcome " + this.userName);
-                            writer.println("You are in channel: " + channel);
-
-                            // Send history
-                            java.util.List<String> history = server.getDbService().getHistory(channel, 50);
-                            for (String msg : history) {
-                                writer.println("CHANMSG " + channel + " " + msg);
-                            }
-
-                            writer.println("ALLUSERS " + String.join(",", server.getUserNames()));
-                            server.sendFriendListUpdate(this.userName);
-
-                            // Broadcast updated user list to all users in the channel
-                            server.broadcastUserList(channel);
-                            server.broadcastChannelList(); // This sends CHANNELLIST to everyone
-
-                            // Send Pending Friend Requests
-                            java.util.List<String> pending = server.getDbService().getPendingRequests(this.userName);
-                            for (String requester : pending) {
-                                writer.println("FRIEND_REQ " + requester);
-                            }
-                            break;
-                        } else {
-                            writer.println("LOGIN_FAIL_ALREADY_CONNECTED");
-                        }
-                    } else {
-                        writer.println("LOGIN_FAIL_INVALID");
-                    }
-                } else {
-                    writer.println("UNKNOWN_AUTH_COMMAND");
+    /**
+     * Entry point for packets once the binary protocol is negotiated, with
+     * the same ordering guarantees as handleLine().
+     */
+    void handlePacket(Packet packet) {
+        Thread previous = sessionThread;
+        sessionThread = Thread.currentThread();
+        try {
+            Opcode opcode = packet.opcode();
+            if (opcode == Opcode.LINE) {
+                dispatchLine(packet.text(0));
+            } else if (opcode.keyword.charAt(0) != '/') {
+                dispatchLine(packet.toLine());
+            } else {
+                // The fields already are the arguments, nothing to split
+                CommandTable.Command command = findCommand(opcode.keyword);
+                if (command != null) {
+                    runCommand(command, CommandArgs.of(packet, command.maxArgs));
                 }
             }
+        } finally {
+            sessionThread = previous;
+        }
+    }
 
-            String serverMessage = "LOG:New user connected: " + this.userName;
-            server.broadcast(serverMessage, this);
+    private void dispatchLine(String clientMessage) {
+        if (clientMessage.equals(Packet.REQUEST)) {
+            // Answered in text, everything after it in binary
+            sendMessage(Packet.ACCEPTED);
+            connection.setBinary();
+        } else if (clientMessage.startsWith("/")) {
+            int space = clientMessage.indexOf(' ');
+            CommandTable.Command command = findCommand(space < 0 ? clientMessage : clientMessage.substring(0, space));
+            if (command != null) {
+                runCommand(command, CommandArgs.parse(clientMessage,
+                        space < 0 ? clientMessage.length() : space, command.maxArgs));
+            }
+        } else if (this.userName == null) {
+            sendMessage("UNKNOWN_AUTH_COMMAND");
+        } else {
+            String time = java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss")
+                    .format(java.time.LocalDateTime.now());
+            String serverMessage = "[" + time + "] [" + this.userName + "]: " + clientMessage;
+            server.broadcastToChannel(channel, serverMessage, this);
+        }
+    }
 
-            String clientMessage;
+    /**
+     * The command for a verb if this session may run it now, null after
+     * telling the client it can't.
+     */
+    private CommandTable.Command findCommand(String verb) {
+        CommandTable.Command command = server.getCommands().get(verb);
+        boolean loggedIn = this.userName != null;
+        if (command == null || command.beforeLogin == loggedIn) {
+            server.getCommands().recordUnknown();
+            sendMessage(loggedIn ? "Unknown command: " + verb.toLowerCase() : "UNKNOWN_AUTH_COMMAND");
+            return null;
+        }
+        return command;
+    }
 
-            do {
-                clientMessage = reader.readLine();
-                if (clientMessage != null) {
-                    if (clientMessage.startsWith("/")) {
-                        handleCommand(clientMessage);
-                    } else {
-                        String time = java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss")
-                                .format(java.time.LocalDateTime.now());
-                        serverMessage = "[" + time + "] [" + this.userName + "]: " + clientMessage;
-                        server.broadcastToChannel(channel, serverMessage, this);
-                    }
-                } else {
-                    break;
-                }
-            } while (true);
+    private void runCommand(CommandTable.Command command, CommandArgs args) {
+        if (args.count() < command.minArgs) {
+            sendMessage(command.usage != null ? "Syntax: " + command.usage : "UNKNOWN_AUTH_COMMAND");
+        } else {
+            command.run(this, args);
+        }
+    }
 
-        } catch (IOException ex) {
-            System.out.println("Error in ClientHandler: " + ex.getMessage());
-        } finally {
+    /**
+     * Called once when the connection is gone (closed by the peer, by an I/O
+     * error or by the server).
+     */
+    void onDisconnect() {
+        if (disconnected) {
+            return;
+        }
+        disconnected = true;
+
+        server.removeUser(this, userName);
+        if (connection != null) {
+            connection.close();
+        } else {
             try {
-                server.removeUser(this, userName);
                 socket.close();
-
-                String serverMessage = "LOG:" + userName + " has quitted.";
-                server.broadcast(serverMessage, this);
-                server.broadcastUserList(channel); // Update list on leave
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+
+        if (userName != null && server.getUser(userName) != null) {
+            // Resumed on another connection, which took over the name
+            return;
+        }
+        if (sequenced && userName != null) {
+            server.getResumeTokens().remember(userName, status);
+        }
+        String serverMessage = "LOG:" + userName + " has quitted.";
+        server.broadcast(serverMessage, this);
     }
 
-    private void handleCommand(String command) {
-        String[] parts = command.split(" ", 3);
-        String cmd = parts[0].toLowerCase();
+    /**
+     * Closes the connection from another thread; onDisconnect then runs on
+     * the session's own thread.
+     */
+    void closeConnection() {
+        ClientConnection c = connection;
+        if (c != null) {
+            c.close();
+        }
+    }
 
-        switch (cmd) {
-            case "/msg":
-                if (parts.length < 3) {
-                    sendMessage("Syntax: /msg <user> <message>");
-                } else {
-                    server.sendPrivateMessage(parts[1], parts[2], this);
-                }
-                break;
-            case "/join":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /join <channel>");
-                } else {
-                    String oldChannel = this.channel;
-                    String newChannel = parts[1];
-                    server.checkAndAddChannel(newChannel);
-                    this.channel = newChannel;
-
-                    // Broadcast to ALL users (null sender) so everyone sees the event history
-                    // server.broadcastToChannel(oldChannel, "LOG:" + userName + " has left " +
-                    // oldChannel, null);
-                    // server.broadcastToChannel(newChannel, "LOG:" + userName + " has joined " +
-                    // newChannel, null);
-
-                    server.broadcastUserList(oldChannel); // Remove from old
-                    server.broadcastUserList(newChannel); // Add to new
-                }
-                break;
-            case "/history":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /history <channel>");
-                } else {
-                    String targetChan = parts[1];
-                    java.util.List<String> history = server.getDbService().getHistory(targetChan, 50);
-                    for (String msg : history) {
-                        writer.println("CHANMSG " + targetChan + " " + msg);
-                    }
-                }
-                break;
-            case "/time":
-                sendMessage("Server time: " + java.time.LocalDateTime.now());
-                break;
-            case "/list":
-                sendMessage("Users in " + channel + ": " + server.getUsersInChannel(channel));
-                break;
-            case "/weather":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /weather <city>");
-                } else {
-                    sendMessage("Fetching weather for " + parts[1] + "...");
-                    sendMessage(WeatherService.getWeather(parts[1]));
-                }
-                break;
-            case "/delete":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /delete <channel>");
-                } else {
-                    server.deleteChannel(parts[1]);
-                }
-                break;
-            case "/rename":
-                if (parts.length < 3) {
-                    sendMessage("Syntax: /rename <oldName> <newName>");
-                } else {
-                    server.renameChannel(parts[1], parts[2]);
-                }
-                break;
-            case "/friend":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /friend <request|accept|list> [user]");
-                } else {
-                    String subCmd = parts[1].toLowerCase();
-                    if (subCmd.startsWith("request")) {
-                        // /friend request <user>
-                        // parts[1] might be "request user" or split further?
-                        // command split logic in handleCommand is split(" ", 3).
-                        // So parts[1] is the first arg, parts[2] is the rest.
-                        // Wait, logic is: cmd = parts[0] ("/friend"),
-                        // If I typed "/friend request Bob", parts[1] is "request Bob" ?? No.
-                        // split(" ", 3) on "/friend request Bob" gives: ["/friend", "request", "Bob"]
-
-                        // BUT if I typed "/friend list", parts is ["/friend", "list"] length 2.
-
-                        if (parts.length < 3) { // Need target
-                            sendMessage("Syntax: /friend request <username>");
-                        } else {
-                            String target = parts[2];
-                            if (server.getDbService().requestFriend(this.userName, target)) {
-                                sendMessage("Friend request sent to " + target);
-                                server.sendFriendRequestNotification(target, this.userName);
-                            } else {
-                                sendMessage("Could not send request (already friends or pending, or error).");
-                            }
-                        }
-                    } else if (subCmd.startsWith("accept")) {
-                        if (parts.length < 3) {
-                            sendMessage("Syntax: /friend accept <username>");
-                        } else {
-                            String target = parts[2];
-                            if (server.getDbService().acceptFriend(this.userName, target)) {
-                                sendMessage("You are now friends with " + target);
-                                server.sendFriendAcceptNotification(target, this.userName);
-                                server.sendFriendListUpdate(target);
-                                server.sendFriendListUpdate(this.userName);
-                            } else {
-                                sendMessage("Could not accept request (no pending request found).");
-                            }
-                        }
-                    } else if (subCmd.startsWith("deny")) {
-                        if (parts.length < 3) {
-                            sendMessage("Syntax: /friend deny <username>");
-                        } else {
-                            String target = parts[2];
-                            if (server.getDbService().rejectRequest(this.userName, target)) {
-                                sendMessage("You denied friend request from " + target);
-                                // Optional: notify target they were denied? Usually silent or "Request denied"
-                                // server.sendFriendDenyNotification(target, this.userName);
-                            } else {
-                                sendMessage("Could not deny request (no pending request found).");
-                            }
-                        }
-                    } else if (subCmd.startsWith("list")) {
-                        server.sendFriendListUpdate(this.userName);
-                    }
-                }
-                break;
-            case "/privhistory":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /privhistory <user>");
-                } else {
-                    String target = parts[1];
-                    java.util.List<String> history = server.getDbService().getPrivateHistory(this.userName, target, 50);
-                    for (String msg : history) {
-                        sendMessage("PRIVMSG " + target + " " + msg);
-                    }
-                }
-                break;
-            case "/search":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /search <query>");
-                } else {
-                    String query = parts[1];
-                    // parts is split by " ", 3. If query has spaces, it might be in parts[2] too?
-                    // Actually handleCommand uses split(" ", 3).
-                    // /search query words
-                    // parts[0]=/search, parts[1]=query, parts[2]=words
-                    if (parts.length > 2)
-                        query += " " + parts[2];
-
-                    sendMessage("SEARCH_START " + query);
-                    java.util.List<String> results = server.getDbService().searchMessages(query, this.userName);
-                    for (String r : results) {
-                        sendMessage("SEARCH_RESULT " + r);
-                    }
-                    sendMessage("SEARCH_END");
-                }
-                break;
-            case "/privmsg":
-                if (parts.length < 3) {
-                    sendMessage("Syntax: /privmsg <user> <message>");
-                } else {
-                    server.sendPrivateMessage(parts[1], parts[2], this);
-                }
-                break;
-            // case "/privhistory":
-            // if (parts.length < 2) {
-            // sendMessage("Syntax: /privhistory <user>");
-            // } else {
-            // String target = parts[1];
-            // java.util.List<String> history =
-            // server.getDbService().getPrivateHistory(this.userName, target, 50);
-            // for (String msg : history) {
-            // sendMessage("PRIVMSG " + target + " " + msg);
-            // }
-            // }
-            // break;
-            case "/status":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /status <online|busy|away>");
-                } else {
-                    this.status = parts[1].toLowerCase();
-                    sendMessage("Status set to " + this.status);
-                    server.broadcastFriendStatusUpdate(this.userName);
-                    server.broadcastUserList(this.channel);
-                }
-                break;
-            case "/setmsg":
-                if (parts.length < 2) {
-                    this.statusMessage = "";
-                } else {
-                    // Sanitize: remove colons and commas to preserve protocol integrity
-                    String msg = parts.length == 3 ? parts[1] + " " + parts[2] : parts[1]; // handle partial split?
-                    // Actually parts is split by " ", 3. So parts[1] + parts[2] covers it roughly
-                    // but logic in handleCommand is specific.
-                    // Let's rely on full command string or reconstruction.
-                    // handleCommand splits by " ", 3.
-                    // if I type /setmsg Hello World
-                    // parts[0]=/setmsg, parts[1]=Hello, parts[2]=World
-                    // if I type /setmsg Hello
-                    // parts[0]=/setmsg, parts[1]=Hello
-
-                    String raw = "";
-                    if (parts.length >= 2)
-                        raw += parts[1];
-                    if (parts.length >= 3)
-                        raw += " " + parts[2];
-
-                    this.statusMessage = raw.replace(",", " ").replace(":", " ");
-                    server.getDbService().updateStatusMessage(this.userName, this.statusMessage);
+    /**
+     * All the commands of the protocol. Each server builds its own table so
+     * the per-command metrics are its own.
+     */
+    static CommandTable createCommandTable() {
+        CommandTable commands = new CommandTable();
+        commands.addBeforeLogin("/register", 2, ClientHandler::register);
+        commands.addBeforeLogin("/login", 2, ClientHandler::login);
+        commands.addBeforeLogin("/seq", 0, ClientHandler::enableSequence);
+        commands.addBeforeLogin("/bundle", 0, ClientHandler::enableBundle);
+        commands.addBeforeLogin("/resume", 3, ClientHandler::resume);
+
+        commands.add("/msg", 2, 2, "/msg <user> <message>", ClientHandler::privateMessage);
+        commands.add("/privmsg", 2, 2, "/privmsg <user> <message>", ClientHandler::privateMessage);
+        commands.add("/join", 2, 1, "/join <channel>", ClientHandler::joinChannel);
+        commands.add("/history", 2, 1, "/history <channel> [before=<id>] [limit=<n>]", ClientHandler::history);
+        commands.add("/missed", 2, 2, "/missed <channel> <last seq>", ClientHandler::missedMessages);
+        commands.add("/privhistory", 2, 1, "/privhistory <user> [before=<id>] [limit=<n>]",
+                ClientHandler::privateHistory);
+        commands.add("/search", 1, 1, "/search <query> [page=<n>]", ClientHandler::search);
+        commands.add("/time", 0, 0, null, ClientHandler::time);
+        commands.add("/list", 0, 0, null, ClientHandler::listUsers);
+        commands.add("/weather", 2, 1, "/weather <city>", ClientHandler::weather);
+        commands.add("/delete", 2, 1, "/delete <channel>", ClientHandler::deleteChannel);
+        commands.add("/rename", 2, 2, "/rename <oldName> <newName>", ClientHandler::renameChannel);
+        commands.add("/friend", 2, 1, "/friend <request|accept|list> [user]", ClientHandler::friend);
+        commands.add("/status", 2, 1, "/status <online|busy|away>", ClientHandler::status);
+        commands.add("/setmsg", 1, 0, null, ClientHandler::updateStatusMessage);
+        commands.add("/upload", 2, 2, "/upload <filename> <base64_data>", ClientHandler::upload);
+        commands.add("/download", 2, 1, "/download <file_id>", ClientHandler::download);
+        commands.add("/transfer", 3, 0, null, ClientHandler::transfer);
+        commands.add("/setavatar", 2, 1, "/setavatar <base64>", ClientHandler::uploadAvatar);
+        commands.add("/getavatar", 3, 1, "/getavatar <username> [<version> [<size>]]", ClientHandler::sendAvatar);
+        commands.add("/call", 2, 1, "/call <username>", ClientHandler::call);
+        commands.add("/accept", 2, 1, "/accept <username>", ClientHandler::acceptCall);
+        commands.add("/deny", 2, 1, "/deny <username>", ClientHandler::denyCall);
+        commands.add("/wizz", 0, 0, null, ClientHandler::wizz);
+        commands.add("/hangup", 0, 0, null, ClientHandler::hangup);
+        commands.add("/stats", 0, 0, null, ClientHandler::stats);
+        return commands;
+    }
+
+    private void register(CommandArgs args) {
+        if (server.getUserDirectory().register(args.get(0), args.get(1))) {
+            sendMessage("REGISTRATION_SUCCESS");
+        } else {
+            sendMessage("REGISTRATION_FAIL");
+        }
+    }
+
+    /**
+     * "/login <user> <password>". Everything is read from the in-memory
+     * directories and caches. A session that sent /bundle gets all the lines
+     * of the login, up to the pending friend requests, as one LOGIN_BUNDLE
+     * frame.
+     */
+    private void login(CommandArgs args) {
+        String name = args.get(0);
+        UserDirectory users = server.getUserDirectory();
+        if (users.authenticate(name, args.get(1))) {
+            // Check if already online
+            if (server.claimUserName(name, this)) {
+                this.userName = name;
+                server.joinChannel(this, channel);
+                this.avatar = users.getAvatar(this.userName);
+                this.statusMessage = users.getStatusMessage(this.userName);
+
+                // Others get deltas, this session gets the full lists below
+                server.publishLogin(this);
+
+                java.util.List<String> lines = new java.util.ArrayList<>();
+                // Send login success with avatar info?
+                String b64Msg = Base64.getEncoder().encodeToString(this.statusMessage.getBytes());
+                lines.add("LOGIN_SUCCESS " + this.userName + " " + (this.avatar != null ? this.avatar : "default.png") + " " + b64Msg);
+                if (sequenced) {
+                    lines.add("RESUME_TOKEN " + server.getResumeTokens().issue(this.userName));
                 }
-                server.broadcastFriendStatusUpdate(this.userName);
-                server.broadcastUserList(this.channel);
-                break;
-            case "/upload":
-                if (parts.length < 3) {
-                    sendMessage("Syntax: /upload <filename> <base64_data>");
-                } else {
-                    String filename = parts[1];
-                    String b64 = parts[2];
-                    try {
-                        byte[] data = Base64.getDecoder().decode(b64);
-                        // Ensure transfer directory exists
-                        File transferDir = new File("transfer");
-                        if (!transferDir.exists())
-                            transferDir.mkdir();
-
-                        // Create unique name
-                        String uniqueName = System.currentTimeMillis() + "_" + filename;
-                        Files.write(Paths.get("transfer", uniqueName), data, StandardOpenOption.CREATE);
-
-                        // Broadcast file link
-                        // Format: FILE <uniqueID> <originalName>
-                        String fileMsg = "FILE " + uniqueName + " " + filename;
-                        server.broadcastToChannel(channel, fileMsg, this);
-                        sendMessage("File uploaded successfully.");
-                    } catch (IllegalArgumentException e) {
-                        sendMessage("Error: Invalid Base64 data.");
-                    } catch (IOException e) {
-                        sendMessage("Error saving file: " + e.getMessage());
-                    }
+                lines.add("Welcome " + this.userName);
+                lines.add("You are in channel: " + channel);
+
+                // Send history, asked to its owner node after the rest if not here
+                java.util.List<String> history = server.localHistory(this, channel);
+                if (history != null) {
+                    lines.addAll(history);
                 }
-                break;
-            case "/download":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /download <file_id>");
-                } else {
-                    String fileId = parts[1];
-                    // Security check: simple path traversal prevention
-                    if (fileId.contains("..") || fileId.contains("/") || fileId.contains("\\")) {
-                        sendMessage("Error: Invalid filename.");
-                        return;
-                    }
 
-                    File f = new File("transfer", fileId);
-                    if (f.exists()) {
-                        try {
-                            byte[] data = Files.readAllBytes(f.toPath());
-                            String b64 = Base64.getEncoder().encodeToString(data);
-                            // Protocol: FILEDOWNLOAD <file_id> <base64>
-                            // We need to send original name too? client might not know it if they just
-                            // requested ID.
-                            // But usually client clicked a link that had both ID and Name.
-                            // Let's send just content for now, client saves as fileId (or we change
-                            // protocol).
-                            // Better: FILEDOWNLOAD <file_id> <base64>
-                            sendMessage("FILEDOWNLOAD " + fileId + " " + b64);
-                        } catch (IOException e) {
-                            sendMessage("Error reading file: " + e.getMessage());
-                        }
-                    } else {
-                        sendMessage("Error: File not found.");
-                    }
+                // Before the lists, so cached avatars are not requested again
+                lines.add("AVATAR_VERSIONS " + server.getAvatarVersions(this.userName));
+                lines.add("ALLUSERS " + String.join(",", server.getUserNames()));
+                lines.add("FRIENDLIST " + server.getFormattedFriendList(this.userName));
+                lines.add("USERLIST " + channel + " " + server.getUsersInChannel(channel));
+                // Nothing changed in the list for the others
+                lines.add("CHANNELLIST " + server.getChannelList());
+
+                // Send Pending Friend Requests
+                for (String requester : server.getFriendGraph().getPendingRequests(this.userName)) {
+                    lines.add("FRIEND_REQ " + requester);
                 }
-                break;
-            case "/setavatar":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /setavatar <base64>");
+
+                if (bundled) {
+                    byte[] bundle = String.join("\n", lines).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                    sendFrame(new Frame(new Packet(Opcode.LOGIN_BUNDLE, new Payload(bundle))));
                 } else {
-                    String b64 = parts[1];
-                    try {
-                        byte[] data = Base64.getDecoder().decode(b64);
-                        // Save to avatars/username.png
-                        String filename = this.userName + "_" + System.currentTimeMillis() + ".png";
-                        File avatarDir = new File("avatars");
-                        if (!avatarDir.exists())
-                            avatarDir.mkdir();
-
-                        Files.write(Paths.get("avatars", filename), data, StandardOpenOption.CREATE);
-
-                        // Update DB
-                        server.getDbService().updateAvatar(this.userName, filename);
-                        this.avatar = filename;
-
-                        sendMessage("AVATAR_SET " + filename);
-                        server.broadcastAvatarUpdate(this.userName);
-                    } catch (Exception e) {
-                        sendMessage("Error setting avatar: " + e.getMessage());
+                    for (String line : lines) {
+                        sendMessage(line);
                     }
                 }
-                break;
-            case "/getavatar":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /getavatar <username>");
-                } else {
-                    String target = parts[1];
-                    String av = server.getDbService().getAvatar(target);
-                    if (av == null || av.trim().isEmpty()) av = "default.png";
-                    
-                    File f = new File("avatars", av);
-                    if (!f.exists()) f = new File("avatars", "default.png");
-                    
-                    if (f.exists()) {
-                        try {
-                            byte[] dataBytes = Files.readAllBytes(f.toPath());
-                            String b64 = Base64.getEncoder().encodeToString(dataBytes);
-                            sendMessage("AVATAR_DATA " + target + " " + b64);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
+                if (history == null) {
+                    server.sendHistory(this, channel, null);
                 }
-                break;
-            case "/call":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /call <username>");
+
+                String serverMessage = "LOG:New user connected: " + this.userName;
+                server.broadcast(serverMessage, this);
+            } else {
+                sendMessage("LOGIN_FAIL_ALREADY_CONNECTED");
+            }
+        } else {
+            sendMessage("LOGIN_FAIL_INVALID");
+        }
+    }
+
+    /**
+     * "/bundle", before logging in: the login is answered with a single
+     * "LOGIN_BUNDLE <lines>" whose field holds the lines of a plain login
+     * separated by '\n' (Base64 in the text protocol, raw in the binary one).
+     */
+    private void enableBundle(CommandArgs args) {
+        bundled = true;
+        sendMessage("BUNDLE_ON");
+    }
+
+    /**
+     * "/seq", before logging in: from then on channel messages (and the
+     * history sent on login and by /history without paging) come as
+     * "CHANSEQ <channel> <seq> <message>", where seq grows with every
+     * message of the channel, and the login gets a "RESUME_TOKEN <token>".
+     */
+    private void enableSequence(CommandArgs args) {
+        sequenced = true;
+        sendMessage("SEQ_ON");
+    }
+
+    /**
+     * "/resume <token> <channel> <last seq>", instead of /login after the
+     * connection of a sequenced session dropped. Answers "RESUME_OK <user>",
+     * a new RESUME_TOKEN, the channel's USERLIST and the messages of the
+     * channel after the last one the client saw (see
+     * Server.historyLines), or "RESUME_FAIL" when the client must log in
+     * again. The rest of the login (user, friend and channel lists,
+     * pending requests) is not sent again.
+     */
+    private void resume(CommandArgs args) {
+        ResumeTokens.Grant grant = null;
+        long lastSeq = -1;
+        try {
+            lastSeq = Long.parseLong(args.get(2));
+            if (lastSeq >= 0) {
+                grant = server.getResumeTokens().redeem(args.get(0));
+            }
+        } catch (NumberFormatException e) {
+            // RESUME_FAIL below
+        }
+        if (grant == null) {
+            sendMessage("RESUME_FAIL");
+            return;
+        }
+        String name = grant.userName;
+        // Its connection is dead if it is still here, the server just has not noticed yet
+        ClientHandler stale = server.getUser(name);
+        boolean tookOver = stale != null && server.takeOverUserName(name, stale, this);
+        if (!tookOver && !server.claimUserName(name, this)) {
+            server.getResumeTokens().restore(args.get(0), grant);
+            sendMessage("RESUME_FAIL");
+            return;
+        }
+        String previousStatus = grant.status;
+        if (tookOver) {
+            previousStatus = stale.getStatus();
+            // Its own thread tears it down
+            stale.closeConnection();
+        }
+        this.userName = name;
+        this.sequenced = true;
+        if (previousStatus != null) {
+            this.status = previousStatus;
+        }
+        server.joinChannel(this, args.get(1));
+        this.avatar = server.getUserDirectory().getAvatar(this.userName);
+        this.statusMessage = server.getUserDirectory().getStatusMessage(this.userName);
+        server.publishLogin(this);
+
+        sendMessage("RESUME_OK " + this.userName);
+        sendMessage("RESUME_TOKEN " + server.getResumeTokens().issue(this.userName));
+        sendMessage("USERLIST " + channel + " " + server.getUsersInChannel(channel));
+        server.sendMissedMessages(this, channel, lastSeq);
+    }
+
+    private void privateMessage(CommandArgs args) {
+        server.sendPrivateMessage(args.get(0), args.get(1), this);
+    }
+
+    private void joinChannel(CommandArgs args) {
+        String oldChannel = this.channel;
+        String newChannel = args.get(0);
+        server.checkAndAddChannel(newChannel);
+        server.joinChannel(this, newChannel);
+
+        // Broadcast to ALL users (null sender) so everyone sees the event history
+        // server.broadcastToChannel(oldChannel, "LOG:" + userName + " has left " +
+        // oldChannel, null);
+        // server.broadcastToChannel(newChannel, "LOG:" + userName + " has joined " +
+        // newChannel, null);
+
+        if (!oldChannel.equalsIgnoreCase(newChannel)) {
+            server.publishPart(this.userName, oldChannel);
+            server.publishJoin(this, newChannel);
+        }
+        sendMessage("USERLIST " + newChannel + " " + server.getUsersInChannel(newChannel));
+    }
+
+    private void history(CommandArgs args) {
+        server.sendHistory(this, args.get(0), args.count() > 1 ? args.get(1) : null);
+    }
+
+    /**
+     * "/missed <channel> <last seq>": the rest of a replay that ended with
+     * "RESUME_END <channel> <last seq> true".
+     */
+    private void missedMessages(CommandArgs args) {
+        long lastSeq;
+        try {
+            lastSeq = Long.parseLong(args.get(1));
+        } catch (NumberFormatException e) {
+            lastSeq = -1;
+        }
+        if (lastSeq < 0) {
+            sendMessage("Error: Invalid sequence number.");
+            return;
+        }
+        server.sendMissedMessages(this, args.get(0), lastSeq);
+    }
+
+    private void privateHistory(CommandArgs args) {
+        server.sendPrivateHistory(this, args.get(0), args.count() > 1 ? args.get(1) : null);
+    }
+
+    private void search(CommandArgs args) {
+        StringBuilder words = new StringBuilder();
+        int page = 0;
+        for (String word : args.get(0).split(" ")) {
+            if (word.matches("page=\\d{1,6}")) {
+                page = Integer.parseInt(word.substring("page=".length()));
+            } else if (!word.isEmpty()) {
+                words.append(words.length() > 0 ? " " : "").append(word);
+            }
+        }
+        String query = words.toString();
+
+        int pageSize = ServerConfig.SEARCH_PAGE_SIZE;
+        java.util.List<String> results = server.getDbService().searchMessages(query, this.userName,
+                page * pageSize, pageSize);
+        boolean more = results.size() > pageSize;
+        sendMessage("SEARCH_START " + query);
+        for (String r : more ? results.subList(0, pageSize) : results) {
+            sendMessage("SEARCH_RESULT " + r);
+        }
+        // "SEARCH_END <page> <more>": ask for page + 1 while more is true
+        sendMessage("SEARCH_END " + page + " " + more);
+    }
+
+    private void time(CommandArgs args) {
+        sendMessage("Server time: " + java.time.LocalDateTime.now());
+    }
+
+    private void listUsers(CommandArgs args) {
+        sendMessage("Users in " + channel + ": " + server.getUsersInChannel(channel));
+    }
+
+    private void weather(CommandArgs args) {
+        String city = args.get(0);
+        sendMessage("Fetching weather for " + city + "...");
+        sendMessage(WeatherService.getWeather(city));
+    }
+
+    private void deleteChannel(CommandArgs args) {
+        server.deleteChannel(args.get(0));
+    }
+
+    private void renameChannel(CommandArgs args) {
+        server.renameChannel(args.get(0), args.get(1));
+    }
+
+    private void friend(CommandArgs args) {
+        String subCmd = args.get(0).toLowerCase();
+        if (subCmd.startsWith("request")) {
+            if (args.count() < 2) { // Need target
+                sendMessage("Syntax: /friend request <username>");
+            } else {
+                String target = args.get(1);
+                if (server.getFriendGraph().requestFriend(this.userName, target)) {
+                    sendMessage("Friend request sent to " + target);
+                    server.sendFriendRequestNotification(target, this.userName);
                 } else {
-                    String target = parts[1];
-                    // Check if online
-                    boolean found = false;
-                    for (ClientHandler h : server.getUserThreads()) {
-                        if (h.getUserName().equalsIgnoreCase(target)) {
-                            h.sendMessage("CALL_INCOMING " + this.userName);
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (found)
-                        sendMessage("Calling " + target + "...");
-                    else
-                        sendMessage("User " + target + " not found or offline.");
+                    sendMessage("Could not send request (already friends or pending, or error).");
                 }
-                break;
-            case "/accept":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /accept <username>");
+            }
+        } else if (subCmd.startsWith("accept")) {
+            if (args.count() < 2) {
+                sendMessage("Syntax: /friend accept <username>");
+            } else {
+                String target = args.get(1);
+                if (server.getFriendGraph().acceptFriend(this.userName, target)) {
+                    sendMessage("You are now friends with " + target);
+                    server.sendFriendAcceptNotification(target, this.userName);
+                    server.sendFriendListUpdate(target);
+                    server.sendFriendListUpdate(this.userName);
                 } else {
-                    String caller = parts[1];
-                    // Notify caller
-                    boolean found = false;
-                    for (ClientHandler h : server.getUserThreads()) {
-                        if (h.getUserName().equalsIgnoreCase(caller)) {
-                            h.sendMessage("CALL_ACCEPTED " + this.userName);
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (found) {
-                        sendMessage("Call accepted. Connecting audio...");
-                        // Register call in UDP server
-                        server.getAudioServer().registerCall(this.userName, caller);
-                        server.getVideoServer().registerCall(this.userName, caller);
-                    }
+                    sendMessage("Could not accept request (no pending request found).");
                 }
-                break;
-            case "/deny":
-                if (parts.length < 2) {
-                    sendMessage("Syntax: /deny <username>");
+            }
+        } else if (subCmd.startsWith("deny")) {
+            if (args.count() < 2) {
+                sendMessage("Syntax: /friend deny <username>");
+            } else {
+                String target = args.get(1);
+                if (server.getFriendGraph().rejectRequest(this.userName, target)) {
+                    sendMessage("You denied friend request from " + target);
+                    // Optional: notify target they were denied? Usually silent or "Request denied"
+                    server.friendRequestDenied(this.userName, target);
                 } else {
-                    String caller = parts[1];
-                    for (ClientHandler h : server.getUserThreads()) {
-                        if (h.getUserName().equalsIgnoreCase(caller)) {
-                            h.sendMessage("CALL_DENIED " + this.userName);
-                            break;
-                        }
-                    }
+                    sendMessage("Could not deny request (no pending request found).");
                 }
-                break;
-            case "/wizz":
-                // If in private chat, send only to that user
-                // The client should send "/wizz" and maybe a target if in private?
-                // Actually, if we follow other commands, client sends "/wizz target" for
-                // private?
-                // Or just "/wizz" and server knows context?
-                // Server knows 'channel'. If 'channel' is a private room name,
-                // broadcastToChannel works!
-                // If 'channel' is "general", it broadcasts to general.
-                // Protocol: WIZZ <sender>
-
-                // However, for private chats, the "channel" variable in ClientHandler might be
-                // "general"
-                // if the client UI is just switching views but not officially sending "/join
-                // !PRIVATE_..."
-                // WAIT. ChatGUI DOES send "/join !PRIVATE_..." when switching private chat.
-                // So `this.channel` should be correct.
-
-                server.broadcastToChannel(channel, "WIZZ " + this.userName, this);
-                break;
-            case "/hangup":
-                // End current call
-                String partner = server.getAudioServer().endCall(this.userName);
-                server.getVideoServer().endCall(this.userName);
-
-                sendMessage("Call ended.");
-
-                if (partner != null) {
-                    server.getVideoServer().endCall(partner); // Should be redundant if symmetric but cleans up
-                    // Notify partner
-                    for (ClientHandler h : server.getUserThreads()) {
-                        if (h.getUserName().equalsIgnoreCase(partner)) {
-                            h.sendMessage("HANGUP " + this.userName);
-                            break;
-                        }
-                    }
-                }
-                break;
-            default:
-                sendMessage("Unknown command: " + cmd);
-                break;
+            }
+        } else if (subCmd.startsWith("list")) {
+            server.sendFriendListUpdate(this.userName);
+        }
+    }
+
+    private void status(CommandArgs args) {
+        this.status = args.get(0).toLowerCase();
+        sendMessage("Status set to " + this.status);
+        server.publishPresence(this);
+    }
+
+    private void updateStatusMessage(CommandArgs args) {
+        if (args.count() == 0) {
+            this.statusMessage = "";
+        } else {
+            // Sanitize: remove colons and commas to preserve protocol integrity
+            this.statusMessage = args.get(0).replace(",", " ").replace(":", " ");
+            server.getUserDirectory().updateStatusMessage(this.userName, this.statusMessage);
+            server.userProfileChanged(this.userName);
         }
+        server.publishPresence(this);
+    }
 
+    private void upload(CommandArgs args) {
+        String filename = args.get(0);
+        try {
+            byte[] data = args.binary(1);
+            // Create unique name
+            String uniqueName = System.currentTimeMillis() + "_" + filename;
+            server.getBlobStore().put("transfer/" + uniqueName, data);
+
+            // Broadcast file link
+            // Format: FILE <uniqueID> <originalName>
+            String fileMsg = "FILE " + uniqueName + " " + filename;
+            server.broadcastToChannel(channel, fileMsg, this);
+            sendMessage("File uploaded successfully.");
+        } catch (IllegalArgumentException e) {
+            sendMessage("Error: Invalid Base64 data.");
+        } catch (IOException e) {
+            sendMessage("Error saving file: " + e.getMessage());
+        }
+    }
+
+    private void download(CommandArgs args) {
+        String fileId = args.get(0);
+        // Security check: simple path traversal prevention
+        if (fileId.contains("..") || fileId.contains("/") || fileId.contains("\\")) {
+            sendMessage("Error: Invalid filename.");
+            return;
+        }
+
+        java.nio.file.Path f = server.getBlobStore().resolve("transfer/" + fileId);
+        if (f != null) {
+            try {
+                byte[] data = Files.readAllBytes(f);
+                // Protocol: FILEDOWNLOAD <file_id> <base64>
+                // The client clicked a link that had both ID and Name, the id is enough
+                sendFrame(new Frame(new Packet(Opcode.FILEDOWNLOAD, fileId, new Payload(data))));
+            } catch (IOException e) {
+                sendMessage("Error reading file: " + e.getMessage());
+            }
+        } else {
+            sendMessage("Error: File not found.");
+        }
+    }
+
+    private void uploadAvatar(CommandArgs args) {
+        try {
+            byte[] data = args.binary(0);
+            // Stored as avatars/username_millis.png
+            String filename = this.userName + "_" + System.currentTimeMillis() + ".png";
+            server.getBlobStore().put("avatars/" + filename, data);
+
+            // Update DB
+            server.getUserDirectory().updateAvatar(this.userName, filename);
+            server.userProfileChanged(this.userName);
+            String previous = this.avatar;
+            this.avatar = filename;
+            if (previous != null && !previous.equals("default.png")) {
+                server.getBlobStore().release("avatars/" + previous);
+            }
+
+            sendMessage("AVATAR_SET " + filename);
+            server.broadcastAvatarUpdate(this.userName);
+        } catch (Exception e) {
+            sendMessage("Error setting avatar: " + e.getMessage());
+        }
+    }
+
+    private void sendAvatar(CommandArgs args) {
+        String target = args.get(0);
+        ClientHandler online = server.getUser(target);
+        String av = online != null ? online.getAvatar() : server.getUserDirectory().getAvatar(target);
+        AvatarCache.Avatar avatar = server.getAvatarCache().get(av);
+        if (avatar == null) {
+            return;
+        }
+        if (args.count() < 2) {
+            // Legacy form: the original image
+            sendFrame(new Frame(new Packet(Opcode.AVATAR_DATA, target, avatar.original)));
+            return;
+        }
+        // /getavatar <user> <version we have, or -> [<size>]
+        if (args.get(1).equals(avatar.version)) {
+            server.getAvatarCache().recordNotModified();
+            sendMessage("AVATAR_NOTMODIFIED " + target + " " + avatar.version);
+        } else {
+            int size = 0;
+            try {
+                size = args.count() > 2 ? Integer.parseInt(args.get(2)) : 0;
+            } catch (NumberFormatException e) {
+                // Default size
+            }
+            sendFrame(new Frame(new Packet(Opcode.AVATAR_VERSION, target, avatar.version,
+                    avatar.thumbnail(size))));
+        }
+    }
+
+    private void call(CommandArgs args) {
+        String target = args.get(0);
+        // Check if online
+        ClientHandler h = server.getUser(target);
+        if (h != null) {
+            h.sendMessage("CALL_INCOMING " + this.userName);
+        }
+        if (h != null)
+            sendMessage("Calling " + target + "...");
+        else
+            sendMessage("User " + target + " not found or offline.");
+    }
+
+    private void acceptCall(CommandArgs args) {
+        String caller = args.get(0);
+        // Notify caller
+        ClientHandler h = server.getUser(caller);
+        if (h != null) {
+            h.sendMessage("CALL_ACCEPTED " + this.userName);
+            sendMessage("Call accepted. Connecting audio...");
+            // Register call in UDP server
+            server.getAudioServer().registerCall(this.userName, caller);
+            server.getVideoServer().registerCall(this.userName, caller);
+        }
+    }
+
+    private void denyCall(CommandArgs args) {
+        String caller = args.get(0);
+        ClientHandler h = server.getUser(caller);
+        if (h != null) {
+            h.sendMessage("CALL_DENIED " + this.userName);
+        }
+    }
+
+    private void wizz(CommandArgs args) {
+        // Server knows 'channel'. If 'channel' is a private room name,
+        // broadcastToChannel only reaches the other user: ChatGUI sends
+        // "/join !PRIVATE_..." when switching to a private chat.
+        // Protocol: WIZZ <sender>
+        server.broadcastToChannel(channel, "WIZZ " + this.userName, this);
+    }
+
+    private void hangup(CommandArgs args) {
+        // End current call
+        String partner = server.getAudioServer().endCall(this.userName);
+        server.getVideoServer().endCall(this.userName);
+
+        sendMessage("Call ended.");
+
+        if (partner != null) {
+            server.getVideoServer().endCall(partner); // Should be redundant if symmetric but cleans up
+            // Notify partner
+            ClientHandler h = server.getUser(partner);
+            if (h != null) {
+                h.sendMessage("HANGUP " + this.userName);
+            }
+        }
+    }
+
+    private void stats(CommandArgs args) {
+        OutboundQueue queue = getOutboundQueue();
+        sendMessage("STATS outbound " + (queue != null ? queue.stats() : "none"));
+        sendMessage("STATS server " + server.getOutboundSummary());
+        sendMessage("STATS presence " + server.getPresencePublisher().stats());
+        if (server.getBlobStore() != null) {
+            sendMessage("STATS blobs " + server.getBlobStore().stats());
+            sendMessage("STATS avatars " + server.getAvatarCache().stats());
+        }
+        sendMessage("STATS users " + server.getUserDirectory().stats());
+        if (server.getFileTransferServer() != null) {
+            for (String transfer : server.getFileTransferServer().getActiveTransfers()) {
+                sendMessage("STATS transfer " + transfer);
+            }
+        }
+        if (server.getCluster() != null) {
+            sendMessage("STATS cluster " + server.getCluster().stats());
+        }
+        for (String command : server.getCommands().stats()) {
+            sendMessage("STATS command " + command);
+        }
+    }
+
+    /**
+     * /transfer upload <size> <name> and /transfer download <file_id>: hands
+     * out a ticket for the file transfer port, the bytes never go through
+     * this connection.
+     */
+    private void transfer(CommandArgs args) {
+        fr.unilasalle.chat.transfer.FileTransferServer transfers = server.getFileTransferServer();
+        if (transfers == null) {
+            sendMessage("Error: File transfers are not available.");
+            return;
+        }
+        String sub = args.count() > 0 ? args.get(0) : "";
+        if (sub.equals("upload") && args.count() == 3) {
+            long size;
+            try {
+                size = Long.parseLong(args.get(1));
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            if (size < 0 || size > ServerConfig.TRANSFER_MAX_BYTES) {
+                sendMessage("Error: Invalid file size.");
+                return;
+            }
+            String filename = args.get(2).trim();
+            String fileId = System.currentTimeMillis() + "_" + filename.replaceAll("[\\s/\\\\]", "_");
+            // The link goes to the channel the file was sent from
+            String targetChannel = channel;
+            String token = transfers.allowUpload(fileId, size, (id, file, sha256) -> {
+                server.getBlobStore().putFile("transfer/" + id, file, sha256);
+                server.broadcastToChannel(targetChannel, "FILE " + id + " " + filename, this);
+                sendMessage("File uploaded successfully.");
+            });
+            sendMessage("TRANSFER_UPLOAD " + token + " " + fileId);
+        } else if (sub.equals("download") && args.count() >= 2) {
+            String fileId = args.rest(1).trim();
+            // Security check: simple path traversal prevention
+            if (fileId.contains("..") || fileId.contains("/") || fileId.contains("\\")) {
+                sendMessage("Error: Invalid filename.");
+                return;
+            }
+            String token = transfers.allowDownload(fileId);
+            if (token == null) {
+                sendMessage("Error: File not found.");
+            } else {
+                sendMessage("TRANSFER_DOWNLOAD " + token + " " + fileId + " " + transfers.getSize(token));
+            }
+        } else {
+            sendMessage("Syntax: /transfer upload <size> <filename> | /transfer download <file_id>");
+        }
     }
 
     /**
@@ -598,9 +833,9 @@ public class ClientHandler extends Thread {
      */
     void printUsers() {
         if (server.hasUsers()) {
-            writer.println("Connected users: " + server.getUserNames());
+            sendMessage("Connected users: " + server.getUserNames());
         } else {
-            writer.println("No other users connected");
+            sendMessage("No other users connected");
         }
     }
 
@@ -608,10 +843,35 @@ public class ClientHandler extends Thread {
      * Sends a message to the client.
      */
     void sendMessage(String message) {
-        writer.println(message);
+        sendFrame(new Frame(message));
+    }
+
+    /**
+     * Queues a frame that may be shared with other recipients, so a
+     * broadcast is encoded once for all of them.
+     */
+    void sendFrame(Frame frame) {
+        ClientConnection c = connection;
+        if (c != null) {
+            // Replies to our own commands may wait for room in the queue,
+            // messages sent on behalf of other users must not.
+            c.send(frame, Thread.currentThread() == sessionThread);
+        }
+    }
+
+    /**
+     * Outbound queue of this session, null until the transport is ready.
+     */
+    OutboundQueue getOutboundQueue() {
+        ClientConnection c = connection;
+        return c != null ? c.outbound() : null;
     }
 
     public String getUserName() {
         return this.userName;
     }
+
+    boolean isSequenced() {
+        return sequenced;
+    }
 }
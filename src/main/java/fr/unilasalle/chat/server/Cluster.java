@@ -0,0 +1,415 @@
+package fr.unilasalle.chat.server;
+
+import fr.unilasalle.chat.cluster.HashRing;
+import fr.unilasalle.chat.cluster.MessageBus;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Joins this server to the other nodes of a cluster over a MessageBus.
+ * What a node delivers to its own sessions (channel and private messages,
+ * broadcasts, presence, channel and friend changes) is published, and what
+ * the other nodes publish is delivered to the sessions of this one. The
+ * users logged in elsewhere are kept here, so user lists, channel members
+ * and friend lists show them too.
+ *
+ * Each channel (private rooms included) and each private conversation is
+ * owned by one node, picked on a consistent-hash ring of the nodes that are
+ * up. The owner is the only one storing and caching its messages, so it
+ * decides their order: the other nodes forward their users' messages and
+ * history requests to it, and it sends the messages back to every node and
+ * the history lines to the user's node. When a node comes or goes, the
+ * keys that change owner are dropped from the history caches and loaded
+ * again from the database by their new owner.
+ *
+ * Nodes must share the database (chat.db.url); accounts, channels and
+ * friendships are read from it.
+ */
+final class Cluster {
+    private static final String CHANNEL_MESSAGE = "chat.channel";
+    private static final String FORWARD_CHANNEL = "chat.forward.channel";
+    private static final String FORWARD_PRIVATE = "chat.forward.private";
+    private static final String HISTORY_REQUEST = "chat.history";
+    private static final String USER_LINES = "chat.user";
+    private static final String BROADCAST = "chat.broadcast";
+    private static final String PRESENCE = "chat.presence";
+    private static final String CHANNELS = "chat.channels";
+    private static final String FRIENDS = "chat.friends";
+    private static final String FRIEND_LIST = "chat.friendlist";
+    private static final String USERS = "chat.users";
+
+    /**
+     * A user logged in on another node, as last published by it.
+     */
+    static final class RemoteUser {
+        final String node;
+        final String name;
+        final String status;
+        final String statusMessage;
+        // Null until its JOIN arrives, and after its PART
+        final String channel;
+
+        RemoteUser(String node, String name, String status, String statusMessage, String channel) {
+            this.node = node;
+            this.name = name;
+            this.status = status;
+            this.statusMessage = statusMessage;
+            this.channel = channel;
+        }
+    }
+
+    private final Server server;
+    private final MessageBus bus;
+    // Keyed by lower-cased user name
+    private final ConcurrentHashMap<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    // This node and the nodes that are up
+    private final Set<String> liveNodes = ConcurrentHashMap.newKeySet();
+    private volatile HashRing ring;
+
+    Cluster(Server server, MessageBus bus) {
+        this.server = server;
+        this.bus = bus;
+        liveNodes.add(bus.nodeId());
+        ring = new HashRing(liveNodes, ServerConfig.CLUSTER_VIRTUAL_NODES);
+        server.getHistoryCache().loadMissingKeys();
+        bus.subscribe(CHANNEL_MESSAGE, (origin, f) -> server.deliverToChannel(f[0], f[1], Long.parseLong(f[2])));
+        bus.subscribe(FORWARD_CHANNEL, (origin, f) -> server.storeChannelMessage(f[0], f[1], f[2]));
+        bus.subscribe(FORWARD_PRIVATE, (origin, f) -> server.storePrivateMessage(f[0], f[1], f[2]));
+        bus.subscribe(HISTORY_REQUEST, this::onHistoryRequest);
+        bus.subscribe(USER_LINES, this::onUserLines);
+        bus.subscribe(BROADCAST, (origin, f) -> server.deliverToAll(new Frame(f[0]), null));
+        bus.subscribe(PRESENCE, this::onPresence);
+        bus.subscribe(CHANNELS, (origin, f) -> server.applyChannelChange(f[0], f[1], f[2]));
+        bus.subscribe(FRIENDS, this::onFriendChange);
+        bus.subscribe(FRIEND_LIST, (origin, f) -> server.sendLocalFriendListUpdate(f[0]));
+        bus.subscribe(USERS, (origin, f) -> server.getUserDirectory().invalidate(f[0]));
+        bus.subscribe(MessageBus.NODE_UP, (origin, f) -> nodeUp(origin));
+        bus.subscribe(MessageBus.NODE_DOWN, (origin, f) -> nodeDown(origin));
+    }
+
+    void start() throws IOException {
+        bus.start();
+    }
+
+    // Ownership
+
+    static String channelKey(String channel) {
+        return "#" + channel.toLowerCase();
+    }
+
+    static String conversationKey(String user1, String user2) {
+        String a = user1.toLowerCase();
+        String b = user2.toLowerCase();
+        return a.compareTo(b) <= 0 ? "@" + a + '\n' + b : "@" + b + '\n' + a;
+    }
+
+    /**
+     * The node owning a key, null if it is this one.
+     */
+    String remoteOwner(String key) {
+        String owner = ring.owner(key);
+        return owner.equals(bus.nodeId()) ? null : owner;
+    }
+
+    // Sent by this node
+
+    /**
+     * A message stored by this node, for the members on the other nodes.
+     *
+     * @param seq its id, 0 if it is not stored
+     */
+    void channelMessage(String channel, String line, long seq) {
+        bus.publish(CHANNEL_MESSAGE, channel, line, Long.toString(seq));
+    }
+
+    /**
+     * Hands a message to the owner of its channel. The owner stores it even
+     * if it no longer thinks it is the owner, so nothing bounces between
+     * nodes that briefly disagree.
+     */
+    void forwardChannelMessage(String owner, String channel, String user, String line) {
+        bus.send(owner, FORWARD_CHANNEL, channel, user, line);
+    }
+
+    void forwardPrivateMessage(String owner, String sender, String receiver, String message) {
+        bus.send(owner, FORWARD_PRIVATE, sender, receiver, message);
+    }
+
+    /**
+     * Asks the owner for the lines of Server.historyLines; they come back
+     * as lines for the user.
+     */
+    void forwardHistoryRequest(String owner, Server.HistoryRequest kind, String user, String target, String options) {
+        if (options == null) {
+            bus.send(owner, HISTORY_REQUEST, kind.name(), user, target);
+        } else {
+            bus.send(owner, HISTORY_REQUEST, kind.name(), user, target, options);
+        }
+    }
+
+    /**
+     * Sends lines to a user logged in on another node.
+     */
+    void sendToUser(String user, List<String> lines) {
+        RemoteUser remote = getRemoteUser(user);
+        if (remote != null) {
+            sendLines(remote.node, user, lines);
+        }
+    }
+
+    private void sendLines(String node, String user, List<String> lines) {
+        String[] fields = new String[lines.size() + 1];
+        fields[0] = user;
+        for (int i = 0; i < lines.size(); i++) {
+            fields[i + 1] = lines.get(i);
+        }
+        bus.send(node, USER_LINES, fields);
+    }
+
+    void broadcast(String line) {
+        bus.publish(BROADCAST, line);
+    }
+
+    /**
+     * A presence change sent to the local sessions by the PresencePublisher.
+     *
+     * @param kind login, change, logout, join or part
+     */
+    void presence(String kind, String user, String channel, String status, String statusMessage, String line) {
+        bus.publish(PRESENCE, kind, user, channel, status, statusMessage != null ? statusMessage : "", line);
+    }
+
+    /**
+     * @param op add, delete or rename (from {@code name} to {@code newName})
+     */
+    void channelChanged(String op, String name, String newName) {
+        bus.publish(CHANNELS, op, name, newName);
+    }
+
+    /**
+     * @param op request (from user to other), accept (by user of other's
+     *           request) or deny (by user)
+     */
+    void friendChanged(String op, String user, String other) {
+        bus.publish(FRIENDS, op, user, other);
+    }
+
+    /**
+     * The stored profile of {@code user} changed, see UserDirectory.
+     */
+    void userChanged(String user) {
+        bus.publish(USERS, user);
+    }
+
+    /**
+     * Asks the node of {@code user} to send them their friend list.
+     */
+    void friendListUpdate(String user) {
+        RemoteUser remote = getRemoteUser(user);
+        if (remote != null) {
+            bus.send(remote.node, FRIEND_LIST, user);
+        }
+    }
+
+    // Users of the other nodes
+
+    RemoteUser getRemoteUser(String name) {
+        return name != null ? remoteUsers.get(name.toLowerCase()) : null;
+    }
+
+    Collection<RemoteUser> getRemoteUsers() {
+        return remoteUsers.values();
+    }
+
+    List<RemoteUser> getRemoteMembers(String channel) {
+        List<RemoteUser> members = new ArrayList<>();
+        for (RemoteUser user : remoteUsers.values()) {
+            if (user.channel != null && user.channel.equalsIgnoreCase(channel)) {
+                members.add(user);
+            }
+        }
+        return members;
+    }
+
+    String stats() {
+        return bus.stats() + " remoteUsers=" + remoteUsers.size() + " ring=" + ring.nodes();
+    }
+
+    // Published by the other nodes
+
+    private void onHistoryRequest(String origin, String[] f) {
+        String user = f[1];
+        sendLines(origin, user, server.historyLines(Server.HistoryRequest.valueOf(f[0]), user, f[2],
+                f.length > 3 ? f[3] : null));
+    }
+
+    private void onUserLines(String origin, String[] f) {
+        ClientHandler user = server.getUser(f[0]);
+        if (user != null) {
+            for (int i = 1; i < f.length; i++) {
+                user.sendMessage(f[i]);
+            }
+        }
+    }
+
+    private void onPresence(String origin, String[] f) {
+        String kind = f[0];
+        String name = f[1];
+        String channel = f[2];
+        String key = name.toLowerCase();
+        Frame line = new Frame(f[5]);
+        switch (kind) {
+            case "login":
+            case "change": {
+                RemoteUser previous = remoteUsers.get(key);
+                remoteUsers.put(key, new RemoteUser(origin, name, f[3], f[4],
+                        previous != null ? previous.channel : null));
+                if (previous == null) {
+                    // Every session lists online users
+                    sendToAll(line);
+                } else if (!previous.status.equals(f[3]) || !previous.statusMessage.equals(f[4])) {
+                    Set<ClientHandler> recipients = new HashSet<>(server.getChannelMembers(channel));
+                    for (String friend : server.getFriendGraph().getFriends(name)) {
+                        ClientHandler online = server.getUser(friend);
+                        if (online != null) {
+                            recipients.add(online);
+                        }
+                    }
+                    for (ClientHandler recipient : recipients) {
+                        recipient.sendFrame(line);
+                    }
+                }
+                break;
+            }
+            case "logout":
+                if (remoteUsers.remove(key) != null) {
+                    sendToAll(line);
+                }
+                break;
+            case "join": {
+                RemoteUser previous = remoteUsers.get(key);
+                if (previous != null && channel.equalsIgnoreCase(previous.channel)) {
+                    // Already known there (a node catching up)
+                    break;
+                }
+                remoteUsers.put(key, new RemoteUser(origin, name, f[3], f[4], channel));
+                sendToMembers(channel, line);
+                break;
+            }
+            case "part": {
+                RemoteUser previous = remoteUsers.get(key);
+                if (previous != null && channel.equalsIgnoreCase(previous.channel)) {
+                    // Its JOIN of the next channel may have come first
+                    remoteUsers.put(key, new RemoteUser(previous.node, previous.name, previous.status,
+                            previous.statusMessage, null));
+                }
+                sendToMembers(channel, line);
+                break;
+            }
+            default:
+                System.out.println("Unknown presence kind from " + origin + ": " + kind);
+        }
+    }
+
+    private void onFriendChange(String origin, String[] f) {
+        FriendGraph graph = server.getFriendGraph();
+        String user = f[1];
+        String other = f[2];
+        switch (f[0]) {
+            case "request":
+                graph.applyRequest(user, other);
+                server.notifyFriendRequest(other, user);
+                break;
+            case "accept":
+                graph.applyAccept(user, other);
+                server.notifyFriendAccept(other, user);
+                break;
+            case "deny":
+                graph.applyReject(user, other);
+                break;
+            default:
+                System.out.println("Unknown friend change from " + origin + ": " + f[0]);
+        }
+    }
+
+    /**
+     * A node became reachable: tells it who is logged in here, as if they
+     * had all just logged in. Nodes that already know them ignore it.
+     */
+    private void publishSessions() {
+        for (ClientHandler session : server.getSessions()) {
+            String name = session.getUserName();
+            if (name == null) {
+                continue;
+            }
+            presence("login", name, session.getChannel(), session.getStatus(), session.getStatusMessage(),
+                    PresencePublisher.presenceOf(session));
+            String msg = session.getStatusMessage();
+            presence("join", name, session.getChannel(), session.getStatus(), msg,
+                    "JOIN " + session.getChannel() + " " + name + " " + session.getStatus() + " "
+                            + (msg != null ? msg : ""));
+        }
+    }
+
+    private void nodeUp(String node) {
+        if (liveNodes.add(node)) {
+            rebalance();
+        }
+        publishSessions();
+    }
+
+    /**
+     * Rebuilds the ring from the live nodes. A key this node did not own
+     * both before and after may have messages in the database that its
+     * cache lacks, so it is dropped.
+     */
+    private synchronized void rebalance() {
+        HashRing previous = ring;
+        HashRing current = new HashRing(liveNodes, ServerConfig.CLUSTER_VIRTUAL_NODES);
+        ring = current;
+        String self = bus.nodeId();
+        server.getHistoryCache().retainKeys(
+                channel -> self.equals(previous.owner(channelKey(channel)))
+                        && self.equals(current.owner(channelKey(channel))),
+                (user1, user2) -> self.equals(previous.owner(conversationKey(user1, user2)))
+                        && self.equals(current.owner(conversationKey(user1, user2))));
+        System.out.println("Cluster ring: " + current.nodes());
+    }
+
+    /**
+     * A node is gone, and so are its users.
+     */
+    private void nodeDown(String node) {
+        if (liveNodes.remove(node)) {
+            rebalance();
+        }
+        for (RemoteUser user : new ArrayList<>(remoteUsers.values())) {
+            if (user.node.equals(node) && remoteUsers.remove(user.name.toLowerCase(), user)) {
+                sendToAll(new Frame("PRESENCE " + user.name + " offline "));
+                if (user.channel != null) {
+                    sendToMembers(user.channel, new Frame("PART " + user.channel + " " + user.name));
+                }
+            }
+        }
+        System.out.println("Cluster node " + node + " is down");
+    }
+
+    private void sendToAll(Frame frame) {
+        for (ClientHandler session : server.getSessions()) {
+            if (session.getUserName() != null) {
+                session.sendFrame(frame);
+            }
+        }
+    }
+
+    private void sendToMembers(String channel, Frame frame) {
+        for (ClientHandler member : server.getChannelMembers(channel)) {
+            member.sendFrame(frame);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package fr.unilasalle.chat.server;
+
+import fr.unilasalle.chat.protocol.Packet;
+import java.util.Base64;
+
+/**
+ * Arguments of one command, split like {@code line.split(" ", max + 1)}
+ * without the verb: the last argument takes the rest of the line. Only the
+ * argument offsets are computed up front, each argument is cut out of the
+ * line when a handler asks for it.
+ */
+final class CommandArgs {
+    private static final int[] NONE = new int[0];
+
+    // Text form
+    private final String line;
+    private final int[] starts;
+    // Binary form
+    private final Packet packet;
+    private final int count;
+
+    private CommandArgs(String line, int[] starts, Packet packet, int count) {
+        this.line = line;
+        this.starts = starts;
+        this.packet = packet;
+        this.count = count;
+    }
+
+    /**
+     * @param verbEnd index of the space after the verb, or the line length
+     * @param max     arguments at most, the last one takes the rest
+     */
+    static CommandArgs parse(String line, int verbEnd, int max) {
+        int[] starts = max > 0 ? new int[max] : NONE;
+        int count = 0;
+        int space = verbEnd;
+        while (space >= 0 && space < line.length() && count < max) {
+            starts[count++] = space + 1;
+            space = count < max ? line.indexOf(' ', space + 1) : -1;
+        }
+        return new CommandArgs(line, starts, null, count);
+    }
+
+    /**
+     * Arguments of a command received as a packet, whose fields already are
+     * the arguments.
+     */
+    static CommandArgs of(Packet packet, int max) {
+        if (max > packet.opcode().fields) {
+            // The command splits the packet's last field further
+            String line = packet.toLine();
+            int space = line.indexOf(' ');
+            return parse(line, space < 0 ? line.length() : space, max);
+        }
+        return new CommandArgs(null, null, packet, Math.min(max, packet.size()));
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * Argument {@code i}; the last one holds the rest of the line.
+     */
+    String get(int i) {
+        if (i >= count) {
+            throw new IndexOutOfBoundsException("Argument " + i + " of " + count);
+        }
+        if (packet != null) {
+            return i == count - 1 ? rest(i) : packet.text(i);
+        }
+        int end = i == count - 1 ? line.length() : starts[i + 1] - 1;
+        return line.substring(starts[i], end);
+    }
+
+    /**
+     * Everything from argument {@code i} to the end of the line, spaces
+     * included, whatever the number of arguments the command splits.
+     */
+    String rest(int i) {
+        if (i >= count) {
+            throw new IndexOutOfBoundsException("Argument " + i + " of " + count);
+        }
+        if (packet != null) {
+            if (i == packet.size() - 1) {
+                return packet.text(i);
+            }
+            StringBuilder sb = new StringBuilder(packet.text(i));
+            for (int j = i + 1; j < packet.size(); j++) {
+                sb.append(' ').append(packet.text(j));
+            }
+            return sb.toString();
+        }
+        return line.substring(starts[i]);
+    }
+
+    /**
+     * Raw bytes of argument {@code i}: as received for the binary field of
+     * a packet, Base64-decoded otherwise.
+     *
+     * @throws IllegalArgumentException if the text argument is not Base64
+     */
+    byte[] binary(int i) {
+        if (packet != null && packet.opcode().binaryField == i && i < packet.size()) {
+            return packet.bytes(i);
+        }
+        return Base64.getDecoder().decode(get(i));
+    }
+}
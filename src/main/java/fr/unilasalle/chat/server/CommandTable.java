@@ -0,0 +1,115 @@
+package fr.unilasalle.chat.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Commands of the chat protocol, keyed by verb. Each one declares how its
+ * arguments are split, so dispatching a line is one map lookup whatever
+ * the number of commands, and records how often it runs and how long it
+ * takes (see /stats).
+ */
+final class CommandTable {
+
+    interface Handler {
+        void handle(ClientHandler session, CommandArgs args);
+    }
+
+    static final class Command {
+        final String verb;
+        /** Arguments split at most, the last one takes the rest of the line. */
+        final int maxArgs;
+        /** Fewer arguments answer the usage. */
+        final int minArgs;
+        final String usage;
+        /** Only accepted before login (/login, /register), and only then. */
+        final boolean beforeLogin;
+        private final Handler handler;
+
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Command(String verb, int maxArgs, int minArgs, String usage, boolean beforeLogin, Handler handler) {
+            this.verb = verb;
+            this.maxArgs = maxArgs;
+            this.minArgs = minArgs;
+            this.usage = usage;
+            this.beforeLogin = beforeLogin;
+            this.handler = handler;
+        }
+
+        void run(ClientHandler session, CommandArgs args) {
+            long start = System.nanoTime();
+            try {
+                handler.handle(session, args);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                calls.increment();
+                nanos.add(elapsed);
+                maxNanos.accumulateAndGet(elapsed, Math::max);
+            }
+        }
+
+        String stats() {
+            long n = calls.sum();
+            long total = nanos.sum();
+            return verb + " calls=" + n + " totalMs=" + total / 1_000_000
+                    + " avgUs=" + (n > 0 ? total / n / 1000 : 0) + " maxUs=" + maxNanos.get() / 1000;
+        }
+    }
+
+    private final Map<String, Command> commands = new HashMap<>();
+    private final LongAdder unknown = new LongAdder();
+
+    /**
+     * Adds a command; not thread-safe, the table is filled before the
+     * server accepts connections.
+     */
+    void add(String verb, int maxArgs, int minArgs, String usage, Handler handler) {
+        commands.put(verb, new Command(verb, maxArgs, minArgs, usage, false, handler));
+    }
+
+    void addBeforeLogin(String verb, int maxArgs, Handler handler) {
+        commands.put(verb, new Command(verb, maxArgs, maxArgs, null, true, handler));
+    }
+
+    /**
+     * The command for a verb, case-insensitive, or null.
+     */
+    Command get(String verb) {
+        Command command = commands.get(verb);
+        if (command == null) {
+            command = commands.get(verb.toLowerCase());
+        }
+        return command;
+    }
+
+    void recordUnknown() {
+        unknown.increment();
+    }
+
+    /**
+     * One line per command that ran, the most time-consuming first, then
+     * the count of unknown commands.
+     */
+    List<String> stats() {
+        List<Command> used = new ArrayList<>();
+        for (Command command : commands.values()) {
+            if (command.calls.sum() > 0) {
+                used.add(command);
+            }
+        }
+        used.sort((a, b) -> Long.compare(b.nanos.sum(), a.nanos.sum()));
+        List<String> lines = new ArrayList<>();
+        for (Command command : used) {
+            lines.add(command.stats());
+        }
+        lines.add("unknown calls=" + unknown.sum());
+        return lines;
+    }
+}
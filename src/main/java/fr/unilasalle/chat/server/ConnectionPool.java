@@ -0,0 +1,156 @@
+package fr.unilasalle.chat.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-lived SQLite connections: a single writer (SQLite only allows one at a
+ * time anyway) and a few read-only connections, which WAL mode lets run
+ * alongside the writer. Each connection keeps its prepared statements, so a
+ * query is compiled once per connection instead of once per call.
+ *
+ * Waiting for a connection uses a lock/queue rather than a monitor so virtual
+ * threads never pin their carrier while they wait.
+ */
+class ConnectionPool {
+
+    /**
+     * Work done with a borrowed connection.
+     */
+    interface SqlWork<T> {
+        T run(PooledConnection connection) throws SQLException;
+    }
+
+    /**
+     * A JDBC connection with its statement cache. Statements returned by
+     * prepare() belong to the cache: close their ResultSets, not the statements.
+     */
+    static class PooledConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            } else {
+                stmt.clearParameters();
+            }
+            return stmt;
+        }
+
+        Connection getConnection() {
+            return connection;
+        }
+
+        void close() {
+            for (PreparedStatement stmt : statements.values()) {
+                try {
+                    stmt.close();
+                } catch (SQLException ignored) {
+                }
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    private final PooledConnection writer;
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private final BlockingQueue<PooledConnection> readers;
+    private final List<PooledConnection> all = new ArrayList<>();
+
+    ConnectionPool(String url, int readerCount) throws SQLException {
+        this.writer = open(url, false);
+        this.readers = new ArrayBlockingQueue<>(Math.max(1, readerCount));
+        for (int i = 0; i < Math.max(1, readerCount); i++) {
+            readers.add(open(url, true));
+        }
+    }
+
+    private PooledConnection open(String url, boolean readOnly) throws SQLException {
+        java.util.Properties properties = new java.util.Properties();
+        if (!readOnly) {
+            // Take the write lock at BEGIN, where busy_timeout applies. A
+            // deferred transaction fails at once when another process (a
+            // node of the cluster) wrote since it started reading.
+            properties.setProperty("transaction_mode", "IMMEDIATE");
+        }
+        Connection conn = DriverManager.getConnection(url, properties);
+        try (Statement stmt = conn.createStatement()) {
+            // WAL lets readers work while the writer commits; it is persistent
+            // in the database file, the other pragmas are per connection.
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");
+            stmt.execute("PRAGMA busy_timeout=5000");
+            stmt.execute("PRAGMA cache_size=-" + ServerConfig.DB_CACHE_KB);
+            stmt.execute("PRAGMA mmap_size=" + ServerConfig.DB_MMAP_BYTES);
+            stmt.execute("PRAGMA temp_store=MEMORY");
+            if (readOnly) {
+                stmt.execute("PRAGMA query_only=1");
+            }
+        }
+        PooledConnection pooled = new PooledConnection(conn);
+        all.add(pooled);
+        return pooled;
+    }
+
+    /**
+     * Runs the work on a read-only connection, waiting for one to be free.
+     */
+    <T> T read(SqlWork<T> work) throws SQLException {
+        PooledConnection conn;
+        try {
+            conn = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            return work.run(conn);
+        } finally {
+            readers.add(conn);
+        }
+    }
+
+    /**
+     * Runs the work on the writer connection, one caller at a time.
+     */
+    <T> T write(SqlWork<T> work) throws SQLException {
+        writerLock.lock();
+        try {
+            return work.run(writer);
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    void close() {
+        writerLock.lock();
+        try {
+            for (PooledConnection conn : all) {
+                conn.close();
+            }
+        } finally {
+            writerLock.unlock();
+        }
+    }
+}
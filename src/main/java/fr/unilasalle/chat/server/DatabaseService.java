@@ -1,7 +1,5 @@
 package fr.unilasalle.chat.server;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -9,23 +7,51 @@ import java.sql.Statement;
 
 public class DatabaseService {
 
-    private static final String URL = "jdbc:sqlite:users.db";
+    private ConnectionPool pool;
+    // False when the SQLite build lacks FTS5: search falls back to LIKE scans
+    private boolean searchIndexed;
 
     public DatabaseService() {
+        this(ServerConfig.DB_URL);
+    }
+
+    public DatabaseService(String url) {
         try {
             // Load driver manually just in case
             Class.forName("org.sqlite.JDBC");
+            pool = new ConnectionPool(url, ServerConfig.DB_READERS);
             createTable();
             createMessageTable();
             initFriendTables();
             createChannelsTable();
+            createSearchIndex();
+            createBlobTables();
         } catch (ClassNotFoundException | SQLException e) {
             e.printStackTrace();
         }
     }
 
-    private Connection connect() throws SQLException {
-        return DriverManager.getConnection(URL);
+    /**
+     * Closes the pooled connections. Called when the server shuts down.
+     */
+    public void close() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    private <T> T read(ConnectionPool.SqlWork<T> work) throws SQLException {
+        if (pool == null) {
+            throw new SQLException("Database not available");
+        }
+        return pool.read(work);
+    }
+
+    private <T> T write(ConnectionPool.SqlWork<T> work) throws SQLException {
+        if (pool == null) {
+            throw new SQLException("Database not available");
+        }
+        return pool.write(work);
     }
 
     private void createTable() throws SQLException {
@@ -34,114 +60,122 @@ public class DatabaseService {
                 "password TEXT NOT NULL" +
                 ");";
 
-        try (Connection conn = connect();
-                Statement stmt = conn.createStatement()) {
-            stmt.execute(sql);
-            
-            // Migration: Add avatar column if not exists
-            try {
-                stmt.execute("ALTER TABLE users ADD COLUMN avatar TEXT;");
-            } catch (SQLException e) {
-                // Ignore if exists
-            }
-            // Migration: Add status_message column if not exists
-            try {
-                stmt.execute("ALTER TABLE users ADD COLUMN status_message TEXT;");
-            } catch (SQLException e) {
-                // Ignore if exists
+        write(conn -> {
+            try (Statement stmt = conn.getConnection().createStatement()) {
+                stmt.execute(sql);
+
+                // Migration: Add avatar column if not exists
+                try {
+                    stmt.execute("ALTER TABLE users ADD COLUMN avatar TEXT;");
+                } catch (SQLException e) {
+                    // Ignore if exists
+                }
+                // Migration: Add status_message column if not exists
+                try {
+                    stmt.execute("ALTER TABLE users ADD COLUMN status_message TEXT;");
+                } catch (SQLException e) {
+                    // Ignore if exists
+                }
             }
-        }
+            return null;
+        });
     }
     
-    public void updateAvatar(String username, String avatarPath) {
+    /**
+     * Returns false if the user is unknown or the update failed.
+     */
+    public boolean updateAvatar(String username, String avatarPath) {
         String sql = "UPDATE users SET avatar = ? WHERE username = ?";
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, avatarPath);
-            pstmt.setString(2, username);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
-    
-    public String getAvatar(String username) {
-        String sql = "SELECT avatar FROM users WHERE username = ?";
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-             pstmt.setString(1, username);
-             ResultSet rs = pstmt.executeQuery();
-             if (rs.next()) return rs.getString("avatar");
+        try {
+            return write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, avatarPath);
+                pstmt.setString(2, username);
+                return pstmt.executeUpdate() > 0;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return null;
+        return false;
     }
 
-    public void updateStatusMessage(String username, String msg) {
+    /**
+     * Returns false if the user is unknown or the update failed.
+     */
+    public boolean updateStatusMessage(String username, String msg) {
         String sql = "UPDATE users SET status_message = ? WHERE username = ?";
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, msg);
-            pstmt.setString(2, username);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
-
-    public String getStatusMessage(String username) {
-        String sql = "SELECT status_message FROM users WHERE username = ?";
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) return rs.getString("status_message");
+        try {
+            return write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, msg);
+                pstmt.setString(2, username);
+                return pstmt.executeUpdate() > 0;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return "";
+        return false;
     }
 
-    public synchronized boolean register(String username, String password) {
+    public boolean register(String username, String password) {
         String sql = "INSERT INTO users(username, password, avatar) VALUES(?, ?, 'default.png')";
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            pstmt.setString(2, password);
-            pstmt.executeUpdate();
-            return true;
+        try {
+            return write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, username);
+                pstmt.setString(2, password);
+                pstmt.executeUpdate();
+                return true;
+            });
         } catch (SQLException e) {
             System.out.println("Registration failed (User likely exists): " + e.getMessage());
             return false;
         }
     }
 
-    public boolean authenticate(String username, String password) {
-        String sql = "SELECT password FROM users WHERE username = ?";
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                String storedPwd = rs.getString("password");
-                return storedPwd.equals(password);
-            }
+    /**
+     * {password, avatar, status message} of a user, null if unknown.
+     */
+    String[] getUser(String username) {
+        String sql = "SELECT password, avatar, status_message FROM users WHERE username = ?";
+        try {
+            return read(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, username);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        return new String[] { rs.getString(1), rs.getString(2), rs.getString(3) };
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
-            System.out.println("Auth error: " + e.getMessage());
+            System.out.println("Error loading user " + username + ": " + e.getMessage());
         }
-        return false;
+        return null;
     }
 
-    public boolean userExists(String username) {
-        String sql = "SELECT 1 FROM users WHERE username = ?";
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            return pstmt.executeQuery().next();
+    /**
+     * {username, password, avatar, status message} of up to {@code limit} users.
+     */
+    java.util.List<String[]> getUsers(int limit) {
+        java.util.List<String[]> users = new java.util.ArrayList<>();
+        String sql = "SELECT username, password, avatar, status_message FROM users LIMIT ?";
+        try {
+            read(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setInt(1, limit);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        users.add(new String[] { rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4) });
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
-            return false;
+            System.out.println("Error loading users: " + e.getMessage());
         }
+        return users;
     }
 
     // --- Message Persistence ---
@@ -154,82 +188,236 @@ public class DatabaseService {
                 "content TEXT, " +
                 "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP" +
                 ");";
-        try (Connection conn = connect();
-                Statement stmt = conn.createStatement()) {
-            stmt.execute(sql);
-        }
+        execute(sql);
+        // History pages walk a channel backwards from a message id
+        execute("CREATE INDEX IF NOT EXISTS idx_messages_channel_id ON messages(channel, id)");
     }
 
-    public void saveMessage(String channel, String username, String content) {
-        String sql = "INSERT INTO messages(channel, username, content) VALUES(?, ?, ?)";
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, channel);
-            pstmt.setString(2, username);
-            pstmt.setString(3, content);
-            pstmt.executeUpdate();
+    /**
+     * Writes a batch of channel and private messages in a single transaction,
+     * with the ids and timestamps already assigned by MessageWriter.
+     */
+    void saveBatch(java.util.List<ChatMessage> batch) throws SQLException {
+        String sqlPublic = "INSERT INTO messages(id, channel, username, content, timestamp) VALUES(?, ?, ?, ?, ?)";
+        String sqlPrivate = "INSERT INTO private_messages(id, sender, receiver, content, timestamp) VALUES(?, ?, ?, ?, ?)";
+        write(conn -> {
+            java.sql.Connection c = conn.getConnection();
+            c.setAutoCommit(false);
+            try {
+                for (ChatMessage m : batch) {
+                    PreparedStatement pstmt = conn.prepare(m.isPrivate() ? sqlPrivate : sqlPublic);
+                    pstmt.setLong(1, m.id);
+                    pstmt.setString(2, m.isPrivate() ? m.sender : m.channel);
+                    pstmt.setString(3, m.isPrivate() ? m.receiver : m.sender);
+                    pstmt.setString(4, m.content);
+                    pstmt.setString(5, m.sqlTimestamp());
+                    pstmt.executeUpdate();
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            return null;
+        });
+    }
+
+    public long getLastMessageId() {
+        return getMaxId("SELECT MAX(id) FROM messages");
+    }
+
+    public long getLastPrivateMessageId() {
+        return getMaxId("SELECT MAX(id) FROM private_messages");
+    }
+
+    private long getMaxId(String sql) {
+        try {
+            return read(conn -> {
+                try (ResultSet rs = conn.prepare(sql).executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            });
         } catch (SQLException e) {
-            System.out.println("Error saving message: " + e.getMessage());
+            System.out.println("Error reading last message id: " + e.getMessage());
+            return 0;
         }
     }
 
     public java.util.List<String> getHistory(String channel, int limit) {
         java.util.List<String> history = new java.util.ArrayList<>();
-        String sql = "SELECT username, content, datetime(timestamp, 'localtime') as timestamp FROM messages WHERE channel = ? ORDER BY id DESC LIMIT ?";
-
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, channel);
-            pstmt.setInt(2, limit);
-            ResultSet rs = pstmt.executeQuery();
-
-            // Result is reverse order (DESC), we want chronological for chat
-            while (rs.next()) {
-                String user = rs.getString("username");
-                String msg = rs.getString("content");
-                // Timestamp format from SQLite is usually YYYY-MM-DD HH:MM:SS
-                // We just want HH:mm:ss ideally, or just raw string
-                String ts = rs.getString("timestamp");
-
-                // Format: "HISTORY:[<Time>] [<User>]: <Msg>"
-                // We will implement a HISTORY protocol handling in client or just send as text
-                // Let's format it nicely here.
-                // Assuming SQLite returns "YYYY-MM-DD HH:MM:SS"
-                String timePart = ts;
-                try {
-                    // Parse to dd/MM/yy HH:mm:ss format
-                    if (ts.contains(" ")) {
-                        String[] parts = ts.split(" ");
-                        String datePart = parts[0]; // YYYY-MM-DD
-                        String timePortion = parts[1]; // HH:MM:SS
-
-                        // Parse date
-                        String[] dateComponents = datePart.split("-");
-                        if (dateComponents.length == 3) {
-                            String year = dateComponents[0].substring(2); // Get last 2 digits of year
-                            String month = dateComponents[1];
-                            String day = dateComponents[2];
-
-                            // Remove milliseconds from time if any
-                            if (timePortion.contains("."))
-                                timePortion = timePortion.split("\\.")[0];
-
-                            timePart = day + "/" + month + "/" + year + " " + timePortion;
-                        }
+        for (HistoryCache.Entry entry : getHistoryPage(channel, Long.MAX_VALUE, limit).entries) {
+            history.add(entry.line);
+        }
+        return history;
+    }
+
+    /**
+     * Up to {@code limit} messages of the channel older than message
+     * {@code before}, oldest first.
+     */
+    public HistoryCache.Page getHistoryPage(String channel, long before, int limit) {
+        java.util.List<HistoryCache.Entry> history = new java.util.ArrayList<>();
+        String sql = "SELECT id, username, content, datetime(timestamp, 'localtime') as timestamp FROM messages " +
+                "WHERE channel = ? AND id < ? ORDER BY id DESC LIMIT ?";
+
+        try {
+            read(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, channel);
+                pstmt.setLong(2, before);
+                // One extra row tells whether there is an older page
+                pstmt.setInt(3, limit + 1);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    // Result is reverse order (DESC), we want chronological for chat
+                    while (rs.next()) {
+                        String user = rs.getString("username");
+                        String msg = rs.getString("content");
+                        // Timestamp format from SQLite is usually YYYY-MM-DD HH:MM:SS
+                        String ts = rs.getString("timestamp");
+
+                        // Format: "HISTORY:[<Time>] [<User>]: <Msg>"
+                        history.add(new HistoryCache.Entry(rs.getLong("id"),
+                                "HISTORY:[" + formatChannelTimestamp(ts) + "] [" + user + "]: " + msg));
                     }
-                } catch (Exception e) {
                 }
-
-                history.add("HISTORY:[" + timePart + "] [" + user + "]: " + msg);
-            }
+                return null;
+            });
         } catch (SQLException e) {
             System.out.println("Error loading history: " + e.getMessage());
         }
 
+        boolean more = history.size() > limit;
+        if (more) {
+            history.remove(history.size() - 1);
+        }
         // Reverse back to chronological
         java.util.Collections.reverse(history);
-        return history;
+        return new HistoryCache.Page(history, more);
     }
+
+    /**
+     * Up to {@code limit} messages of the channel newer than message
+     * {@code after}, oldest first. {@code more} tells whether newer ones
+     * were left out.
+     */
+    public HistoryCache.Page getHistoryAfter(String channel, long after, int limit) {
+        java.util.List<HistoryCache.Entry> history = new java.util.ArrayList<>();
+        String sql = "SELECT id, username, content, datetime(timestamp, 'localtime') as timestamp FROM messages " +
+                "WHERE channel = ? AND id > ? ORDER BY id LIMIT ?";
+
+        try {
+            read(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, channel);
+                pstmt.setLong(2, after);
+                pstmt.setInt(3, limit + 1);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        history.add(new HistoryCache.Entry(rs.getLong("id"), "HISTORY:["
+                                + formatChannelTimestamp(rs.getString("timestamp")) + "] ["
+                                + rs.getString("username") + "]: " + rs.getString("content")));
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            System.out.println("Error loading history: " + e.getMessage());
+        }
+
+        boolean more = history.size() > limit;
+        if (more) {
+            history.remove(history.size() - 1);
+        }
+        return new HistoryCache.Page(history, more);
+    }
+
+    /**
+     * Feeds the last {@code perKey} messages of every channel and of every
+     * private conversation to the history cache, oldest first.
+     */
+    void loadRecentHistory(int perKey, HistoryCache cache) {
+        String sqlPublic = "SELECT id, channel, username, content, datetime(timestamp, 'localtime') as timestamp FROM (" +
+                "SELECT *, ROW_NUMBER() OVER (PARTITION BY channel ORDER BY id DESC) AS rn FROM messages" +
+                ") WHERE rn <= ? ORDER BY id";
+        String sqlPrivate = "SELECT id, sender, receiver, content, datetime(timestamp, 'localtime') as timestamp FROM (" +
+                "SELECT *, ROW_NUMBER() OVER (PARTITION BY MIN(sender, receiver), MAX(sender, receiver) ORDER BY id DESC) AS rn " +
+                "FROM private_messages) WHERE rn <= ? ORDER BY id";
+        try {
+            read(conn -> {
+                PreparedStatement pstmt = conn.prepare(sqlPublic);
+                pstmt.setInt(1, perKey);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        cache.warmChannel(rs.getString("channel"), rs.getLong("id"),
+                                "HISTORY:[" + formatChannelTimestamp(rs.getString("timestamp")) + "] ["
+                                        + rs.getString("username") + "]: " + rs.getString("content"));
+                    }
+                }
+                pstmt = conn.prepare(sqlPrivate);
+                pstmt.setInt(1, perKey);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        cache.warmPrivate(rs.getString("sender"), rs.getString("receiver"), rs.getLong("id"),
+                                "HISTORY:[" + formatPrivateTimestamp(rs.getString("timestamp")) + "] ["
+                                        + rs.getString("sender") + "]: " + rs.getString("content"));
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            System.out.println("Error loading history cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * "YYYY-MM-DD HH:MM:SS[.mmm]" as returned by SQLite -> "dd/MM/yy HH:mm:ss".
+     */
+    static String formatChannelTimestamp(String ts) {
+        String timePart = ts;
+        try {
+            // Parse to dd/MM/yy HH:mm:ss format
+            if (ts.contains(" ")) {
+                String[] parts = ts.split(" ");
+                String datePart = parts[0]; // YYYY-MM-DD
+                String timePortion = parts[1]; // HH:MM:SS
+
+                // Parse date
+                String[] dateComponents = datePart.split("-");
+                if (dateComponents.length == 3) {
+                    String year = dateComponents[0].substring(2); // Get last 2 digits of year
+                    String month = dateComponents[1];
+                    String day = dateComponents[2];
+
+                    // Remove milliseconds from time if any
+                    if (timePortion.contains("."))
+                        timePortion = timePortion.split("\\.")[0];
+
+                    timePart = day + "/" + month + "/" + year + " " + timePortion;
+                }
+            }
+        } catch (Exception e) {
+        }
+        return timePart;
+    }
+
+    /**
+     * "YYYY-MM-DD HH:MM:SS[.mmm]" as returned by SQLite -> "HH:mm:ss".
+     */
+    static String formatPrivateTimestamp(String ts) {
+        String timePart = ts;
+        try {
+            if (ts.contains(" ")) {
+                timePart = ts.split(" ")[1];
+                if (timePart.contains("."))
+                    timePart = timePart.split("\\.")[0];
+            }
+        } catch (Exception e) {
+        }
+        return timePart;
+    }
+
     // --- Friends System ---
 
     private void createFriendsTable() throws SQLException {
@@ -239,10 +427,7 @@ public class DatabaseService {
                 "status TEXT, " + // PENDING, ACCEPTED
                 "PRIMARY KEY (user1, user2)" +
                 ");";
-        try (Connection conn = connect();
-                Statement stmt = conn.createStatement()) {
-            stmt.execute(sql);
-        }
+        execute(sql);
     }
 
     private void createPrivateMessageTable() throws SQLException {
@@ -253,12 +438,60 @@ public class DatabaseService {
                 "content TEXT, " +
                 "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP" +
                 ");";
-        try (Connection conn = connect();
-                Statement stmt = conn.createStatement()) {
-            stmt.execute(sql);
+        execute(sql);
+        // Each direction of a conversation is one range of this index
+        execute("CREATE INDEX IF NOT EXISTS idx_private_messages_pair_id ON private_messages(sender, receiver, id)");
+    }
+
+    /**
+     * External-content FTS5 indexes over the message tables, kept in sync by
+     * triggers so every write path (batched writer, AdminGUI...) is covered.
+     * Built from the existing rows the first time.
+     */
+    private void createSearchIndex() {
+        try {
+            createSearchIndex("messages");
+            createSearchIndex("private_messages");
+            searchIndexed = true;
+        } catch (SQLException e) {
+            System.out.println("Full-text search unavailable, using LIKE: " + e.getMessage());
         }
     }
 
+    private void createSearchIndex(String table) throws SQLException {
+        String fts = table + "_fts";
+        boolean exists = read(conn -> {
+            PreparedStatement pstmt = conn.prepare("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?");
+            pstmt.setString(1, fts);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        });
+        execute("CREATE VIRTUAL TABLE IF NOT EXISTS " + fts + " USING fts5(content, content='" + table
+                + "', content_rowid='id', tokenize='unicode61 remove_diacritics 2')");
+        execute("CREATE TRIGGER IF NOT EXISTS " + fts + "_ai AFTER INSERT ON " + table + " BEGIN " +
+                "INSERT INTO " + fts + "(rowid, content) VALUES (new.id, new.content); END");
+        execute("CREATE TRIGGER IF NOT EXISTS " + fts + "_ad AFTER DELETE ON " + table + " BEGIN " +
+                "INSERT INTO " + fts + "(" + fts + ", rowid, content) VALUES ('delete', old.id, old.content); END");
+        execute("CREATE TRIGGER IF NOT EXISTS " + fts + "_au AFTER UPDATE OF content ON " + table + " BEGIN " +
+                "INSERT INTO " + fts + "(" + fts + ", rowid, content) VALUES ('delete', old.id, old.content); " +
+                "INSERT INTO " + fts + "(rowid, content) VALUES (new.id, new.content); END");
+        if (!exists) {
+            long start = System.currentTimeMillis();
+            execute("INSERT INTO " + fts + "(" + fts + ") VALUES ('rebuild')");
+            System.out.println("Built search index " + fts + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        write(conn -> {
+            try (Statement stmt = conn.getConnection().createStatement()) {
+                stmt.execute(sql);
+            }
+            return null;
+        });
+    }
+
     public void initFriendTables() {
         try {
             createFriendsTable();
@@ -268,19 +501,20 @@ public class DatabaseService {
         }
     }
 
-    // Returns true if request sent, false if already exists
+    /**
+     * Stores a request; FriendGraph has already checked the two users are
+     * not linked.
+     */
     public boolean requestFriend(String requester, String target) {
-        // Check if exists in either direction
-        if (areFriendsOrPending(requester, target))
-            return false;
-
         String sql = "INSERT INTO friends(user1, user2, status) VALUES(?, ?, 'PENDING')";
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, requester);
-            pstmt.setString(2, target);
-            pstmt.executeUpdate();
-            return true;
+        try {
+            return write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, requester);
+                pstmt.setString(2, target);
+                pstmt.executeUpdate();
+                return true;
+            });
         } catch (SQLException e) {
             System.out.println("Error requesting friend: " + e.getMessage());
             return false;
@@ -292,12 +526,14 @@ public class DatabaseService {
         // usually, or just update)
         // Check if there is a pending request from target to requester
         String sql = "UPDATE friends SET status = 'ACCEPTED' WHERE user1 = ? AND user2 = ? AND status = 'PENDING'";
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, target); // The original requester
-            pstmt.setString(2, requester); // The one accepting
-            int rows = pstmt.executeUpdate();
-            return rows > 0;
+        try {
+            return write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, target); // The original requester
+                pstmt.setString(2, requester); // The one accepting
+                int rows = pstmt.executeUpdate();
+                return rows > 0;
+            });
         } catch (SQLException e) {
             System.out.println("Error accepting friend: " + e.getMessage());
             return false;
@@ -311,152 +547,213 @@ public class DatabaseService {
         // Usually target sent request to requester. So target=user1, requester=user2.
 
         String sql = "DELETE FROM friends WHERE ((user1 = ? AND user2 = ?) OR (user1 = ? AND user2 = ?)) AND status = 'PENDING'";
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, target);
-            pstmt.setString(2, requester);
-            pstmt.setString(3, requester);
-            pstmt.setString(4, target);
-            int rows = pstmt.executeUpdate();
-            return rows > 0;
+        try {
+            return write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, target);
+                pstmt.setString(2, requester);
+                pstmt.setString(3, requester);
+                pstmt.setString(4, target);
+                int rows = pstmt.executeUpdate();
+                return rows > 0;
+            });
         } catch (SQLException e) {
             System.out.println("Error rejecting friend: " + e.getMessage());
             return false;
         }
     }
 
-    public boolean areFriendsOrPending(String u1, String u2) {
-        String sql = "SELECT 1 FROM friends WHERE (user1 = ? AND user2 = ?) OR (user1 = ? AND user2 = ?)";
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, u1);
-            pstmt.setString(2, u2);
-            pstmt.setString(3, u2);
-            pstmt.setString(4, u1);
-            return pstmt.executeQuery().next();
+    /**
+     * Every row of the friends table as {user1, user2, status}.
+     */
+    java.util.List<String[]> getFriendEdges() {
+        java.util.List<String[]> edges = new java.util.ArrayList<>();
+        String sql = "SELECT user1, user2, status FROM friends";
+        try {
+            read(conn -> {
+                try (ResultSet rs = conn.prepare(sql).executeQuery()) {
+                    while (rs.next()) {
+                        edges.add(new String[] { rs.getString(1), rs.getString(2), rs.getString(3) });
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
-            return false;
+            System.out.println("Error loading friends: " + e.getMessage());
         }
+        return edges;
     }
 
-    public java.util.List<String> getFriends(String user) {
-        java.util.List<String> friends = new java.util.ArrayList<>();
-        String sql = "SELECT user1, user2 FROM friends WHERE (user1 = ? OR user2 = ?) AND status = 'ACCEPTED'";
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, user);
-            pstmt.setString(2, user);
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                String u1 = rs.getString("user1");
-                String u2 = rs.getString("user2");
-                if (u1.equals(user))
-                    friends.add(u2);
-                else
-                    friends.add(u1);
-            }
-        } catch (SQLException e) {
-            System.out.println("Error getting friends: " + e.getMessage());
-        }
-        return friends;
-    }
+    // --- Private Messaging ---
 
-    public java.util.List<String> getPendingRequests(String user) {
-        java.util.List<String> requests = new java.util.ArrayList<>();
-        String sql = "SELECT user1 FROM friends WHERE user2 = ? AND status = 'PENDING'";
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, user);
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                requests.add(rs.getString("user1"));
-            }
-        } catch (SQLException e) {
-            System.out.println("Error getting requests: " + e.getMessage());
+    public java.util.List<String> getPrivateHistory(String user1, String user2, int limit) {
+        java.util.List<String> history = new java.util.ArrayList<>();
+        for (HistoryCache.Entry entry : getPrivateHistoryPage(user1, user2, Long.MAX_VALUE, limit).entries) {
+            history.add(entry.line);
         }
-        return requests;
+        return history;
     }
 
-    // --- Private Messaging ---
+    /**
+     * Up to {@code limit} messages between the two users older than message
+     * {@code before}, oldest first.
+     */
+    public HistoryCache.Page getPrivateHistoryPage(String user1, String user2, long before, int limit) {
+        java.util.List<HistoryCache.Entry> history = new java.util.ArrayList<>();
+        // One bounded walk of the (sender, receiver, id) index per direction,
+        // merged: an OR of the two directions sorts the whole conversation
+        String direction = "SELECT * FROM (SELECT id, sender, content, datetime(timestamp, 'localtime') as timestamp " +
+                "FROM private_messages WHERE sender = ? AND receiver = ? AND id < ? ORDER BY id DESC LIMIT ?)";
+        String sql = direction + " UNION ALL " + direction + " ORDER BY id DESC LIMIT ?";
 
-    public void savePrivateMessage(String sender, String receiver, String content) {
-        String sql = "INSERT INTO private_messages(sender, receiver, content) VALUES(?, ?, ?)";
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, sender);
-            pstmt.setString(2, receiver);
-            pstmt.setString(3, content);
-            pstmt.executeUpdate();
+        try {
+            read(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, user1);
+                pstmt.setString(2, user2);
+                pstmt.setLong(3, before);
+                pstmt.setInt(4, limit + 1);
+                pstmt.setString(5, user2);
+                pstmt.setString(6, user1);
+                pstmt.setLong(7, before);
+                // Messages to oneself are found by the first direction alone
+                pstmt.setInt(8, user1.equals(user2) ? 0 : limit + 1);
+                pstmt.setInt(9, limit + 1);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        String sender = rs.getString("sender");
+                        String msg = rs.getString("content");
+                        String ts = rs.getString("timestamp");
+
+                        history.add(new HistoryCache.Entry(rs.getLong("id"),
+                                "HISTORY:[" + formatPrivateTimestamp(ts) + "] [" + sender + "]: " + msg));
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
-            System.out.println("Error saving private message: " + e.getMessage());
+            System.out.println("Error loading pm history: " + e.getMessage());
         }
+
+        boolean more = history.size() > limit;
+        if (more) {
+            history.remove(history.size() - 1);
+        }
+        java.util.Collections.reverse(history);
+        return new HistoryCache.Page(history, more);
     }
 
-    public java.util.List<String> getPrivateHistory(String user1, String user2, int limit) {
-        java.util.List<String> history = new java.util.ArrayList<>();
-        // Select messages between u1 and u2 (either direction)
-        String sql = "SELECT sender, content, datetime(timestamp, 'localtime') as timestamp FROM private_messages " +
-                "WHERE (sender = ? AND receiver = ?) OR (sender = ? AND receiver = ?) " +
-                "ORDER BY id DESC LIMIT ?";
-
-        try (Connection conn = connect();
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, user1);
-            pstmt.setString(2, user2);
-            pstmt.setString(3, user2);
-            pstmt.setString(4, user1);
-            pstmt.setInt(5, limit);
-            ResultSet rs = pstmt.executeQuery();
-
-            while (rs.next()) {
-                String sender = rs.getString("sender");
-                String msg = rs.getString("content");
-                String ts = rs.getString("timestamp");
-
-                String timePart = ts;
-                try {
-                    if (ts.contains(" ")) {
-                        timePart = ts.split(" ")[1];
-                        if (timePart.contains("."))
-                            timePart = timePart.split("\\.")[0];
+    /**
+     * Channel messages and the user's private messages containing every word
+     * of the query ("word*" for a prefix), best match first. Only the newest
+     * matches (chat.search.rankWindow of each kind) are ranked, so a common
+     * word does not make SQLite score the whole history. Returns at most
+     * {@code limit + 1} results: an extra one means another page exists.
+     */
+    public java.util.List<String> searchMessages(String query, String username, int offset, int limit) {
+        java.util.List<String> results = new java.util.ArrayList<>();
+        if (!searchIndexed) {
+            return searchMessagesUnindexed(query, username, offset, limit);
+        }
+        String match = toMatchQuery(query);
+        if (match.isEmpty()) {
+            return results;
+        }
+        // FTS5 walks the index newest first and stops after the window
+        String sql = "SELECT kind, location, author, content, ts FROM (" +
+                "SELECT 'CHANNEL' AS kind, m.channel AS location, m.username AS author, m.content AS content, " +
+                "datetime(m.timestamp, 'localtime') AS ts, c.score AS score, m.id AS id FROM (" +
+                "SELECT rowid AS id, bm25(messages_fts) AS score FROM messages_fts " +
+                "WHERE messages_fts MATCH ? ORDER BY rowid DESC LIMIT ?" +
+                ") c JOIN messages m ON m.id = c.id " +
+                "UNION ALL " +
+                "SELECT 'PRIVATE', CASE WHEN p.sender = ? THEN p.receiver ELSE p.sender END, p.sender, p.content, " +
+                "datetime(p.timestamp, 'localtime'), c.score, p.id FROM (" +
+                "SELECT private_messages_fts.rowid AS id, bm25(private_messages_fts) AS score " +
+                "FROM private_messages_fts JOIN private_messages ON private_messages.id = private_messages_fts.rowid " +
+                "WHERE private_messages_fts MATCH ? AND (private_messages.sender = ? OR private_messages.receiver = ?) " +
+                "ORDER BY private_messages_fts.rowid DESC LIMIT ?" +
+                ") c JOIN private_messages p ON p.id = c.id" +
+                ") ORDER BY score, id DESC LIMIT ? OFFSET ?";
+
+        try {
+            read(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, match);
+                pstmt.setInt(2, ServerConfig.SEARCH_RANK_WINDOW);
+                pstmt.setString(3, username);
+                pstmt.setString(4, match);
+                pstmt.setString(5, username);
+                pstmt.setString(6, username);
+                pstmt.setInt(7, ServerConfig.SEARCH_RANK_WINDOW);
+                pstmt.setInt(8, limit + 1);
+                pstmt.setInt(9, offset);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        results.add(rs.getString("kind") + ":" + rs.getString("location") + ":" + rs.getString("author")
+                                + ":" + rs.getString("ts") + ":" + rs.getString("content"));
                     }
-                } catch (Exception e) {
                 }
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return results;
+    }
 
-                history.add("HISTORY:[" + timePart + "] [" + sender + "]: " + msg);
+    /**
+     * foo bar* -> {@code "foo" "bar"*}: every word quoted so that FTS5
+     * operators typed by the user are matched as text. Prefixes only when
+     * asked for, they are much slower to look up than whole words.
+     */
+    static String toMatchQuery(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.isEmpty()) {
+                continue;
             }
-        } catch (SQLException e) {
-            System.out.println("Error loading pm history: " + e.getMessage());
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            boolean prefix = word.endsWith("*") && word.length() > 1;
+            if (prefix) {
+                word = word.substring(0, word.length() - 1);
+            }
+            match.append('"').append(word.replace("\"", "\"\"")).append('"').append(prefix ? "*" : "");
         }
-        java.util.Collections.reverse(history);
-        return history;
+        return match.toString();
     }
-    public java.util.List<String> searchMessages(String query, String username) {
+
+    private java.util.List<String> searchMessagesUnindexed(String query, String username, int offset, int limit) {
         java.util.List<String> results = new java.util.ArrayList<>();
-        String sqlPublic = "SELECT channel, username, content, datetime(timestamp, 'localtime') as ts FROM messages WHERE content LIKE ?";
-        String sqlPrivate = "SELECT sender, receiver, content, datetime(timestamp, 'localtime') as ts FROM private_messages WHERE (sender = ? OR receiver = ?) AND content LIKE ?";
-        
-        try (Connection conn = connect()) {
-            // Public
-            try (PreparedStatement pstmt = conn.prepareStatement(sqlPublic)) {
+        String sql = "SELECT kind, location, author, content, ts FROM (" +
+                "SELECT 'CHANNEL' AS kind, channel AS location, username AS author, content, " +
+                "datetime(timestamp, 'localtime') AS ts, id FROM messages WHERE content LIKE ? " +
+                "UNION ALL " +
+                "SELECT 'PRIVATE', CASE WHEN sender = ? THEN receiver ELSE sender END, sender, content, " +
+                "datetime(timestamp, 'localtime'), id FROM private_messages " +
+                "WHERE (sender = ? OR receiver = ?) AND content LIKE ?" +
+                ") ORDER BY id DESC LIMIT ? OFFSET ?";
+
+        try {
+            read(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
                 pstmt.setString(1, "%" + query + "%");
-                ResultSet rs = pstmt.executeQuery();
-                while (rs.next()) {
-                    results.add("CHANNEL:" + rs.getString("channel") + ":" + rs.getString("username") + ":" + rs.getString("ts") + ":" + rs.getString("content"));
-                }
-            }
-            
-            // Private
-            try (PreparedStatement pstmt = conn.prepareStatement(sqlPrivate)) {
-                pstmt.setString(1, username);
                 pstmt.setString(2, username);
-                pstmt.setString(3, "%" + query + "%");
-                ResultSet rs = pstmt.executeQuery();
-                while (rs.next()) {
-                    String other = rs.getString("sender").equals(username) ? rs.getString("receiver") : rs.getString("sender");
-                    results.add("PRIVATE:" + other + ":" + rs.getString("sender") + ":" + rs.getString("ts") + ":" + rs.getString("content"));
+                pstmt.setString(3, username);
+                pstmt.setString(4, username);
+                pstmt.setString(5, "%" + query + "%");
+                pstmt.setInt(6, limit + 1);
+                pstmt.setInt(7, offset);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        results.add(rs.getString("kind") + ":" + rs.getString("location") + ":" + rs.getString("author")
+                                + ":" + rs.getString("ts") + ":" + rs.getString("content"));
+                    }
                 }
-            }
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -466,12 +763,15 @@ public class DatabaseService {
     public java.util.List<String> getChannels() {
         java.util.List<String> channels = new java.util.ArrayList<>();
         String sql = "SELECT name FROM channels";
-        try (Connection conn = connect();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            while (rs.next()) {
-                channels.add(rs.getString("name"));
-            }
+        try {
+            read(conn -> {
+                try (ResultSet rs = conn.prepare(sql).executeQuery()) {
+                    while (rs.next()) {
+                        channels.add(rs.getString("name"));
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
             System.out.println("Error getting channels: " + e.getMessage());
         }
@@ -480,10 +780,12 @@ public class DatabaseService {
 
     public void addChannel(String name) {
         String sql = "INSERT OR IGNORE INTO channels(name) VALUES(?)";
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, name);
-            pstmt.executeUpdate();
+        try {
+            write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, name);
+                return pstmt.executeUpdate();
+            });
         } catch (SQLException e) {
             System.out.println("Error adding channel: " + e.getMessage());
         }
@@ -491,10 +793,12 @@ public class DatabaseService {
 
     public void removeChannel(String name) {
         String sql = "DELETE FROM channels WHERE name = ?";
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, name);
-            pstmt.executeUpdate();
+        try {
+            write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, name);
+                return pstmt.executeUpdate();
+            });
         } catch (SQLException e) {
             System.out.println("Error removing channel: " + e.getMessage());
         }
@@ -502,11 +806,13 @@ public class DatabaseService {
 
     public void renameChannel(String oldName, String newName) {
         String sql = "UPDATE channels SET name = ? WHERE name = ?";
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, newName);
-            pstmt.setString(2, oldName);
-            pstmt.executeUpdate();
+        try {
+            write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, newName);
+                pstmt.setString(2, oldName);
+                return pstmt.executeUpdate();
+            });
         } catch (SQLException e) {
             System.out.println("Error renaming channel: " + e.getMessage());
         }
@@ -516,11 +822,177 @@ public class DatabaseService {
         String sql = "CREATE TABLE IF NOT EXISTS channels (" +
                 "name TEXT PRIMARY KEY" +
                 ");";
-        try (Connection conn = connect();
-             Statement stmt = conn.createStatement()) {
-            stmt.execute(sql);
-            // Ensure 'general' exists
-            stmt.execute("INSERT OR IGNORE INTO channels(name) VALUES('general')");
+        write(conn -> {
+            try (Statement stmt = conn.getConnection().createStatement()) {
+                stmt.execute(sql);
+                // Ensure 'general' exists
+                stmt.execute("INSERT OR IGNORE INTO channels(name) VALUES('general')");
+            }
+            return null;
+        });
+    }
+
+    private void createBlobTables() throws SQLException {
+        write(conn -> {
+            try (Statement stmt = conn.getConnection().createStatement()) {
+                // One row per stored content, refs counts the names pointing at it
+                stmt.execute("CREATE TABLE IF NOT EXISTS blobs (" +
+                        "hash TEXT PRIMARY KEY, " +
+                        "size INTEGER NOT NULL, " +
+                        "refs INTEGER NOT NULL" +
+                        ");");
+                // File ids and avatar names, e.g. "transfer/<id>" or "avatars/<file>"
+                stmt.execute("CREATE TABLE IF NOT EXISTS blob_names (" +
+                        "name TEXT PRIMARY KEY, " +
+                        "hash TEXT NOT NULL" +
+                        ");");
+            }
+            return null;
+        });
+    }
+
+    public String getBlobHash(String name) {
+        String sql = "SELECT hash FROM blob_names WHERE name = ?";
+        try {
+            return read(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, name);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? rs.getString(1) : null;
+                }
+            });
+        } catch (SQLException e) {
+            System.out.println("Error reading blob name: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Points {@code name} at the blob {@code hash}, adding a reference to it.
+     * Returns the hash previously bound to the name if it has no reference
+     * left, null otherwise.
+     */
+    String bindBlob(String name, String hash, long size) throws SQLException {
+        return write(conn -> {
+            java.sql.Connection c = conn.getConnection();
+            c.setAutoCommit(false);
+            try {
+                String orphan = unbind(conn, name);
+                PreparedStatement add = conn.prepare("INSERT INTO blobs(hash, size, refs) VALUES(?, ?, 1) " +
+                        "ON CONFLICT(hash) DO UPDATE SET refs = refs + 1");
+                add.setString(1, hash);
+                add.setLong(2, size);
+                add.executeUpdate();
+                PreparedStatement bind = conn.prepare("INSERT INTO blob_names(name, hash) VALUES(?, ?)");
+                bind.setString(1, name);
+                bind.setString(2, hash);
+                bind.executeUpdate();
+                c.commit();
+                return hash.equals(orphan) ? null : orphan;
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        });
+    }
+
+    /**
+     * Removes {@code name} and its reference. Returns the hash it pointed at
+     * if that blob has no reference left, null otherwise.
+     */
+    String unbindBlob(String name) throws SQLException {
+        return write(conn -> {
+            java.sql.Connection c = conn.getConnection();
+            c.setAutoCommit(false);
+            try {
+                String orphan = unbind(conn, name);
+                c.commit();
+                return orphan;
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        });
+    }
+
+    private String unbind(ConnectionPool.PooledConnection conn, String name) throws SQLException {
+        PreparedStatement find = conn.prepare("SELECT hash FROM blob_names WHERE name = ?");
+        find.setString(1, name);
+        String hash;
+        try (ResultSet rs = find.executeQuery()) {
+            if (!rs.next()) {
+                return null;
+            }
+            hash = rs.getString(1);
+        }
+        PreparedStatement delete = conn.prepare("DELETE FROM blob_names WHERE name = ?");
+        delete.setString(1, name);
+        delete.executeUpdate();
+        PreparedStatement release = conn.prepare("UPDATE blobs SET refs = refs - 1 WHERE hash = ?");
+        release.setString(1, hash);
+        release.executeUpdate();
+        PreparedStatement refs = conn.prepare("SELECT refs FROM blobs WHERE hash = ?");
+        refs.setString(1, hash);
+        try (ResultSet rs = refs.executeQuery()) {
+            return rs.next() && rs.getLong(1) <= 0 ? hash : null;
+        }
+    }
+
+    /**
+     * Drops the row of a blob nobody references any more. Returns false if
+     * it is referenced again.
+     */
+    boolean deleteBlob(String hash) {
+        String sql = "DELETE FROM blobs WHERE hash = ? AND refs <= 0";
+        try {
+            return write(conn -> {
+                PreparedStatement pstmt = conn.prepare(sql);
+                pstmt.setString(1, hash);
+                return pstmt.executeUpdate() > 0;
+            });
+        } catch (SQLException e) {
+            System.out.println("Error deleting blob: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Hash of every blob with at least one reference.
+     */
+    java.util.Set<String> getReferencedBlobs() throws SQLException {
+        return read(conn -> {
+            java.util.Set<String> hashes = new java.util.HashSet<>();
+            try (ResultSet rs = conn.prepare("SELECT hash FROM blobs WHERE refs > 0").executeQuery()) {
+                while (rs.next()) {
+                    hashes.add(rs.getString(1));
+                }
+            }
+            return hashes;
+        });
+    }
+
+    /**
+     * Number of names and distinct blobs, and the bytes they would take
+     * without deduplication and with it.
+     */
+    long[] getBlobUsage() {
+        String sql = "SELECT (SELECT COUNT(*) FROM blob_names), COUNT(*), " +
+                "(SELECT COALESCE(SUM(b.size), 0) FROM blob_names n JOIN blobs b ON b.hash = n.hash), " +
+                "COALESCE(SUM(size), 0) FROM blobs WHERE refs > 0";
+        try {
+            return read(conn -> {
+                try (ResultSet rs = conn.prepare(sql).executeQuery()) {
+                    rs.next();
+                    return new long[] { rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getLong(4) };
+                }
+            });
+        } catch (SQLException e) {
+            System.out.println("Error reading blob usage: " + e.getMessage());
+            return new long[4];
         }
     }
 }
@@ -0,0 +1,57 @@
+package fr.unilasalle.chat.server;
+
+import fr.unilasalle.chat.protocol.Packet;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One outbound message, encoded once per protocol however many clients it
+ * goes to. A broadcast builds a single Frame and queues that same instance
+ * for every recipient; transports write its bytes as they are and never
+ * modify them.
+ */
+final class Frame {
+    private final String line;
+    private final Packet packet;
+    // Encoded on first use, a racing second encoding gives the same bytes
+    private volatile byte[] text;
+    private volatile byte[] binary;
+
+    Frame(String line) {
+        this.line = line;
+        this.packet = null;
+    }
+
+    Frame(Packet packet) {
+        this.line = null;
+        this.packet = packet;
+    }
+
+    /**
+     * Text protocol: UTF-8 bytes of the line followed by '\n'. Line breaks
+     * sent by binary clients become spaces. Shared, do not modify.
+     */
+    byte[] bytes() {
+        byte[] b = text;
+        if (b == null) {
+            String l = line != null ? line : packet.toLine();
+            if (l.indexOf('\n') >= 0 || l.indexOf('\r') >= 0) {
+                l = l.replace('\r', ' ').replace('\n', ' ');
+            }
+            b = (l + "\n").getBytes(StandardCharsets.UTF_8);
+            text = b;
+        }
+        return b;
+    }
+
+    /**
+     * Binary protocol: the encoded packet. Shared, do not modify.
+     */
+    byte[] binary() {
+        byte[] b = binary;
+        if (b == null) {
+            b = (packet != null ? packet : Packet.fromLine(line)).encode();
+            binary = b;
+        }
+        return b;
+    }
+}
@@ -0,0 +1,234 @@
+package fr.unilasalle.chat.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The friends table in memory, so friend lists and presence fan-out never
+ * query the database. Loaded once at startup. A change is checked and
+ * applied here first, then written to the database outside the lock, and
+ * undone if the write fails: readers never wait for SQLite.
+ */
+public class FriendGraph {
+
+    private static class Node {
+        final Set<String> friends = new LinkedHashSet<>();
+        // Users who asked this one, and users this one asked
+        final Set<String> incoming = new LinkedHashSet<>();
+        final Set<String> outgoing = new LinkedHashSet<>();
+    }
+
+    private final DatabaseService db;
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public FriendGraph(DatabaseService db) {
+        this.db = db;
+    }
+
+    /**
+     * Loads every friendship and pending request from the database.
+     */
+    public void load() {
+        List<String[]> rows = db.getFriendEdges();
+        int edges = 0;
+        lock.writeLock().lock();
+        try {
+            nodes.clear();
+            for (String[] edge : rows) {
+                if ("ACCEPTED".equals(edge[2])) {
+                    node(edge[0]).friends.add(edge[1]);
+                    node(edge[1]).friends.add(edge[0]);
+                } else {
+                    node(edge[0]).outgoing.add(edge[1]);
+                    node(edge[1]).incoming.add(edge[0]);
+                }
+                edges++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        System.out.println("Loaded " + edges + " friend links");
+    }
+
+    private Node node(String user) {
+        return nodes.computeIfAbsent(user, k -> new Node());
+    }
+
+    public List<String> getFriends(String user) {
+        lock.readLock().lock();
+        try {
+            Node node = nodes.get(user);
+            return node != null ? new ArrayList<>(node.friends) : new ArrayList<>();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Users who sent {@code user} a request not answered yet.
+     */
+    public List<String> getPendingRequests(String user) {
+        lock.readLock().lock();
+        try {
+            Node node = nodes.get(user);
+            return node != null ? new ArrayList<>(node.incoming) : new ArrayList<>();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean areFriendsOrPending(String u1, String u2) {
+        lock.readLock().lock();
+        try {
+            return linked(u1, u2);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean linked(String u1, String u2) {
+        Node node = nodes.get(u1);
+        return node != null && (node.friends.contains(u2) || node.incoming.contains(u2) || node.outgoing.contains(u2));
+    }
+
+    /**
+     * Returns true if the request was stored, false if the two users are
+     * already linked or the database refused it.
+     */
+    public boolean requestFriend(String requester, String target) {
+        lock.writeLock().lock();
+        try {
+            if (linked(requester, target)) {
+                return false;
+            }
+            // Taken now so that a concurrent request between the two fails
+            addRequest(requester, target);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (db.requestFriend(requester, target)) {
+            return true;
+        }
+        applyReject(target, requester);
+        return false;
+    }
+
+    /**
+     * Records a request already stored (by another node of the cluster).
+     */
+    public void applyRequest(String requester, String target) {
+        lock.writeLock().lock();
+        try {
+            addRequest(requester, target);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addRequest(String requester, String target) {
+        node(requester).outgoing.add(target);
+        node(target).incoming.add(requester);
+    }
+
+    /**
+     * {@code accepter} accepts the request {@code requester} sent them.
+     */
+    public boolean acceptFriend(String accepter, String requester) {
+        lock.writeLock().lock();
+        try {
+            Node node = nodes.get(accepter);
+            if (node == null || !node.incoming.contains(requester)) {
+                return false;
+            }
+            addFriends(accepter, requester);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (db.acceptFriend(accepter, requester)) {
+            return true;
+        }
+        lock.writeLock().lock();
+        try {
+            // Back to the pending request
+            node(accepter).friends.remove(requester);
+            node(requester).friends.remove(accepter);
+            addRequest(requester, accepter);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return false;
+    }
+
+    public void applyAccept(String accepter, String requester) {
+        lock.writeLock().lock();
+        try {
+            addFriends(accepter, requester);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addFriends(String accepter, String requester) {
+        node(accepter).incoming.remove(requester);
+        node(requester).outgoing.remove(accepter);
+        node(accepter).friends.add(requester);
+        node(requester).friends.add(accepter);
+    }
+
+    /**
+     * Drops a pending request between the two users, whoever sent it.
+     */
+    public boolean rejectRequest(String rejecter, String target) {
+        boolean received;
+        boolean sent;
+        lock.writeLock().lock();
+        try {
+            Node node = nodes.get(rejecter);
+            received = node != null && node.incoming.contains(target);
+            sent = node != null && node.outgoing.contains(target);
+            if (!received && !sent) {
+                return false;
+            }
+            removeRequests(rejecter, target);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (db.rejectRequest(rejecter, target)) {
+            return true;
+        }
+        lock.writeLock().lock();
+        try {
+            if (received) {
+                addRequest(target, rejecter);
+            }
+            if (sent) {
+                addRequest(rejecter, target);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return false;
+    }
+
+    public void applyReject(String rejecter, String target) {
+        lock.writeLock().lock();
+        try {
+            removeRequests(rejecter, target);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeRequests(String rejecter, String target) {
+        node(rejecter).incoming.remove(target);
+        node(rejecter).outgoing.remove(target);
+        node(target).incoming.remove(rejecter);
+        node(target).outgoing.remove(rejecter);
+    }
+}
@@ -0,0 +1,320 @@
+package fr.unilasalle.chat.server;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Last messages of every channel and private conversation, kept as the
+ * pre-formatted "HISTORY:" lines sent to clients. Warmed from SQLite on
+ * startup and fed by every new message, so replaying history on login,
+ * /history and /privhistory needs no query. In a cluster only the node
+ * owning a channel or conversation keeps it, see Cluster.
+ */
+public class HistoryCache {
+    private static final DateTimeFormatter CHANNEL_TIME = DateTimeFormatter.ofPattern("dd/MM/yy HH:mm:ss");
+    private static final DateTimeFormatter PRIVATE_TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    /**
+     * One history line and the id of the message it shows, used as the
+     * cursor of paged history requests.
+     */
+    public static final class Entry {
+        final long id;
+        final String line;
+
+        Entry(long id, String line) {
+            this.id = id;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Lines of a paged history request, oldest first. {@code more} tells
+     * whether older messages exist.
+     */
+    public static final class Page {
+        final List<Entry> entries;
+        final boolean more;
+
+        Page(List<Entry> entries, boolean more) {
+            this.entries = entries;
+            this.more = more;
+        }
+    }
+
+    /**
+     * Bounded, id-ordered buffer of history lines. Once full, each new line
+     * evicts the oldest.
+     */
+    private static class Ring {
+        private final long[] ids;
+        private final String[] lines;
+        private int head; // index of the oldest line
+        private int size;
+        // True while the ring holds every stored message of its key
+        private boolean complete = true;
+
+        Ring(int capacity) {
+            ids = new long[capacity];
+            lines = new String[capacity];
+        }
+
+        synchronized void add(long id, String line) {
+            int capacity = ids.length;
+            // Already there when it was loaded from the database after its commit
+            for (int i = size - 1; i >= 0 && ids[(head + i) % capacity] >= id; i--) {
+                if (ids[(head + i) % capacity] == id) {
+                    return;
+                }
+            }
+            if (size == capacity) {
+                if (id < ids[head]) {
+                    return; // older than everything kept
+                }
+                head = (head + 1) % capacity;
+                size--;
+                complete = false;
+            }
+            // Messages are appended as they are sent, which is nearly always
+            // in id order; shift the few that raced past an older one.
+            int pos = size;
+            while (pos > 0 && ids[(head + pos - 1) % capacity] > id) {
+                int from = (head + pos - 1) % capacity;
+                int to = (head + pos) % capacity;
+                ids[to] = ids[from];
+                lines[to] = lines[from];
+                pos--;
+            }
+            int slot = (head + pos) % capacity;
+            ids[slot] = id;
+            lines[slot] = line;
+            size++;
+        }
+
+        synchronized List<String> last(int limit) {
+            int count = Math.min(limit, size);
+            List<String> result = new ArrayList<>(count);
+            for (int i = size - count; i < size; i++) {
+                result.add(lines[(head + i) % ids.length]);
+            }
+            return result;
+        }
+
+        /**
+         * Up to {@code limit} lines older than {@code before}, or null when
+         * the ring cannot tell what precedes them.
+         */
+        synchronized Page before(long before, int limit) {
+            int end = size;
+            while (end > 0 && ids[(head + end - 1) % ids.length] >= before) {
+                end--;
+            }
+            int start = Math.max(0, end - limit);
+            if (end - start < limit && !complete) {
+                return null;
+            }
+            List<Entry> entries = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                int slot = (head + i) % ids.length;
+                entries.add(new Entry(ids[slot], lines[slot]));
+            }
+            return new Page(entries, start > 0 || !complete);
+        }
+
+        /**
+         * Up to {@code limit} lines newer than {@code after}, or null when
+         * the ring may have lost some of them.
+         */
+        synchronized Page after(long after, int limit) {
+            int start = 0;
+            while (start < size && ids[(head + start) % ids.length] <= after) {
+                start++;
+            }
+            if (start == 0 && !complete) {
+                return null;
+            }
+            int end = Math.min(size, start + limit);
+            List<Entry> entries = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                int slot = (head + i) % ids.length;
+                entries.add(new Entry(ids[slot], lines[slot]));
+            }
+            return new Page(entries, end < size);
+        }
+
+        synchronized long newestId() {
+            return size > 0 ? ids[(head + size - 1) % ids.length] : 0;
+        }
+
+        synchronized void markPossiblyIncomplete() {
+            if (size == ids.length) {
+                complete = false;
+            }
+        }
+    }
+
+    private final int capacity;
+    private final DatabaseService db;
+    private final ConcurrentHashMap<String, Ring> channels = new ConcurrentHashMap<>();
+    // Keyed by the two user names in sorted order, see pairKey
+    private final ConcurrentHashMap<String, Ring> conversations = new ConcurrentHashMap<>();
+    // Set in a cluster, where a key missing here may have history stored by another node
+    private volatile boolean loadMissing;
+
+    public HistoryCache(DatabaseService db, int capacity) {
+        this.db = db;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Loads the last lines of every channel and conversation. Must run before
+     * any new message is added: a key missing afterwards has no stored history.
+     */
+    public void warm() {
+        long start = System.currentTimeMillis();
+        db.loadRecentHistory(capacity, this);
+        // A full ring may have older rows left in the database
+        channels.values().forEach(Ring::markPossiblyIncomplete);
+        conversations.values().forEach(Ring::markPossiblyIncomplete);
+        System.out.println("History cache: " + channels.size() + " channels, " + conversations.size()
+                + " conversations loaded in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    void warmChannel(String channel, long id, String line) {
+        channelRing(channel).add(id, line);
+    }
+
+    void warmPrivate(String sender, String receiver, long id, String line) {
+        conversationRing(sender, receiver).add(id, line);
+    }
+
+    /**
+     * From now on a key missing from the cache is loaded from the database
+     * instead of having no history.
+     */
+    void loadMissingKeys() {
+        loadMissing = true;
+    }
+
+    /**
+     * Drops the channels and conversations that fail the tests. With
+     * loadMissingKeys they are loaded again when next needed.
+     */
+    void retainKeys(Predicate<String> channel, BiPredicate<String, String> conversation) {
+        channels.keySet().removeIf(key -> !channel.test(key));
+        conversations.keySet().removeIf(key -> {
+            int split = key.indexOf('\n');
+            return !conversation.test(key.substring(0, split), key.substring(split + 1));
+        });
+    }
+
+    void add(ChatMessage message) {
+        Instant time = Instant.ofEpochMilli(message.timestamp);
+        if (message.isPrivate()) {
+            String line = "HISTORY:[" + PRIVATE_TIME.format(time.atZone(ZoneId.systemDefault())) + "] ["
+                    + message.sender + "]: " + message.content;
+            conversationRing(message.sender, message.receiver).add(message.id, line);
+        } else {
+            String line = "HISTORY:[" + CHANNEL_TIME.format(time.atZone(ZoneId.systemDefault())) + "] ["
+                    + message.sender + "]: " + message.content;
+            channelRing(message.channel).add(message.id, line);
+        }
+    }
+
+    /**
+     * Same lines as DatabaseService.getHistory. Only asks the database for
+     * more than the cache holds.
+     */
+    public List<String> getHistory(String channel, int limit) {
+        if (limit > capacity) {
+            return db.getHistory(channel, limit);
+        }
+        Ring ring = loadMissing ? channelRing(channel) : channels.get(channel);
+        return ring != null ? ring.last(limit) : new ArrayList<>();
+    }
+
+    /**
+     * Same lines as DatabaseService.getPrivateHistory.
+     */
+    public List<String> getPrivateHistory(String user1, String user2, int limit) {
+        if (limit > capacity) {
+            return db.getPrivateHistory(user1, user2, limit);
+        }
+        Ring ring = loadMissing ? conversationRing(user1, user2) : conversations.get(pairKey(user1, user2));
+        return ring != null ? ring.last(limit) : new ArrayList<>();
+    }
+
+    /**
+     * Up to {@code limit} channel lines older than message {@code before}.
+     * Served from memory when the ring covers the page.
+     */
+    public Page getHistoryPage(String channel, long before, int limit) {
+        Ring ring = loadMissing ? channelRing(channel) : channels.get(channel);
+        Page page = ring != null ? ring.before(before, limit) : new Page(new ArrayList<>(), false);
+        return page != null ? page : db.getHistoryPage(channel, before, limit);
+    }
+
+    /**
+     * Up to {@code limit} channel lines newer than message {@code after},
+     * oldest first; {@code more} tells whether newer ones were left out.
+     */
+    public Page getHistoryAfter(String channel, long after, int limit) {
+        Ring ring = loadMissing ? channelRing(channel) : channels.get(channel);
+        Page page = ring != null ? ring.after(after, limit) : new Page(new ArrayList<>(), false);
+        return page != null ? page : db.getHistoryAfter(channel, after, limit);
+    }
+
+    /**
+     * Id of the newest message of a channel, 0 if it has none.
+     */
+    long newestId(String channel) {
+        Ring ring = loadMissing ? channelRing(channel) : channels.get(channel);
+        return ring != null ? ring.newestId() : 0;
+    }
+
+    /**
+     * Same as newestId for the conversation between two users.
+     */
+    long newestPrivateId(String user1, String user2) {
+        Ring ring = loadMissing ? conversationRing(user1, user2) : conversations.get(pairKey(user1, user2));
+        return ring != null ? ring.newestId() : 0;
+    }
+
+    /**
+     * Same as getHistoryPage for the conversation between two users.
+     */
+    public Page getPrivateHistoryPage(String user1, String user2, long before, int limit) {
+        Ring ring = loadMissing ? conversationRing(user1, user2) : conversations.get(pairKey(user1, user2));
+        Page page = ring != null ? ring.before(before, limit) : new Page(new ArrayList<>(), false);
+        return page != null ? page : db.getPrivateHistoryPage(user1, user2, before, limit);
+    }
+
+    private Ring channelRing(String channel) {
+        return channels.computeIfAbsent(channel, key -> loadMissing
+                ? load(db.getHistoryPage(key, Long.MAX_VALUE, capacity)) : new Ring(capacity));
+    }
+
+    private Ring conversationRing(String user1, String user2) {
+        return conversations.computeIfAbsent(pairKey(user1, user2), key -> loadMissing
+                ? load(db.getPrivateHistoryPage(user1, user2, Long.MAX_VALUE, capacity)) : new Ring(capacity));
+    }
+
+    private Ring load(Page page) {
+        Ring ring = new Ring(capacity);
+        for (Entry entry : page.entries) {
+            ring.add(entry.id, entry.line);
+        }
+        ring.complete = !page.more;
+        return ring;
+    }
+
+    private static String pairKey(String user1, String user2) {
+        return user1.compareTo(user2) <= 0 ? user1 + '\n' + user2 : user2 + '\n' + user1;
+    }
+}
@@ -0,0 +1,204 @@
+package fr.unilasalle.chat.server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind persistence of chat messages. Senders get an id immediately
+ * and the rows are committed by this thread in group transactions, so a slow
+ * disk no longer delays delivery.
+ */
+public class MessageWriter extends Thread {
+
+    /**
+     * When a message may be delivered to the other users.
+     */
+    public enum Durability {
+        /** Deliver right away, the row is written shortly after. */
+        FIRE_AND_FORGET,
+        /** Deliver once the transaction containing the row has committed. */
+        ACK_AFTER_COMMIT
+    }
+
+    private static class Pending {
+        final ChatMessage message;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        Pending(ChatMessage message) {
+            this.message = message;
+        }
+    }
+
+    private final DatabaseService db;
+    private final BlockingQueue<Pending> queue;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final AtomicLong lastMessageId;
+    private final AtomicLong lastPrivateMessageId;
+    private volatile int idStride = 1;
+    private volatile int idNode;
+    private volatile boolean running = true;
+
+    public MessageWriter(DatabaseService db) {
+        this(db, ServerConfig.PERSIST_BATCH_SIZE, ServerConfig.PERSIST_MAX_DELAY_MILLIS);
+    }
+
+    public MessageWriter(DatabaseService db, int maxBatch, long maxDelayMillis) {
+        super("message-writer");
+        this.db = db;
+        this.queue = new LinkedBlockingQueue<>(ServerConfig.PERSIST_QUEUE_CAPACITY);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.lastMessageId = new AtomicLong(db.getLastMessageId());
+        this.lastPrivateMessageId = new AtomicLong(db.getLastPrivateMessageId());
+    }
+
+    /**
+     * Hands out only the ids equal to {@code node} modulo {@code nodes}, so
+     * the nodes of a cluster sharing the database never pick the same id.
+     * Call before the first message.
+     */
+    void partitionIds(int nodes, int node) {
+        idStride = nodes;
+        idNode = node;
+        lastMessageId.set(alignId(lastMessageId.get(), nodes, node));
+        lastPrivateMessageId.set(alignId(lastPrivateMessageId.get(), nodes, node));
+    }
+
+    // Largest id <= last of this node's ids, the next one is above last
+    private static long alignId(long last, int nodes, int node) {
+        return last - Math.floorMod(last - node, nodes);
+    }
+
+    /**
+     * Makes the next channel message id greater than {@code id}. A node
+     * taking over a channel calls it so that ids keep growing within the
+     * channel whatever the previous owner handed out.
+     */
+    void advancePast(long id) {
+        lastMessageId.accumulateAndGet(id, (last, floor) -> last >= floor ? last : alignId(floor, idStride, idNode));
+    }
+
+    /**
+     * Same as advancePast for private message ids, for a node taking over a
+     * conversation.
+     */
+    void advancePrivatePast(long id) {
+        lastPrivateMessageId.accumulateAndGet(id,
+                (last, floor) -> last >= floor ? last : alignId(floor, idStride, idNode));
+    }
+
+    ChatMessage newChannelMessage(String channel, String sender, String content) {
+        return ChatMessage.channelMessage(lastMessageId.addAndGet(idStride), channel, sender, content);
+    }
+
+    ChatMessage newPrivateMessage(String sender, String receiver, String content) {
+        return ChatMessage.privateMessage(lastPrivateMessageId.addAndGet(idStride), sender, receiver, content);
+    }
+
+    /**
+     * Queues the message. The future completes once its row is committed, or
+     * exceptionally if the write failed. Blocks if the queue is full.
+     */
+    CompletableFuture<Void> save(ChatMessage message) {
+        Pending pending = new Pending(message);
+        if (running) {
+            try {
+                queue.put(pending);
+                return pending.committed;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Shutting down: write it ourselves rather than lose it
+        List<Pending> single = new ArrayList<>();
+        single.add(pending);
+        commit(single);
+        return pending.committed;
+    }
+
+    /**
+     * Convenience for callers outside the server package.
+     */
+    public CompletableFuture<Void> saveMessage(String channel, String sender, String content) {
+        return save(newChannelMessage(channel, sender, content));
+    }
+
+    @Override
+    public void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - batch.size());
+
+                // Give a burst a moment to fill the batch
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch && running) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+            } catch (InterruptedException e) {
+                // Interrupted by close(): commit what we have and drain the rest
+            }
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<ChatMessage> messages = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            messages.add(p.message);
+        }
+        try {
+            db.saveBatch(messages);
+            for (Pending p : batch) {
+                p.committed.complete(null);
+            }
+        } catch (SQLException e) {
+            System.out.println("Error saving " + batch.size() + " messages: " + e.getMessage());
+            for (Pending p : batch) {
+                p.committed.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new work, commits everything queued and waits for it.
+     */
+    public void close() {
+        running = false;
+        interrupt();
+        try {
+            join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Anything queued after the thread exited
+        List<Pending> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        commit(rest);
+    }
+}
@@ -0,0 +1,375 @@
+package fr.unilasalle.chat.server;
+
+import fr.unilasalle.chat.protocol.Packet;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client socket owned by an NioEventLoop. Frames the newline-delimited
+ * protocol, or packets once the binary protocol is negotiated, on the way
+ * in and queues frames on the way out.
+ */
+class NioConnection implements ClientConnection {
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final Executor handlerPool;
+    private SelectionKey key;
+    private ClientHandler handler;
+
+    // Bytes of a line or packet not complete yet, allocated only when a read ends mid-way
+    private byte[] partial;
+    private int partialLength;
+    // Loop only: set right after the binary protocol request line
+    private boolean binaryInput;
+
+    // Inbound: handler tasks of this session, run one at a time on the handler pool
+    private final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    // Outbound: frames waiting for the loop, and the batch being written (loop only)
+    private final OutboundQueue queue = new OutboundQueue();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final List<byte[]> batch = new ArrayList<>();
+    private volatile boolean binary;
+    private ByteBuffer[] pending;
+    private int pendingIndex;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    NioConnection(SocketChannel channel, NioEventLoop loop, Executor handlerPool) {
+        this.channel = channel;
+        this.loop = loop;
+        this.handlerPool = handlerPool;
+    }
+
+    /**
+     * Called on the loop once the channel is registered.
+     */
+    void open(SelectionKey key, Server server) {
+        this.key = key;
+        this.handler = new ClientHandler(this, server);
+        server.addClient(handler);
+        submit(handler::onConnect);
+    }
+
+    // --- Inbound ---
+
+    void onReadable(ByteBuffer buffer) {
+        buffer.clear();
+        int read;
+        try {
+            read = channel.read(buffer);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (read < 0) {
+            close();
+            return;
+        }
+        buffer.flip();
+
+        while (buffer.hasRemaining() && !binaryInput) {
+            int start = buffer.position();
+            int end = indexOfNewline(buffer, start);
+            if (end < 0) {
+                appendPartial(buffer, start, buffer.limit() - start);
+                buffer.position(buffer.limit());
+                break;
+            }
+
+            String line;
+            if (partialLength == 0 && end - start <= ServerConfig.MAX_LINE_BYTES) {
+                line = decode(buffer, start, end - start);
+            } else if (appendPartial(buffer, start, end - start)) {
+                line = decodePartial();
+            } else {
+                return; // Line too long, connection closed
+            }
+            buffer.position(end + 1);
+
+            String received = line;
+            submit(() -> handler.handleLine(received));
+            if (line.equals(Packet.REQUEST)) {
+                // The client waits for the answer, whatever follows is packets
+                binaryInput = true;
+            }
+        }
+        if (binaryInput) {
+            readPackets(buffer);
+        }
+    }
+
+    private void readPackets(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (partialLength == 0 && buffer.remaining() >= Packet.HEADER_BYTES) {
+                int start = buffer.position();
+                int size = packetSize(buffer.getInt(start + 1));
+                if (size < 0) {
+                    return;
+                }
+                if (buffer.remaining() >= size) {
+                    ByteBuffer frame = buffer.slice(start, size);
+                    buffer.position(start + size);
+                    if (!submitPacket(frame)) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            // Rebuild the packet in the partial buffer: header first, then the rest
+            int needed = partialLength < Packet.HEADER_BYTES ? Packet.HEADER_BYTES
+                    : packetSize(ByteBuffer.wrap(partial).getInt(1));
+            if (needed < 0) {
+                return;
+            }
+            int take = Math.min(needed - partialLength, buffer.remaining());
+            if (!appendPartial(buffer, buffer.position(), take)) {
+                return; // Too long, connection closed
+            }
+            buffer.position(buffer.position() + take);
+            if (partialLength < Packet.HEADER_BYTES) {
+                continue;
+            }
+            int size = packetSize(ByteBuffer.wrap(partial).getInt(1));
+            if (size < 0) {
+                return;
+            }
+            if (partialLength == size) {
+                ByteBuffer frame = ByteBuffer.wrap(partial, 0, partialLength);
+                partialLength = 0;
+                boolean ok = submitPacket(frame);
+                if (partial.length > 8 * 1024) {
+                    partial = null;
+                }
+                if (!ok) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Size of a whole packet given its length field, or -1 (connection
+     * closed) if it is not acceptable.
+     */
+    private int packetSize(int length) {
+        if (length < 0 || length > ServerConfig.MAX_LINE_BYTES - Packet.HEADER_BYTES) {
+            System.out.println("Closing connection: bad packet length " + length);
+            close();
+            return -1;
+        }
+        return Packet.HEADER_BYTES + length;
+    }
+
+    private boolean submitPacket(ByteBuffer frame) {
+        Packet packet;
+        try {
+            packet = Packet.decode(frame);
+        } catch (ProtocolException e) {
+            System.out.println("Closing connection: " + e.getMessage());
+            close();
+            return false;
+        }
+        submit(() -> handler.handlePacket(packet));
+        return true;
+    }
+
+    private static int indexOfNewline(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String decode(ByteBuffer buffer, int start, int length) {
+        if (length > 0 && buffer.get(start + length - 1) == '\r') {
+            length--;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String decodePartial() {
+        int length = partialLength;
+        if (length > 0 && partial[length - 1] == '\r') {
+            length--;
+        }
+        String line = new String(partial, 0, length, StandardCharsets.UTF_8);
+        partialLength = 0;
+        if (partial.length > 8 * 1024) {
+            partial = null; // Don't keep a big upload buffer around for an idle session
+        }
+        return line;
+    }
+
+    /**
+     * Returns false, after closing the connection, if the partial line or
+     * packet would grow past chat.maxLineBytes.
+     */
+    private boolean appendPartial(ByteBuffer buffer, int start, int length) {
+        int needed = partialLength + length;
+        if (needed > ServerConfig.MAX_LINE_BYTES) {
+            System.out.println("Closing connection: line longer than " + ServerConfig.MAX_LINE_BYTES + " bytes");
+            partial = null;
+            partialLength = 0;
+            close();
+            return false;
+        }
+        if (partial == null) {
+            partial = new byte[Math.max(256, needed)];
+        } else if (needed > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(needed, partial.length * 2));
+        }
+        buffer.get(start, partial, partialLength, length);
+        partialLength = needed;
+        return true;
+    }
+
+    /**
+     * Queues a task for this session. Tasks run in order and never
+     * concurrently, like the lines of a thread-per-client session.
+     */
+    private void submit(Runnable task) {
+        inbox.add(task);
+        if (draining.compareAndSet(false, true)) {
+            handlerPool.execute(this::drainInbox);
+        }
+    }
+
+    private void drainInbox() {
+        Runnable task;
+        while ((task = inbox.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        draining.set(false);
+        // A task may have been queued between the last poll and the reset
+        if (!inbox.isEmpty() && draining.compareAndSet(false, true)) {
+            handlerPool.execute(this::drainInbox);
+        }
+    }
+
+    // --- Outbound ---
+
+    @Override
+    public void send(Frame frame, boolean canWait) {
+        if (closed.get()) {
+            return;
+        }
+        if (!queue.offer(binary ? frame.binary() : frame.bytes(), canWait)) {
+            System.out.println("Disconnecting slow client " + channel.socket().getRemoteSocketAddress()
+                    + " (" + queue.stats() + ")");
+            close();
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    @Override
+    public void setBinary() {
+        binary = true;
+    }
+
+    @Override
+    public OutboundQueue outbound() {
+        return queue;
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Runs on the loop: writes everything queued with gathering writes, as few
+     * syscalls as the socket allows and no copy of the frames.
+     */
+    private void flush() {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            while (true) {
+                if (pending == null && queue.drainTo(batch) > 0) {
+                    pending = wrap(batch);
+                    pendingIndex = 0;
+                    batch.clear();
+                }
+                if (pending == null) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    flushScheduled.set(false);
+                    if (queue.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                channel.write(pending, pendingIndex, pending.length - pendingIndex);
+                while (pendingIndex < pending.length && !pending[pendingIndex].hasRemaining()) {
+                    pendingIndex++;
+                }
+                if (pendingIndex < pending.length) {
+                    // Socket buffer full: wait for OP_WRITE, flushScheduled stays set
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                pending = null;
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private static ByteBuffer[] wrap(List<byte[]> messages) {
+        // A view per connection: the position is ours, the bytes are shared
+        ByteBuffer[] buffers = new ByteBuffer[messages.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(messages.get(i));
+        }
+        return buffers;
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (loop.inLoop()) {
+            closeChannel();
+        } else {
+            loop.execute(this::closeChannel);
+        }
+        queue.clear();
+        if (handler != null) {
+            submit(handler::onDisconnect);
+        }
+    }
+
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
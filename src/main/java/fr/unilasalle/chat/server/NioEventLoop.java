@@ -0,0 +1,123 @@
+package fr.unilasalle.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * One selector thread. Every interest-ops change and every write goes through
+ * execute() so that the selector and its keys are only touched from here.
+ */
+class NioEventLoop extends Thread {
+    private final Server server;
+    private final Executor handlerPool;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Shared by all the connections of this loop: reads are drained right away
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private volatile boolean running = true;
+
+    NioEventLoop(Server server, Executor handlerPool, int index) throws IOException {
+        super("nio-loop-" + index);
+        this.server = server;
+        this.handlerPool = handlerPool;
+        this.selector = Selector.open();
+        setDaemon(true);
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                NioConnection connection = new NioConnection(channel, this, handlerPool);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.open(key, server);
+            } catch (IOException e) {
+                System.out.println("Could not register connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the task on this loop's thread, waking the selector up if needed.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (CancelledKeyException e) {
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        // A bug in one connection must not stop the others of this loop
+                        System.out.println("Closing connection after error in NIO loop " + getName() + ": " + e);
+                        e.printStackTrace();
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error in NIO loop " + getName() + ": " + e.getMessage());
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).close();
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package fr.unilasalle.chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking connection engine: one acceptor thread hands the accepted
+ * sockets round-robin to a fixed set of selector loops. An idle connection
+ * costs a selection key and a small NioConnection instead of a whole thread.
+ *
+ * The command logic itself still blocks (JDBC, HTTP, files), so the lines
+ * framed by the loops are executed on a separate handler pool, one line at a
+ * time per session.
+ */
+class NioServer {
+    private final Server server;
+    private final int port;
+    private final NioEventLoop[] loops;
+    private final ExecutorService handlerPool;
+
+    NioServer(Server server, int port, int workerLoops) {
+        this.server = server;
+        this.port = port;
+        this.loops = new NioEventLoop[Math.max(1, workerLoops)];
+
+        AtomicInteger handlerCount = new AtomicInteger();
+        this.handlerPool = Executors.newFixedThreadPool(ServerConfig.NIO_HANDLER_THREADS, r -> {
+            Thread t = new Thread(r, "nio-handler-" + handlerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void execute() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop(server, handlerPool, i);
+                loops[i].start();
+            }
+            System.out.println("Chat Server v2 (NIO, " + loops.length + " loops) is listening on port " + port);
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    System.out.println("Could not set up connection: " + e.getMessage());
+                    channel.close();
+                    continue;
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+
+        } catch (IOException ex) {
+            System.out.println("Error in the server: " + ex.getMessage());
+            ex.printStackTrace();
+        } finally {
+            for (NioEventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+            handlerPool.shutdown();
+        }
+    }
+}
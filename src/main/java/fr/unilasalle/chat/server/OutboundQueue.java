@@ -0,0 +1,176 @@
+package fr.unilasalle.chat.server;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded messages waiting to be written to one client, so that a
+ * broadcast never waits on the slowest socket. The connection drains it in
+ * batches and writes each batch with a single flush.
+ */
+class OutboundQueue {
+
+    /**
+     * What to do when a client does not read fast enough and its queue is full.
+     */
+    enum SlowConsumerPolicy {
+        /** Discard the oldest queued line to make room. */
+        DROP_OLDEST,
+        /** Close the connection. */
+        DISCONNECT,
+        /** Block the sender until there is room, then disconnect after a timeout. */
+        BACKPRESSURE
+    }
+
+    private final ArrayDeque<byte[]> lines = new ArrayDeque<>();
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    // Lock instead of synchronized: senders may be virtual threads waiting for room
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    // Metrics
+    private int peakDepth;
+    private long enqueued;
+    private long dropped;
+    private long flushes;
+
+    OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    OutboundQueue() {
+        this(ServerConfig.OUTBOUND_CAPACITY, ServerConfig.OUTBOUND_POLICY);
+    }
+
+    /**
+     * Queues an encoded message. Returns false if the client must be disconnected.
+     *
+     * canWait is set when the session queues a reply to its own command: it
+     * then always waits for room, since blocking itself harms nobody else.
+     */
+    boolean offer(byte[] message, boolean canWait) {
+        lock.lock();
+        try {
+            if (lines.size() >= capacity) {
+                switch (canWait ? SlowConsumerPolicy.BACKPRESSURE : policy) {
+                    case DROP_OLDEST:
+                        lines.poll();
+                        dropped++;
+                        break;
+                    case DISCONNECT:
+                        dropped++;
+                        return false;
+                    case BACKPRESSURE:
+                        long nanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.OUTBOUND_BACKPRESSURE_MILLIS);
+                        while (lines.size() >= capacity) {
+                            if (nanos <= 0) {
+                                dropped++;
+                                return false;
+                            }
+                            try {
+                                nanos = notFull.awaitNanos(nanos);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                dropped++;
+                                return false;
+                            }
+                        }
+                        break;
+                }
+            }
+            lines.add(message);
+            enqueued++;
+            if (lines.size() > peakDepth) {
+                peakDepth = lines.size();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves every queued message to the batch. Returns the number of messages moved.
+     */
+    int drainTo(List<byte[]> batch) {
+        lock.lock();
+        try {
+            int n = lines.size();
+            if (n == 0) {
+                return 0;
+            }
+            batch.addAll(lines);
+            lines.clear();
+            flushes++;
+            notFull.signalAll();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return lines.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            lines.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return lines.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int peakDepth() {
+        lock.lock();
+        try {
+            return peakDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One-line summary, e.g. "depth=0 peak=12 capacity=1024 enqueued=300 flushes=41 dropped=0".
+     */
+    String stats() {
+        lock.lock();
+        try {
+            return "depth=" + lines.size() + " peak=" + peakDepth + " capacity=" + capacity
+                    + " enqueued=" + enqueued + " flushes=" + flushes + " dropped=" + dropped
+                    + " policy=" + policy.name().toLowerCase();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
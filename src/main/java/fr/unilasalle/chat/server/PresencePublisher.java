@@ -0,0 +1,254 @@
+package fr.unilasalle.chat.server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends presence changes (PRESENCE, JOIN, PART, CHANNELLIST) once per tick
+ * instead of once per event. Events only mark users, channel memberships
+ * and the channel list as changed; every tick the net result is sent, so
+ * a user who logs in, changes status twice and moves channel within a tick
+ * costs each recipient one PRESENCE and one JOIN, and a reconnect that
+ * lands in the same tick as the disconnect costs nothing.
+ *
+ * With a tick of 0 every change is published right away. In a cluster
+ * the merged updates also go to the other nodes, see Cluster.
+ */
+public class PresencePublisher {
+
+    private static class Membership {
+        final String channel;
+        final String userName;
+        final boolean joined;
+
+        Membership(String channel, String userName, boolean joined) {
+            this.channel = channel;
+            this.userName = userName;
+            this.joined = joined;
+        }
+    }
+
+    private final Server server;
+    private final long tickMillis;
+    private ScheduledExecutorService scheduler;
+
+    // Pending changes, keyed by lower-cased user name (and channel)
+    private Map<String, String> dirtyUsers = new LinkedHashMap<>();
+    private Map<String, Membership> dirtyMemberships = new LinkedHashMap<>();
+    private boolean channelListDirty;
+
+    // Last PRESENCE line sent for each online user, only touched by flush()
+    private final Map<String, String> published = new HashMap<>();
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong ticks = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong lines = new AtomicLong();
+
+    public PresencePublisher(Server server, long tickMillis) {
+        this.server = server;
+        this.tickMillis = tickMillis;
+    }
+
+    public void start() {
+        if (tickMillis <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-publisher");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@code userName} logged in, logged out or changed status or message.
+     */
+    void userChanged(String userName) {
+        synchronized (this) {
+            dirtyUsers.put(userName.toLowerCase(), userName);
+        }
+        changed();
+    }
+
+    /**
+     * {@code userName} joined or left {@code channel}.
+     */
+    void membershipChanged(String channel, String userName, boolean joined) {
+        synchronized (this) {
+            dirtyMemberships.put(channel.toLowerCase() + "\n" + userName.toLowerCase(),
+                    new Membership(channel, userName, joined));
+        }
+        changed();
+    }
+
+    void channelListChanged() {
+        synchronized (this) {
+            channelListDirty = true;
+        }
+        changed();
+    }
+
+    private void changed() {
+        events.incrementAndGet();
+        if (scheduler == null) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends what changed since the previous flush.
+     */
+    synchronized void flush() {
+        Map<String, String> users = dirtyUsers;
+        Map<String, Membership> memberships = dirtyMemberships;
+        boolean channelList = channelListDirty;
+        if (users.isEmpty() && memberships.isEmpty() && !channelList) {
+            return;
+        }
+        dirtyUsers = new LinkedHashMap<>();
+        dirtyMemberships = new LinkedHashMap<>();
+        channelListDirty = false;
+        ticks.incrementAndGet();
+
+        for (Map.Entry<String, String> e : users.entrySet()) {
+            publishUser(e.getKey(), e.getValue());
+        }
+        for (Membership m : memberships.values()) {
+            publishMembership(m);
+        }
+        if (channelList) {
+            Frame message = new Frame("CHANNELLIST " + server.getChannelList());
+            for (ClientHandler session : server.getSessions()) {
+                if (session.getUserName() != null) {
+                    send(session, message);
+                }
+            }
+            updates.incrementAndGet();
+        }
+    }
+
+    private void publishUser(String key, String userName) {
+        ClientHandler user = server.getUser(userName);
+        String previous = published.get(key);
+        if (user == null || user.getUserName() == null) {
+            // Logged out: only news to those who saw them online
+            if (previous == null) {
+                return;
+            }
+            published.remove(key);
+            String offline = "PRESENCE " + userName + " offline ";
+            Frame message = new Frame(offline);
+            for (ClientHandler session : server.getSessions()) {
+                if (session.getUserName() != null) {
+                    send(session, message);
+                }
+            }
+            updates.incrementAndGet();
+            publishToCluster("logout", userName, "", "offline", "", offline);
+            return;
+        }
+        String message = presenceOf(user);
+        if (message.equals(previous)) {
+            return;
+        }
+        published.put(key, message);
+        Set<ClientHandler> recipients;
+        if (previous == null) {
+            // Logged in: every session lists online users
+            recipients = new HashSet<>();
+            for (ClientHandler session : server.getSessions()) {
+                if (session != user && session.getUserName() != null) {
+                    recipients.add(session);
+                }
+            }
+        } else {
+            // The friends and the channel of the user show their status,
+            // the user's own lists too
+            recipients = new HashSet<>(server.getChannelMembers(user.getChannel()));
+            for (String friend : server.getFriendGraph().getFriends(user.getUserName())) {
+                ClientHandler online = server.getUser(friend);
+                if (online != null) {
+                    recipients.add(online);
+                }
+            }
+            recipients.add(user);
+        }
+        Frame frame = new Frame(message);
+        for (ClientHandler recipient : recipients) {
+            send(recipient, frame);
+        }
+        updates.incrementAndGet();
+        publishToCluster(previous == null ? "login" : "change", user.getUserName(), user.getChannel(),
+                user.getStatus(), user.getStatusMessage(), message);
+    }
+
+    private void publishMembership(Membership m) {
+        ClientHandler user = server.getUser(m.userName);
+        boolean member = user != null && user.getChannel().equalsIgnoreCase(m.channel);
+        String line;
+        if (m.joined && member) {
+            String msg = user.getStatusMessage();
+            line = "JOIN " + m.channel + " " + user.getUserName() + " " + user.getStatus() + " "
+                    + (msg != null ? msg : "");
+        } else if (!m.joined && !member) {
+            line = "PART " + m.channel + " " + m.userName;
+        } else {
+            // Undone within the tick
+            return;
+        }
+        Frame message = new Frame(line);
+        for (ClientHandler recipient : server.getChannelMembers(m.channel)) {
+            if (recipient != user) {
+                send(recipient, message);
+            }
+        }
+        updates.incrementAndGet();
+        if (m.joined) {
+            publishToCluster("join", user.getUserName(), m.channel, user.getStatus(), user.getStatusMessage(), line);
+        } else {
+            publishToCluster("part", m.userName, m.channel, "", "", line);
+        }
+    }
+
+    /**
+     * The other nodes of the cluster send the same line to their sessions.
+     * The channel list is not published: nodes rebuild it on channel changes.
+     */
+    private void publishToCluster(String kind, String user, String channel, String status, String statusMessage,
+            String line) {
+        Cluster cluster = server.getCluster();
+        if (cluster != null) {
+            cluster.presence(kind, user, channel, status, statusMessage, line);
+        }
+    }
+
+    private void send(ClientHandler recipient, Frame message) {
+        recipient.sendFrame(message);
+        lines.incrementAndGet();
+    }
+
+    static String presenceOf(ClientHandler user) {
+        String msg = user.getStatusMessage();
+        return "PRESENCE " + user.getUserName() + " " + user.getStatus() + " " + (msg != null ? msg : "");
+    }
+
+    public String stats() {
+        return "tick=" + tickMillis + "ms events=" + events.get() + " flushes=" + ticks.get() + " updates="
+                + updates.get() + " lines=" + lines.get();
+    }
+}
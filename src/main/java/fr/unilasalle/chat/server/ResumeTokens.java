@@ -0,0 +1,94 @@
+package fr.unilasalle.chat.server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tokens that let a sequenced session come back after its connection
+ * dropped without sending the password again. A user has at most one
+ * token; it is single use and expires after a while. Kept in memory, so a
+ * token only works on the node that issued it. The token also keeps the
+ * status the session had when its connection dropped.
+ */
+final class ResumeTokens {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Expired tokens are swept every that many issues
+    private static final int SWEEP_EVERY = 1024;
+
+    static final class Grant {
+        final String userName;
+        final long expiresAt;
+        // Null until the session drops
+        final String status;
+
+        Grant(String userName, long expiresAt, String status) {
+            this.userName = userName;
+            this.expiresAt = expiresAt;
+            this.status = status;
+        }
+    }
+
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, Grant> grants = new ConcurrentHashMap<>();
+    // Lower-cased user name to its current token
+    private final ConcurrentHashMap<String, String> tokens = new ConcurrentHashMap<>();
+    private final AtomicInteger issued = new AtomicInteger();
+
+    ResumeTokens(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * A new token for the user, replacing the previous one.
+     */
+    String issue(String userName) {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        long now = System.currentTimeMillis();
+        grants.put(token, new Grant(userName, now + ttlMillis, null));
+        String previous = tokens.put(userName.toLowerCase(), token);
+        if (previous != null) {
+            grants.remove(previous);
+        }
+        if (issued.incrementAndGet() % SWEEP_EVERY == 0) {
+            grants.values().removeIf(grant -> grant.expiresAt < now);
+        }
+        return token;
+    }
+
+    /**
+     * Records the status of a session whose connection dropped, restored if
+     * it resumes.
+     */
+    void remember(String userName, String status) {
+        String token = tokens.get(userName.toLowerCase());
+        if (token != null) {
+            grants.computeIfPresent(token, (key, grant) -> new Grant(grant.userName, grant.expiresAt, status));
+        }
+    }
+
+    /**
+     * What a token was issued for, null if unknown, used or expired.
+     */
+    Grant redeem(String token) {
+        Grant grant = grants.remove(token);
+        if (grant == null) {
+            return null;
+        }
+        tokens.remove(grant.userName.toLowerCase(), token);
+        return grant.expiresAt >= System.currentTimeMillis() ? grant : null;
+    }
+
+    /**
+     * Puts back a token redeemed by a resume that failed, unless the user
+     * got a new one meanwhile.
+     */
+    void restore(String token, Grant grant) {
+        if (tokens.putIfAbsent(grant.userName.toLowerCase(), token) == null) {
+            grants.put(token, grant);
+        }
+    }
+}
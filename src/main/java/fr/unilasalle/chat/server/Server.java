@@ -6,18 +6,96 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Server {
+
+    /**
+     * How client connections are served.
+     */
+    public enum Mode {
+        /** One platform thread per client, blocking reads (historical mode). */
+        THREAD,
+        /** Same blocking session code, but each client runs on a virtual thread. */
+        VIRTUAL,
+        /** Selector-based event loops, see NioServer. */
+        NIO
+    }
+
     private int port;
+    private Mode mode;
     private Set<ClientHandler> userThreads = ConcurrentHashMap.newKeySet();
     private DatabaseService dbService;
+    // Persists chat and private messages off the senders' threads
+    private MessageWriter messageWriter;
+    // Recent history of every channel and conversation, served without queries
+    private HistoryCache historyCache;
+    // Friendships and pending requests, read without queries
+    private FriendGraph friendGraph;
+    // Passwords, avatars and status messages, read without queries
+    private UserDirectory userDirectory;
+    // Coalesces presence, membership and channel list updates per tick
+    private PresencePublisher presencePublisher;
+    // Other nodes of the cluster and their users, null for a single server
+    private Cluster cluster;
+    // Protocol commands by verb, with their call counts and timings
+    private final CommandTable commands = ClientHandler.createCommandTable();
+    // Lets sequenced sessions come back after a dropped connection
+    private final ResumeTokens resumeTokens = new ResumeTokens(ServerConfig.RESUME_TTL_MILLIS);
+    // Numbers channel messages and delivers them in order, keyed by lower-cased channel name
+    private final ConcurrentHashMap<String, ChannelSequencer> channelSequencers = new ConcurrentHashMap<>();
     private Set<String> knownChannels = ConcurrentHashMap.newKeySet();
+    // Logged-in users, keyed by lower-cased user name
+    private ConcurrentHashMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    // Logged-in users of each channel, keyed by lower-cased channel name
+    private ConcurrentHashMap<String, Set<ClientHandler>> channelMembers = new ConcurrentHashMap<>();
     private fr.unilasalle.chat.audio.AudioServer audioServer;
     private fr.unilasalle.chat.video.VideoServer videoServer;
+    private fr.unilasalle.chat.transfer.FileTransferServer fileTransferServer;
+    private BlobStore blobStore;
+    private AvatarCache avatarCache;
+    // Runs the on-demand flush tasks of the blocking connections
+    private ExecutorService flushExecutor;
 
     public Server(int port) {
+        this(port, Mode.THREAD);
+    }
+
+    public Server(int port, Mode mode) {
+        this(port, mode, createBus(), ServerConfig.CLUSTER_NODE, Math.max(1, clusterPeers().size()));
+    }
+
+    /**
+     * A node of a cluster: {@code bus} reaches the other nodes and this one
+     * is number {@code node} of {@code nodes}. A null bus runs a single
+     * server.
+     */
+    public Server(int port, Mode mode, fr.unilasalle.chat.cluster.MessageBus bus, int node, int nodes) {
         this.port = port;
+        this.mode = mode;
         this.dbService = new DatabaseService();
+        this.historyCache = new HistoryCache(dbService, ServerConfig.HISTORY_CACHE_SIZE);
+        this.historyCache.warm();
+        this.friendGraph = new FriendGraph(dbService);
+        this.friendGraph.load();
+        this.userDirectory = new UserDirectory(dbService, ServerConfig.USER_CACHE_SIZE);
+        this.userDirectory.warm();
+        this.presencePublisher = new PresencePublisher(this, ServerConfig.PRESENCE_TICK_MILLIS);
+        this.presencePublisher.start();
+        this.messageWriter = new MessageWriter(dbService);
+        if (bus != null) {
+            this.messageWriter.partitionIds(nodes, node);
+            this.cluster = new Cluster(this, bus);
+        }
+        this.messageWriter.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // Commit the queued messages before the connections go away
+            messageWriter.close();
+            dbService.close();
+        }, "db-shutdown"));
         // Load persistency
         this.knownChannels.addAll(dbService.getChannels());
         if (this.knownChannels.isEmpty()) {
@@ -32,6 +110,20 @@ public class Server {
         } catch (java.net.SocketException e) {
             e.printStackTrace();
         }
+        try {
+            this.blobStore = new BlobStore(dbService, java.nio.file.Paths.get("blobs"));
+            this.blobStore.clearStaging();
+            int removed = this.blobStore.collectGarbage();
+            if (removed > 0) {
+                System.out.println("Removed " + removed + " unreferenced blobs");
+            }
+            this.avatarCache = new AvatarCache(blobStore, ServerConfig.AVATAR_CACHE_BYTES);
+            this.fileTransferServer = new fr.unilasalle.chat.transfer.FileTransferServer(port + 3,
+                    blobStore.getStagingDirectory(), fileId -> blobStore.resolve("transfer/" + fileId));
+            this.fileTransferServer.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
     
     public fr.unilasalle.chat.audio.AudioServer getAudioServer() {
@@ -42,13 +134,108 @@ public class Server {
         return videoServer;
     }
 
+    public fr.unilasalle.chat.transfer.FileTransferServer getFileTransferServer() {
+        return fileTransferServer;
+    }
+
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    public AvatarCache getAvatarCache() {
+        return avatarCache;
+    }
+
+    Executor getFlushExecutor() {
+        return flushExecutor;
+    }
+
+    public FriendGraph getFriendGraph() {
+        return friendGraph;
+    }
+
+    public UserDirectory getUserDirectory() {
+        return userDirectory;
+    }
+
+    public PresencePublisher getPresencePublisher() {
+        return presencePublisher;
+    }
+
+    Cluster getCluster() {
+        return cluster;
+    }
+
+    CommandTable getCommands() {
+        return commands;
+    }
+
+    java.util.Collection<ClientHandler> getSessions() {
+        return sessions.values();
+    }
+
+    public HistoryCache getHistoryCache() {
+        return historyCache;
+    }
+
+    ResumeTokens getResumeTokens() {
+        return resumeTokens;
+    }
+
     public DatabaseService getDbService() {
         return dbService;
     }
 
+    /**
+     * Bus addresses listed in chat.cluster.peers.
+     */
+    private static java.util.List<java.net.InetSocketAddress> clusterPeers() {
+        java.util.List<java.net.InetSocketAddress> peers = new java.util.ArrayList<>();
+        for (String peer : ServerConfig.CLUSTER_PEERS.split(",")) {
+            if (!peer.trim().isEmpty()) {
+                peers.add(fr.unilasalle.chat.cluster.TcpBus.parseAddress(peer));
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * The TCP bus to the other nodes of chat.cluster.peers, null if not set.
+     */
+    private static fr.unilasalle.chat.cluster.MessageBus createBus() {
+        java.util.List<java.net.InetSocketAddress> peers = clusterPeers();
+        if (peers.isEmpty()) {
+            return null;
+        }
+        java.net.InetSocketAddress self = peers.remove(ServerConfig.CLUSTER_NODE);
+        return new fr.unilasalle.chat.cluster.TcpBus(self, peers, ServerConfig.CLUSTER_QUEUE);
+    }
+
     public void execute() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Chat Server v2 (Debug) is listening on port " + port);
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                System.out.println("Error starting the cluster bus: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        if (mode == Mode.NIO) {
+            new NioServer(this, port, ServerConfig.NIO_WORKERS).execute();
+            return;
+        }
+
+        // Blocking calls of a session (JDBC, HTTP for /weather, file I/O) must
+        // stay outside synchronized blocks, otherwise a virtual thread pins its carrier.
+        ExecutorService sessions = mode == Mode.VIRTUAL
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory())
+                : Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("client-", 0).factory());
+        flushExecutor = mode == Mode.VIRTUAL
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("writer-", 0).factory())
+                : Executors.newCachedThreadPool(Thread.ofPlatform().name("writer-", 0).daemon().factory());
+
+        try (ServerSocket serverSocket = new ServerSocket(port); sessions) {
+            System.out.println("Chat Server v2 (" + mode.name().toLowerCase() + ") is listening on port " + port);
 
             while (true) {
                 Socket socket = serverSocket.accept();
@@ -56,7 +243,7 @@ public class Server {
 
                 ClientHandler newUser = new ClientHandler(socket, this);
                 userThreads.add(newUser);
-                newUser.start();
+                sessions.execute(newUser);
             }
 
         } catch (IOException ex) {
@@ -67,148 +254,503 @@ public class Server {
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Syntax: java Server <port-number>");
+            System.out.println("Syntax: java Server <port-number> [thread|virtual|nio]");
             System.exit(0);
         }
 
         int port = Integer.parseInt(args[0]);
-        Server server = new Server(port);
+        Mode mode = Mode.THREAD;
+        if (args.length >= 2) {
+            try {
+                mode = Mode.valueOf(args[1].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown mode: " + args[1] + " (expected thread, virtual or nio)");
+                System.exit(0);
+            }
+        }
+        Server server = new Server(port, mode);
         server.execute();
     }
 
+    /**
+     * Registers a connection accepted outside of execute() (NIO mode).
+     */
+    void addClient(ClientHandler client) {
+        userThreads.add(client);
+    }
+
     /**
      * Delivers a message from one user to others (broadcasting)
      */
     void broadcast(String message, ClientHandler excludeUser) {
         Logger.log(message);
+        deliverToAll(new Frame(message), excludeUser);
+        if (cluster != null) {
+            cluster.broadcast(message);
+        }
+    }
+
+    /**
+     * Sends a frame to every session of this node.
+     */
+    void deliverToAll(Frame frame, ClientHandler excludeUser) {
         for (ClientHandler aUser : userThreads) {
             if (aUser != excludeUser) {
-                aUser.sendMessage(message);
+                aUser.sendFrame(frame);
             }
         }
     }
 
     void broadcastToChannel(String channel, String message, ClientHandler sender) {
         Logger.log("[" + channel + "] " + message);
+        if (sender == null) {
+            deliverEverywhere(channel, message, 0);
+            return;
+        }
+        String owner = cluster != null ? cluster.remoteOwner(Cluster.channelKey(channel)) : null;
+        if (owner != null) {
+            // The owner stores it and delivers it in its order
+            cluster.forwardChannelMessage(owner, channel, sender.getUserName(), message);
+            return;
+        }
+        storeChannelMessage(channel, sender.getUserName(), message);
+    }
 
-        // Save to DB (only if it's a real user message, i.e. sender != null)
-        // Actually, logic is: "sender" is user.
-        // If message is tagged with user like "[User]: Content", we should parse or
-        // save raw?
-        // Let's assume sender.getUserName() is the user.
-        // Wait, message arg here is roughly "[User]: Content" or system message.
-        // If sender is not null, it's a user message.
-        if (sender != null) {
-            // Need to parse content from message: "[User]: Content" -> "Content"
-            // Or just save the whole formatted message?
-            // User requested "conversation history". Saving formatted is easier for replay.
-            // But my table has "username" and "content".
-            // Let's retry: save raw content?
-            // The message passed here is already formatted "[User]: Content".
-            // Extract content:
-            String content = message;
-            int split = message.indexOf("]: ");
-            if (split > 0) {
-                content = message.substring(split + 3);
+    /**
+     * Stores a message of a channel owned by this node, then delivers it
+     * everywhere.
+     */
+    void storeChannelMessage(String channel, String userName, String message) {
+        // Need to parse content from message: "[User]: Content" -> "Content"
+        // Or just save the whole formatted message?
+        // User requested "conversation history". Saving formatted is easier for replay.
+        // But my table has "username" and "content".
+        // Let's retry: save raw content?
+        // The message passed here is already formatted "[User]: Content".
+        // Extract content:
+        String content = message;
+        int split = message.indexOf("]: ");
+        if (split > 0) {
+            content = message.substring(split + 3);
+        }
+        // The id is the sequence number of the message in its channel:
+        // sessions keep the highest one they have seen, so the messages of a
+        // channel must reach them in id order.
+        messageWriter.advancePast(historyCache.newestId(channel));
+        ChannelSequencer sequencer = channelSequencers.computeIfAbsent(channel.toLowerCase(),
+                k -> new ChannelSequencer());
+        ChannelSequencer.Slot slot = sequencer.append(messageWriter, channel, userName, content);
+        ChatMessage stored = slot.message;
+        Runnable delivery = () -> {
+            historyCache.add(stored);
+            deliverEverywhere(channel, message, stored.id);
+        };
+        if (ServerConfig.PERSIST_DURABILITY == MessageWriter.Durability.ACK_AFTER_COMMIT) {
+            slot.committed.whenComplete((ok, error) -> {
+                if (error != null) {
+                    sequencer.ready(slot, null);
+                    sendToUser(userName, "Error: message could not be saved.");
+                } else {
+                    sequencer.ready(slot, delivery);
+                }
+            });
+            return;
+        }
+        sequencer.ready(slot, delivery);
+    }
+
+    /**
+     * Delivers to the members on this node and on the other nodes.
+     *
+     * @param seq id of the stored message, 0 if it is not stored
+     */
+    private void deliverEverywhere(String channel, String message, long seq) {
+        deliverToChannel(channel, message, seq);
+        if (cluster != null) {
+            cluster.channelMessage(channel, message, seq);
+        }
+    }
+
+    /**
+     * Sends a channel message to the members on this node, with its
+     * sequence number to the sequenced sessions.
+     */
+    void deliverToChannel(String channel, String message, long seq) {
+        Frame taggedMessage = new Frame("CHANMSG " + channel + " " + message);
+        Frame sequenced = seq > 0 ? new Frame("CHANSEQ " + channel + " " + seq + " " + message) : taggedMessage;
+        Set<ClientHandler> members = getChannelMembers(channel);
+        for (ClientHandler user : members) {
+            // Send to all members including sender (so they see their own message)
+            user.sendFrame(user.isSequenced() ? sequenced : taggedMessage);
+        }
+
+        // A private room also reaches both participants when they are not
+        // looking at it (wizz, files), like a private message would.
+        if (channel.startsWith("!PRIVATE_")) {
+            for (ClientHandler user : getPrivateRoomParticipants(channel)) {
+                if (!members.contains(user)) {
+                    user.sendFrame(user.isSequenced() ? sequenced : taggedMessage);
+                }
             }
-            dbService.saveMessage(channel, sender.getUserName(), content);
         }
+    }
 
-        String taggedMessage = "CHANMSG " + channel + " " + message;
-        for (ClientHandler user : userThreads) {
-            // Send to ALL users including sender (so they see their own message)
-            user.sendMessage(taggedMessage);
+    /**
+     * Moves a logged-in user to another channel and keeps the membership index
+     * in sync. Also used on login to register the user in its first channel.
+     */
+    void joinChannel(ClientHandler user, String newChannel) {
+        removeMember(user.getChannel(), user);
+        user.setChannel(newChannel);
+        addMember(newChannel, user);
+    }
+
+    private void addMember(String channel, ClientHandler user) {
+        channelMembers.compute(channel.toLowerCase(), (key, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(user);
+            return members;
+        });
+    }
+
+    private void removeMember(String channel, ClientHandler user) {
+        channelMembers.computeIfPresent(channel.toLowerCase(), (key, members) -> {
+            members.remove(user);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    Set<ClientHandler> getChannelMembers(String channel) {
+        Set<ClientHandler> members = channelMembers.get(channel.toLowerCase());
+        return members != null ? members : Set.of();
+    }
+
+    /**
+     * Online users named in a "!PRIVATE_<user1>_<user2>" room. Names may
+     * contain '_' so every split is tried.
+     */
+    private java.util.List<ClientHandler> getPrivateRoomParticipants(String channel) {
+        java.util.List<ClientHandler> participants = new java.util.ArrayList<>();
+        String names = channel.substring("!PRIVATE_".length());
+        for (int i = names.indexOf('_'); i > 0; i = names.indexOf('_', i + 1)) {
+            ClientHandler first = getUser(names.substring(0, i));
+            ClientHandler second = getUser(names.substring(i + 1));
+            if (first != null && !participants.contains(first)) {
+                participants.add(first);
+            }
+            if (second != null && !participants.contains(second)) {
+                participants.add(second);
+            }
         }
+        return participants;
+    }
+
+    /**
+     * Session of a logged-in user, whatever the case of the name, or null if offline.
+     */
+    ClientHandler getUser(String userName) {
+        return userName != null ? sessions.get(userName.toLowerCase()) : null;
     }
 
     void sendPrivateMessage(String targetUserName, String message, ClientHandler sender) {
-        // Save to DB first
-        dbService.savePrivateMessage(sender.getUserName(), targetUserName, message);
+        String owner = cluster != null
+                ? cluster.remoteOwner(Cluster.conversationKey(sender.getUserName(), targetUserName))
+                : null;
+        if (owner != null) {
+            cluster.forwardPrivateMessage(owner, sender.getUserName(), targetUserName, message);
+            return;
+        }
+        storePrivateMessage(sender.getUserName(), targetUserName, message);
+    }
 
-        for (ClientHandler user : userThreads) {
-            if (user.getUserName().equalsIgnoreCase(targetUserName)) {
-                // Determine format. If we want it to look like a private chat in UI, we might
-                // use a specific protocol tag
-                // But for now, let's keep it compatible or use PRIVMSG tag
-                // Match ChatGUI expectations using new unambiguous commands
-                user.sendMessage("PRIVRECV " + sender.getUserName() + " " + message);
-                sender.sendMessage("PRIVSENT " + targetUserName + " " + message); // Echo back to sender
-                return;
-            }
+    /**
+     * Stores a message of a conversation owned by this node, then delivers
+     * it to both users wherever they are logged in.
+     */
+    void storePrivateMessage(String senderName, String targetUserName, String message) {
+        // Ids keep growing within the conversation, as for a channel
+        messageWriter.advancePrivatePast(historyCache.newestPrivateId(senderName, targetUserName));
+        ChatMessage stored = messageWriter.newPrivateMessage(senderName, targetUserName, message);
+        CompletableFuture<Void> committed = messageWriter.save(stored);
+        if (ServerConfig.PERSIST_DURABILITY == MessageWriter.Durability.ACK_AFTER_COMMIT) {
+            committed.whenComplete((ok, error) -> {
+                if (error != null) {
+                    sendToUser(senderName, "Error: message could not be saved.");
+                } else {
+                    historyCache.add(stored);
+                    deliverPrivateMessage(targetUserName, message, senderName);
+                }
+            });
+            return;
         }
-        // If user not found (offline), we still saved it.
-        // sender.sendMessage("User " + targetUserName + " is offline. Message saved.");
-        // // User requested to remove this pollution
-        // Echo it back to sender using PRIVSENT so it shows in their chat
-        sender.sendMessage("PRIVSENT " + targetUserName + " " + message);
+        historyCache.add(stored);
+        deliverPrivateMessage(targetUserName, message, senderName);
+    }
+
+    private void deliverPrivateMessage(String targetUserName, String message, String senderName) {
+        // Match ChatGUI expectations using new unambiguous commands
+        sendToUser(targetUserName, "PRIVRECV " + senderName + " " + message);
+        // Echo it back to sender using PRIVSENT so it shows in their chat,
+        // also when the target is offline (it is saved for them)
+        sendToUser(senderName, "PRIVSENT " + targetUserName + " " + message);
     }
 
     void sendFriendRequestNotification(String target, String requester) {
-        for (ClientHandler user : userThreads) {
-            if (user.getUserName().equalsIgnoreCase(target)) {
-                user.sendMessage("LOG: You have received a friend request from " + requester + ". Type '/friend accept "
-                        + requester + "' to accept.");
-                user.sendMessage("FRIEND_REQ " + requester);
-                return;
+        notifyFriendRequest(target, requester);
+        if (cluster != null) {
+            cluster.friendChanged("request", requester, target);
+        }
+    }
+
+    /**
+     * Value of a "name=value" option among the words of a command, or the
+     * default when missing or not a number.
+     */
+    private static long parsePageOption(String options, String name, long defaultValue) {
+        for (String option : options.split(" ")) {
+            if (option.startsWith(name)) {
+                try {
+                    return Long.parseLong(option.substring(name.length()));
+                } catch (NumberFormatException e) {
+                    return defaultValue;
+                }
             }
         }
+        return defaultValue;
     }
 
-    void sendFriendAcceptNotification(String target, String accepter) {
-        for (ClientHandler user : userThreads) {
-            if (user.getUserName().equalsIgnoreCase(target)) {
-                user.sendMessage("LOG: " + accepter + " has accepted your friend request!");
-                user.sendMessage("FRIEND_ACCEPT " + accepter);
-                return;
+    /**
+     * Sends a line to a user logged in on this node or on another one;
+     * nothing if they are offline.
+     */
+    void sendToUser(String userName, String line) {
+        sendToUser(userName, java.util.List.of(line));
+    }
+
+    void sendToUser(String userName, java.util.List<String> lines) {
+        ClientHandler user = getUser(userName);
+        if (user != null) {
+            for (String line : lines) {
+                user.sendMessage(line);
             }
+        } else if (cluster != null) {
+            cluster.sendToUser(userName, lines);
+        }
+    }
+
+    /**
+     * What a history request asks for, see historyLines.
+     */
+    enum HistoryRequest {
+        CHANNEL, SEQUENCED_CHANNEL, PRIVATE, MISSED
+    }
+
+    /**
+     * Sends a user the history of a channel (/history and login), from the
+     * node owning it.
+     *
+     * @param options null for the last 50 lines, otherwise the
+     *                "before=<id> limit=<n>" of a paged request
+     */
+    void sendHistory(ClientHandler user, String channel, String options) {
+        requestHistory(options == null && user.isSequenced() ? HistoryRequest.SEQUENCED_CHANNEL
+                : HistoryRequest.CHANNEL, user.getUserName(), channel, options);
+    }
+
+    /**
+     * Same as sendHistory for the conversation of a user with another one.
+     */
+    void sendPrivateHistory(ClientHandler user, String other, String options) {
+        requestHistory(HistoryRequest.PRIVATE, user.getUserName(), other, options);
+    }
+
+    /**
+     * Sends a resumed session the messages of a channel it has not seen.
+     */
+    void sendMissedMessages(ClientHandler user, String channel, long lastSeq) {
+        requestHistory(HistoryRequest.MISSED, user.getUserName(), channel, Long.toString(lastSeq));
+    }
+
+    /**
+     * The history sendHistory would send on login, or null when another
+     * node owns the channel and must be asked for it.
+     */
+    java.util.List<String> localHistory(ClientHandler user, String channel) {
+        if (cluster != null && cluster.remoteOwner(Cluster.channelKey(channel)) != null) {
+            return null;
+        }
+        return historyLines(user.isSequenced() ? HistoryRequest.SEQUENCED_CHANNEL : HistoryRequest.CHANNEL,
+                user.getUserName(), channel, null);
+    }
+
+    private void requestHistory(HistoryRequest kind, String userName, String target, String options) {
+        String owner = null;
+        if (cluster != null) {
+            owner = cluster.remoteOwner(kind == HistoryRequest.PRIVATE
+                    ? Cluster.conversationKey(userName, target) : Cluster.channelKey(target));
+        }
+        if (owner != null) {
+            cluster.forwardHistoryRequest(owner, kind, userName, target, options);
+            return;
+        }
+        sendToUser(userName, historyLines(kind, userName, target, options));
+    }
+
+    /**
+     * The reply to a history request from the history cache of this node.
+     * <ul>
+     * <li>CHANNEL, PRIVATE: the last 50 lines as "CHANMSG <channel> ..." or
+     * "PRIVMSG <user> ...". With options, a page as
+     * "<tag>_BEGIN <target> <before|latest>", one
+     * "<tag>_ITEM <target> <id> HISTORY:..." per line (oldest first) and
+     * "<tag>_END <target> <oldest id> <more>". The oldest id is the cursor
+     * for the previous page, 0 when the page is empty.</li>
+     * <li>SEQUENCED_CHANNEL: the last 50 lines as
+     * "CHANSEQ <channel> <seq> ...".</li>
+     * <li>MISSED: the lines after sequence number {@code options} as
+     * CHANSEQ, oldest first and at most chat.resume.maxReplay of them,
+     * then "RESUME_END <channel> <last seq> <more>". With more, the newer
+     * ones were left out and the client asks for them with
+     * "/missed <channel> <last seq>".</li>
+     * </ul>
+     */
+    java.util.List<String> historyLines(HistoryRequest kind, String userName, String target, String options) {
+        java.util.List<String> lines = new java.util.ArrayList<>();
+        boolean isPrivate = kind == HistoryRequest.PRIVATE;
+        if (kind == HistoryRequest.MISSED) {
+            long after = Long.parseLong(options);
+            HistoryCache.Page page = historyCache.getHistoryAfter(target, after, ServerConfig.RESUME_MAX_REPLAY);
+            long last = after;
+            for (HistoryCache.Entry entry : page.entries) {
+                lines.add("CHANSEQ " + target + " " + entry.id + " " + entry.line);
+                last = entry.id;
+            }
+            lines.add("RESUME_END " + target + " " + last + " " + page.more);
+        } else if (kind == HistoryRequest.SEQUENCED_CHANNEL) {
+            for (HistoryCache.Entry entry : historyCache.getHistoryPage(target, Long.MAX_VALUE, 50).entries) {
+                lines.add("CHANSEQ " + target + " " + entry.id + " " + entry.line);
+            }
+        } else if (options != null) {
+            // Paged form: lines carry their message id for the next request
+            long before = parsePageOption(options, "before=", Long.MAX_VALUE);
+            int limit = (int) Math.min(ServerConfig.HISTORY_MAX_PAGE, Math.max(1, parsePageOption(options, "limit=", 50)));
+            String tag = isPrivate ? "PRIVHISTORY" : "HISTORY";
+            HistoryCache.Page page = isPrivate
+                    ? historyCache.getPrivateHistoryPage(userName, target, before, limit)
+                    : historyCache.getHistoryPage(target, before, limit);
+            lines.add(tag + "_BEGIN " + target + " " + (before == Long.MAX_VALUE ? "latest" : before));
+            for (HistoryCache.Entry entry : page.entries) {
+                lines.add(tag + "_ITEM " + target + " " + entry.id + " " + entry.line);
+            }
+            long oldest = page.entries.isEmpty() ? 0 : page.entries.get(0).id;
+            lines.add(tag + "_END " + target + " " + oldest + " " + page.more);
+        } else {
+            java.util.List<String> history = isPrivate
+                    ? historyCache.getPrivateHistory(userName, target, 50)
+                    : historyCache.getHistory(target, 50);
+            for (String msg : history) {
+                lines.add((isPrivate ? "PRIVMSG " : "CHANMSG ") + target + " " + msg);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Tells {@code target} about the request if they are logged in on this node.
+     */
+    void notifyFriendRequest(String target, String requester) {
+        ClientHandler user = getUser(target);
+        if (user != null) {
+            user.sendMessage("LOG: You have received a friend request from " + requester + ". Type '/friend accept "
+                    + requester + "' to accept.");
+            user.sendMessage("FRIEND_REQ " + requester);
+        }
+    }
+
+    void sendFriendAcceptNotification(String target, String accepter) {
+        notifyFriendAccept(target, accepter);
+        if (cluster != null) {
+            cluster.friendChanged("accept", accepter, target);
+        }
+    }
+
+    void notifyFriendAccept(String target, String accepter) {
+        ClientHandler user = getUser(target);
+        if (user != null) {
+            user.sendMessage("LOG: " + accepter + " has accepted your friend request!");
+            user.sendMessage("FRIEND_ACCEPT " + accepter);
+        }
+    }
+
+    /**
+     * {@code rejecter} denied the request of {@code target}; nobody is told,
+     * the other nodes only update their friend graph.
+     */
+    void friendRequestDenied(String rejecter, String target) {
+        if (cluster != null) {
+            cluster.friendChanged("deny", rejecter, target);
+        }
+    }
+
+    /**
+     * The avatar or status message of a user was stored: the other nodes
+     * drop their copy of the profile.
+     */
+    void userProfileChanged(String userName) {
+        if (cluster != null) {
+            cluster.userChanged(userName);
         }
     }
 
     void broadcastAvatarUpdate(String userName) {
-        for (ClientHandler user : userThreads) {
-            user.sendMessage("AVATAR_UPDATE " + userName);
+        String message = "AVATAR_UPDATE " + userName;
+        deliverToAll(new Frame(message), null);
+        if (cluster != null) {
+            cluster.broadcast(message);
         }
     }
 
     void sendFriendListUpdate(String username) {
-        for (ClientHandler user : userThreads) {
-            if (user.getUserName().equalsIgnoreCase(username)) {
-                String friendListMsg = getFormattedFriendList(username);
-                user.sendMessage("FRIENDLIST " + friendListMsg);
-                return;
-            }
+        if (!sendLocalFriendListUpdate(username) && cluster != null) {
+            cluster.friendListUpdate(username);
         }
     }
 
-    private String getFormattedFriendList(String username) {
-        java.util.List<String> friends = dbService.getFriends(username);
+    /**
+     * Returns false if the user is not logged in on this node.
+     */
+    boolean sendLocalFriendListUpdate(String username) {
+        ClientHandler user = getUser(username);
+        if (user == null) {
+            return false;
+        }
+        String friendListMsg = getFormattedFriendList(username);
+        user.sendMessage("FRIENDLIST " + friendListMsg);
+        return true;
+    }
+
+    String getFormattedFriendList(String username) {
+        java.util.List<String> friends = friendGraph.getFriends(username);
         if (friends.isEmpty()) {
             return "";
         }
         StringBuilder sb = new StringBuilder();
-        
-        // Map user to status and message
-        java.util.Map<String, String> onlineStatus = new java.util.HashMap<>();
-        java.util.Map<String, String> onlineMsg = new java.util.HashMap<>();
-        
-        for (ClientHandler h : userThreads) {
-            if (h.getUserName() != null) {
-                onlineStatus.put(h.getUserName().toLowerCase(), h.getStatus());
-                onlineMsg.put(h.getUserName().toLowerCase(), h.getStatusMessage());
-            }
-        }
 
         for (String friend : friends) {
             if (sb.length() > 0)
                 sb.append(",");
-            
-            String s = onlineStatus.getOrDefault(friend.toLowerCase(), "offline");
-            String m = onlineMsg.getOrDefault(friend.toLowerCase(), "");
+
+            ClientHandler online = getUser(friend);
+            Cluster.RemoteUser remote = online == null && cluster != null ? cluster.getRemoteUser(friend) : null;
+            String s = online != null ? online.getStatus() : remote != null ? remote.status : "offline";
+            String m = online != null ? online.getStatusMessage() : remote != null ? remote.statusMessage : "";
             sb.append(friend).append(":").append(s).append(":").append(m);
         }
 
         // Add Pending Requests
-        java.util.List<String> pending = dbService.getPendingRequests(username);
+        java.util.List<String> pending = friendGraph.getPendingRequests(username);
         for (String p : pending) {
             if (sb.length() > 0)
                 sb.append(",");
@@ -218,38 +760,59 @@ public class Server {
         return sb.toString();
     }
 
-    void broadcastFriendStatusUpdate(String changedUser) {
-        System.out.println("DEBUG: Broadcasting status update for " + changedUser);
-        // Prepare variable implementation
-        // For every connected user, checks if 'changedUser' is in their friend list.
-        // If so, send them a FRIENDLIST update.
-        for (ClientHandler user : userThreads) {
-            java.util.List<String> friends = dbService.getFriends(user.getUserName());
-            boolean isFriend = false;
-            for (String f : friends) {
-                if (f.equalsIgnoreCase(changedUser)) {
-                    isFriend = true;
-                    break;
-                }
-            }
-            if (isFriend) {
-                System.out.println("DEBUG: Sending update to " + user.getUserName() + " because they are friends with "
-                        + changedUser);
-                sendFriendListUpdate(user.getUserName());
-            }
-        }
+    /**
+     * Tells the friends and the channel of {@code user} about a new status or
+     * status message. Everyone else has nothing showing it.
+     */
+    void publishPresence(ClientHandler user) {
+        presencePublisher.userChanged(user.getUserName());
+    }
+
+    /**
+     * A user logged in: every session lists online users, so all of them get
+     * the presence line, and the channel members get a JOIN.
+     */
+    void publishLogin(ClientHandler user) {
+        presencePublisher.userChanged(user.getUserName());
+        publishJoin(user, user.getChannel());
+    }
+
+    /**
+     * A user logged out of {@code channel}; they are no longer a member.
+     */
+    void publishLogout(String userName, String channel) {
+        presencePublisher.userChanged(userName);
+        publishPart(userName, channel);
+    }
+
+    /**
+     * JOIN <channel> <user> <status> <message> to the other members.
+     */
+    void publishJoin(ClientHandler user, String channel) {
+        presencePublisher.membershipChanged(channel, user.getUserName(), true);
+    }
+
+    /**
+     * PART <channel> <user> to the remaining members.
+     */
+    void publishPart(String userName, String channel) {
+        presencePublisher.membershipChanged(channel, userName, false);
     }
 
     String getUsersInChannel(String channel) {
         StringBuilder sb = new StringBuilder();
-        for (ClientHandler user : userThreads) {
-            if (user.getChannel().equalsIgnoreCase(channel)) {
+        for (ClientHandler user : getChannelMembers(channel)) {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(user.getUserName())
+              .append(":")
+              .append(user.getStatus())
+              .append(":")
+              .append(user.getStatusMessage());
+        }
+        if (cluster != null) {
+            for (Cluster.RemoteUser user : cluster.getRemoteMembers(channel)) {
                 if (sb.length() > 0) sb.append(",");
-                sb.append(user.getUserName())
-                  .append(":")
-                  .append(user.getStatus())
-                  .append(":")
-                  .append(user.getStatusMessage());
+                sb.append(user.name).append(":").append(user.status).append(":").append(user.statusMessage);
             }
         }
         return sb.toString(); 
@@ -265,22 +828,8 @@ public class Server {
         // I should keep it robust.
     }
 
-    void broadcastUserList(String channel) {
-        String users = getUsersInChannel(channel);
-        String message = "USERLIST " + channel + " " + users;
-        broadcastToChannel(channel, message, null); // null sender means system message
-    }
-
-    void broadcastAllUsers() {
-        String users = String.join(",", getUserNames());
-        String message = "ALLUSERS " + users;
-        broadcast(message, null);
-    }
-
     void broadcastChannelList() {
-        String channels = getChannelList(); // Re-use getChannelList which filters
-        String message = "CHANNELLIST " + channels;
-        broadcast(message, null);
+        presencePublisher.channelListChanged();
     }
 
     public void checkAndAddChannel(String channelName) {
@@ -288,6 +837,9 @@ public class Server {
             knownChannels.add(channelName);
             dbService.addChannel(channelName);
             broadcastChannelList();
+            if (cluster != null) {
+                cluster.channelChanged("add", channelName, "");
+            }
         }
     }
 
@@ -295,17 +847,10 @@ public class Server {
         if (knownChannels.contains(channelName)) {
             knownChannels.remove(channelName);
             dbService.removeChannel(channelName);
-
-            // Move users in this channel to general or kick them
-            for (ClientHandler user : userThreads) {
-                if (user.getChannel().equalsIgnoreCase(channelName)) {
-                    user.sendMessage("LOG: Channel " + channelName + " has been deleted. Moving you to 'general'.");
-                    user.setChannel("general"); // Force move
-                    user.sendMessage("CHANMSG general You have been moved to general");
-                }
+            channelDeleted(channelName);
+            if (cluster != null) {
+                cluster.channelChanged("delete", channelName, "");
             }
-
-            broadcastChannelList();
         }
     }
 
@@ -314,73 +859,185 @@ public class Server {
             knownChannels.remove(oldName);
             knownChannels.add(newName);
             dbService.renameChannel(oldName, newName);
+            channelRenamed(oldName, newName);
+            if (cluster != null) {
+                cluster.channelChanged("rename", oldName, newName);
+            }
+        }
+    }
 
-            for (ClientHandler user : userThreads) {
-                if (user.getChannel().equalsIgnoreCase(oldName)) {
-                    user.setChannel(newName);
-                    user.sendMessage("LOG: Channel " + oldName + " was renamed to " + newName);
+    /**
+     * A channel was added, deleted or renamed by another node of the
+     * cluster, which already updated the database.
+     */
+    void applyChannelChange(String op, String name, String newName) {
+        switch (op) {
+            case "add":
+                if (knownChannels.add(name)) {
+                    broadcastChannelList();
                 }
-            }
-            broadcastChannelList();
+                break;
+            case "delete":
+                if (knownChannels.remove(name)) {
+                    channelDeleted(name);
+                }
+                break;
+            case "rename":
+                if (knownChannels.remove(name)) {
+                    knownChannels.add(newName);
+                    channelRenamed(name, newName);
+                }
+                break;
+            default:
+                System.out.println("Unknown channel change: " + op);
         }
     }
 
+    private void channelDeleted(String channelName) {
+        // Move users in this channel to general or kick them
+        for (ClientHandler user : new java.util.ArrayList<>(getChannelMembers(channelName))) {
+            user.sendMessage("LOG: Channel " + channelName + " has been deleted. Moving you to 'general'.");
+            joinChannel(user, "general"); // Force move
+            user.sendMessage("CHANMSG general You have been moved to general");
+        }
+
+        broadcastChannelList();
+    }
+
+    private void channelRenamed(String oldName, String newName) {
+        for (ClientHandler user : new java.util.ArrayList<>(getChannelMembers(oldName))) {
+            joinChannel(user, newName);
+            user.sendMessage("LOG: Channel " + oldName + " was renamed to " + newName);
+        }
+        broadcastChannelList();
+    }
+
     public String getChannelList() {
         // Filter out hidden channels (start with !)
         java.util.List<String> visible = new java.util.ArrayList<>();
         for (String c : knownChannels) {
-            if (!c.startsWith("!")) {
-                visible.add(c);
-            }
+        if (!c.startsWith("!")) {
+            visible.add(c);
+        }
         }
         return String.join(",", visible);
     }
 
     /**
-     * Stores username of the newly connected client.
-     * Returns true if username is added, false if it already exists or is invalid.
+     * Reserves the username for the newly logged-in client.
+     * Returns true if the name was free, false if it is already online or invalid.
      */
-    synchronized boolean addUserName(String userName) {
+    boolean claimUserName(String userName, ClientHandler user) {
         if (userName == null || userName.trim().isEmpty()) {
             return false;
         }
+        // Best effort across nodes: two logins racing on two nodes both win
+        if (cluster != null && cluster.getRemoteUser(userName) != null) {
+            return false;
+        }
 
-        for (ClientHandler user : userThreads) {
-            String existingName = user.getUserName();
-            if (existingName != null && existingName.equalsIgnoreCase(userName)) {
-                return false;
-            }
+        if (sessions.putIfAbsent(userName.toLowerCase(), user) != null) {
+            return false;
         }
 
         System.out.println(userName + " has connected");
         return true;
     }
 
+    /**
+     * Hands the name of a session whose connection dropped to the session
+     * resuming it. False if {@code stale} no longer holds the name. The
+     * stale session leaves its channel now and is torn down by its own
+     * thread once its connection is closed.
+     */
+    boolean takeOverUserName(String userName, ClientHandler stale, ClientHandler user) {
+        if (!sessions.replace(userName.toLowerCase(), stale, user)) {
+            return false;
+        }
+        removeMember(stale.getChannel(), stale);
+        System.out.println(userName + " has reconnected");
+        return true;
+    }
+
     /**
      * When a client is disconnected, removes the associated username and UserThread
      */
     void removeUser(ClientHandler user, String userName) {
         boolean removed = userThreads.remove(user);
+        if (userName != null) {
+            sessions.remove(userName.toLowerCase(), user);
+            removeMember(user.getChannel(), user);
+        }
         if (removed) {
             System.out.println("The user " + userName + " quitted");
             System.out.println("The user " + userName + " quitted");
-            broadcastAllUsers(); // Updates global list for everyone
-            broadcastFriendStatusUpdate(userName); // Update status for friends
+            if (userName != null) {
+                publishLogout(userName, user.getChannel());
+            }
         }
     }
 
     Set<String> getUserNames() {
         Set<String> userNames = new HashSet<>();
-        for (ClientHandler user : userThreads) {
-            if (user.getUserName() != null) {
-                userNames.add(user.getUserName());
+        for (ClientHandler user : sessions.values()) {
+            String name = user.getUserName();
+            if (name != null) { // Claimed but not set yet
+                userNames.add(name);
+            }
+        }
+        if (cluster != null) {
+            for (Cluster.RemoteUser user : cluster.getRemoteUsers()) {
+                userNames.add(user.name);
             }
         }
         return userNames;
     }
 
+    /**
+     * "user:avatar" for every online user and every friend of
+     * {@code username}, so a client can tell which of its cached avatars are
+     * still current without asking for each of them.
+     */
+    String getAvatarVersions(String username) {
+        Set<String> names = new HashSet<>(getUserNames());
+        names.addAll(friendGraph.getFriends(username));
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            ClientHandler online = getUser(name);
+            String avatar = online != null ? online.getAvatar() : userDirectory.getAvatar(name);
+            if (avatar == null || avatar.trim().isEmpty()) {
+                avatar = AvatarCache.DEFAULT_AVATAR;
+            }
+            if (sb.length() > 0) sb.append(",");
+            sb.append(name).append(":").append(avatar);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Outbound queue totals over every connected session, for /stats.
+     */
+    String getOutboundSummary() {
+        int sessions = 0;
+        int totalDepth = 0;
+        int maxDepth = 0;
+        long dropped = 0;
+        for (ClientHandler user : userThreads) {
+            OutboundQueue queue = user.getOutboundQueue();
+            if (queue == null) {
+                continue;
+            }
+            int depth = queue.depth();
+            sessions++;
+            totalDepth += depth;
+            maxDepth = Math.max(maxDepth, depth);
+            dropped += queue.dropped();
+        }
+        return "sessions=" + sessions + " queued=" + totalDepth + " maxDepth=" + maxDepth + " dropped=" + dropped;
+    }
+
     boolean hasUsers() {
-        return !this.userThreads.isEmpty();
+        return !this.userThreads.isEmpty() || (cluster != null && !cluster.getRemoteUsers().isEmpty());
     }
 
     public Set<ClientHandler> getUserThreads() {
@@ -0,0 +1,100 @@
+package fr.unilasalle.chat.server;
+
+/**
+ * Server tunables, read once from system properties (-Dchat.xxx=value).
+ */
+final class ServerConfig {
+
+    /** Number of NIO event loops (selectors) sharing the accepted connections. */
+    static final int NIO_WORKERS = Integer.getInteger("chat.nio.workers",
+            Runtime.getRuntime().availableProcessors());
+
+    /** Threads running the command logic for NIO sessions (JDBC, weather, files...). */
+    static final int NIO_HANDLER_THREADS = Integer.getInteger("chat.nio.handlerThreads", 16);
+
+    /** Longest accepted protocol line, in bytes. /upload and /setavatar lines are big. */
+    static final int MAX_LINE_BYTES = Integer.getInteger("chat.maxLineBytes", 64 * 1024 * 1024);
+
+    /** Lines that may wait in a client's outbound queue before the slow-consumer policy applies. */
+    static final int OUTBOUND_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+
+    /** drop_oldest, disconnect or backpressure. */
+    static final OutboundQueue.SlowConsumerPolicy OUTBOUND_POLICY = OutboundQueue.SlowConsumerPolicy.valueOf(
+            System.getProperty("chat.outbound.policy", "disconnect").toUpperCase());
+
+    /** With the backpressure policy, how long a sender waits for room before disconnecting the client. */
+    static final long OUTBOUND_BACKPRESSURE_MILLIS = Long.getLong("chat.outbound.backpressureMillis", 5000);
+
+    /** JDBC URL of the chat database. */
+    static final String DB_URL = System.getProperty("chat.db.url", "jdbc:sqlite:users.db");
+
+    /** Read-only SQLite connections kept open next to the single writer. */
+    static final int DB_READERS = Integer.getInteger("chat.db.readers", 4);
+
+    /** SQLite page cache per connection, in KiB. */
+    static final int DB_CACHE_KB = Integer.getInteger("chat.db.cacheKb", 8 * 1024);
+
+    /** Bytes of the database file SQLite may memory-map. */
+    static final long DB_MMAP_BYTES = Long.getLong("chat.db.mmapBytes", 256L * 1024 * 1024);
+
+    /** fire_and_forget or ack_after_commit, see MessageWriter.Durability. */
+    static final MessageWriter.Durability PERSIST_DURABILITY = MessageWriter.Durability.valueOf(
+            System.getProperty("chat.persist.durability", "fire_and_forget").toUpperCase());
+
+    /** Most messages committed in one transaction. */
+    static final int PERSIST_BATCH_SIZE = Integer.getInteger("chat.persist.batchSize", 256);
+
+    /**
+     * How long the writer waits for a batch to fill once it has a message. By
+     * default it commits whatever queued up during the previous commit.
+     */
+    static final long PERSIST_MAX_DELAY_MILLIS = Long.getLong("chat.persist.maxDelayMillis", 0);
+
+    /** Messages waiting to be written before senders block. */
+    static final int PERSIST_QUEUE_CAPACITY = Integer.getInteger("chat.persist.queueCapacity", 10000);
+
+    /** History lines kept in memory per channel and per private conversation. */
+    static final int HISTORY_CACHE_SIZE = Integer.getInteger("chat.history.cacheSize", 200);
+
+    /** Largest page a client may ask for with /history and /privhistory limit=. */
+    static final int HISTORY_MAX_PAGE = Integer.getInteger("chat.history.maxPage", 200);
+
+    /** Results per /search page. */
+    static final int SEARCH_PAGE_SIZE = Integer.getInteger("chat.search.pageSize", 50);
+
+    /** Newest matches of each kind (channel, private) ranked by /search; older ones are not returned. */
+    static final int SEARCH_RANK_WINDOW = Integer.getInteger("chat.search.rankWindow", 1000);
+
+    /** Largest file accepted by /transfer upload, in bytes. */
+    static final long TRANSFER_MAX_BYTES = Long.getLong("chat.transfer.maxBytes", 2L * 1024 * 1024 * 1024);
+
+    /** User profiles (password, avatar, status message) kept in memory. */
+    static final int USER_CACHE_SIZE = Integer.getInteger("chat.users.cacheSize", 10000);
+
+    /** Memory budget of the avatar cache (originals and thumbnails, as Base64). */
+    static final long AVATAR_CACHE_BYTES = Long.getLong("chat.avatar.cacheBytes", 16L * 1024 * 1024);
+
+    /** Presence updates are merged and sent once per tick; 0 sends each one right away. */
+    static final long PRESENCE_TICK_MILLIS = Long.getLong("chat.presence.tickMillis", 100);
+
+    /** How long a resume token lets a client get its session back without logging in again. */
+    static final long RESUME_TTL_MILLIS = Long.getLong("chat.resume.ttlMillis", 10 * 60 * 1000);
+
+    /** Most missed messages replayed per channel by /resume. */
+    static final int RESUME_MAX_REPLAY = Integer.getInteger("chat.resume.maxReplay", 1000);
+
+    /** Bus addresses (host:port) of all the nodes of the cluster, this one included; empty for a single server. */
+    static final String CLUSTER_PEERS = System.getProperty("chat.cluster.peers", "");
+
+    /** Position of this node in chat.cluster.peers. */
+    static final int CLUSTER_NODE = Integer.getInteger("chat.cluster.node", 0);
+
+    /** Bus messages that may wait for a slow node before new ones are dropped. */
+    static final int CLUSTER_QUEUE = Integer.getInteger("chat.cluster.queue", 10000);
+
+    /** Points of each node on the ring that assigns channels and conversations to nodes. */
+    static final int CLUSTER_VIRTUAL_NODES = Integer.getInteger("chat.cluster.virtualNodes", 128);
+
+    private ServerConfig() {
+    }
+}
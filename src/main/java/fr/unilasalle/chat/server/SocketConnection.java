@@ -0,0 +1,92 @@
+package fr.unilasalle.chat.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Blocking transport used by the thread and virtual thread modes. Senders only
+ * queue frames; a flush task started on demand writes everything queued so far
+ * and flushes the socket once per batch.
+ */
+class SocketConnection implements ClientConnection {
+    private final Socket socket;
+    private final BufferedOutputStream out;
+    private final Executor flushExecutor;
+    private final OutboundQueue queue = new OutboundQueue();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // Only used by the running flush task
+    private final List<byte[]> batch = new ArrayList<>();
+    private volatile boolean closed = false;
+    private volatile boolean binary = false;
+
+    SocketConnection(Socket socket, Executor flushExecutor) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+        this.flushExecutor = flushExecutor;
+    }
+
+    @Override
+    public void send(Frame frame, boolean canWait) {
+        if (closed) {
+            return;
+        }
+        if (!queue.offer(binary ? frame.binary() : frame.bytes(), canWait)) {
+            System.out.println("Disconnecting slow client " + socket.getRemoteSocketAddress() + " (" + queue.stats() + ")");
+            close();
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            flushExecutor.execute(this::flush);
+        }
+    }
+
+    private void flush() {
+        try {
+            while (true) {
+                if (queue.drainTo(batch) == 0) {
+                    flushScheduled.set(false);
+                    // A line may have been queued between the drain and the reset
+                    if (queue.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                for (byte[] message : batch) {
+                    out.write(message);
+                }
+                batch.clear();
+                out.flush();
+            }
+        } catch (IOException e) {
+            batch.clear();
+            flushScheduled.set(false);
+            close();
+        }
+    }
+
+    @Override
+    public void setBinary() {
+        binary = true;
+    }
+
+    @Override
+    public OutboundQueue outbound() {
+        return queue;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package fr.unilasalle.chat.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rows of the users table in memory (password, avatar, status message), so
+ * logins, /getavatar and the avatar versions are answered without a query.
+ * Warmed at startup; the least recently used users are dropped past
+ * {@code maxEntries} and read again on their next lookup. Writes go to the
+ * database first and are applied here once stored. Unknown users are not
+ * remembered, so a user registered on another node is found at once.
+ */
+public class UserDirectory {
+
+    private static final class Profile {
+        final String password;
+        final String avatar;
+        final String statusMessage;
+
+        Profile(String password, String avatar, String statusMessage) {
+            this.password = password;
+            this.avatar = avatar;
+            this.statusMessage = statusMessage != null ? statusMessage : "";
+        }
+    }
+
+    private final DatabaseService db;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Profile> entries = new LinkedHashMap<>(64, 0.75f, true);
+    // Bumped by every change, a row read before one is not cached
+    private long changes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public UserDirectory(DatabaseService db, int maxEntries) {
+        this.db = db;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Loads up to maxEntries users from the database.
+     */
+    public void warm() {
+        int loaded = 0;
+        for (String[] row : db.getUsers(maxEntries)) {
+            synchronized (this) {
+                entries.put(row[0], new Profile(row[1], row[2], row[3]));
+            }
+            loaded++;
+        }
+        System.out.println("Loaded " + loaded + " user profiles");
+    }
+
+    public boolean authenticate(String username, String password) {
+        Profile profile = get(username);
+        return profile != null && profile.password != null && profile.password.equals(password);
+    }
+
+    /**
+     * Null if the user is unknown or never set one.
+     */
+    public String getAvatar(String username) {
+        Profile profile = get(username);
+        return profile != null ? profile.avatar : null;
+    }
+
+    public String getStatusMessage(String username) {
+        Profile profile = get(username);
+        return profile != null ? profile.statusMessage : "";
+    }
+
+    public boolean register(String username, String password) {
+        if (!db.register(username, password)) {
+            return false;
+        }
+        put(username, new Profile(password, AvatarCache.DEFAULT_AVATAR, ""));
+        return true;
+    }
+
+    public void updateAvatar(String username, String avatar) {
+        if (db.updateAvatar(username, avatar)) {
+            update(username, profile -> new Profile(profile.password, avatar, profile.statusMessage));
+        }
+    }
+
+    public void updateStatusMessage(String username, String statusMessage) {
+        if (db.updateStatusMessage(username, statusMessage)) {
+            update(username, profile -> new Profile(profile.password, profile.avatar, statusMessage));
+        }
+    }
+
+    /**
+     * Forgets a user changed by another node; read again on next lookup.
+     */
+    public synchronized void invalidate(String username) {
+        changes++;
+        entries.remove(username);
+    }
+
+    private Profile get(String username) {
+        long seen;
+        synchronized (this) {
+            Profile profile = entries.get(username);
+            if (profile != null) {
+                hits.incrementAndGet();
+                return profile;
+            }
+            seen = changes;
+        }
+        misses.incrementAndGet();
+        // Read outside the lock, a concurrent miss of the same user just reads twice
+        String[] row = db.getUser(username);
+        if (row == null) {
+            return null;
+        }
+        Profile profile = new Profile(row[0], row[1], row[2]);
+        synchronized (this) {
+            if (changes == seen) {
+                put(username, profile);
+            }
+        }
+        return profile;
+    }
+
+    private synchronized void put(String username, Profile profile) {
+        changes++;
+        entries.put(username, profile);
+        Iterator<Map.Entry<String, Profile>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private synchronized void update(String username, java.util.function.UnaryOperator<Profile> change) {
+        changes++;
+        Profile profile = entries.get(username);
+        if (profile != null) {
+            entries.put(username, change.apply(profile));
+        }
+    }
+
+    public synchronized String stats() {
+        return "entries=" + entries.size() + " max=" + maxEntries + " hits=" + hits.get() + " misses=" + misses.get();
+    }
+}
@@ -0,0 +1,114 @@
+package fr.unilasalle.chat.transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Client side of FileTransferServer. Both directions stream straight
+ * between the file and the socket, and resume where a previous attempt
+ * with the same ticket stopped.
+ */
+public class FileTransferClient {
+
+    public interface Progress {
+        void update(long done, long total);
+    }
+
+    private final String host;
+    private final int port;
+
+    public FileTransferClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Sends the file for an upload ticket, starting at the offset the server
+     * already has.
+     */
+    public void upload(String token, Path file, Progress progress) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            write(channel, "PUT " + token);
+            long position = Long.parseLong(expect(channel, "OFFSET"));
+            long size = source.size();
+            while (position < size) {
+                position += source.transferTo(position, Math.min(size - position, 1024 * 1024), channel);
+                progress.update(position, size);
+            }
+            expect(channel, "DONE");
+        }
+    }
+
+    /**
+     * Downloads a file for a download ticket into {@code target}. The data
+     * goes to "<target>.part" first, whose length is the resume offset.
+     */
+    public void download(String token, Path target, Progress progress) throws IOException {
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = file.size();
+            write(channel, "GET " + token + " " + position);
+            long size = Long.parseLong(expect(channel, "SIZE"));
+            if (position > size) {
+                throw new IOException("Partial file is larger than the original");
+            }
+            while (position < size) {
+                long read = file.transferFrom(channel, position, Math.min(size - position, 1024 * 1024));
+                if (read <= 0) {
+                    // transferFrom cannot tell a closed socket from no data
+                    ByteBuffer probe = ByteBuffer.allocate(1);
+                    if (channel.read(probe) < 0) {
+                        throw new IOException("Connection closed");
+                    }
+                    probe.flip();
+                    file.write(probe, position);
+                    read = 1;
+                }
+                position += read;
+                progress.update(position, size);
+            }
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void write(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a reply line and returns what follows {@code keyword}.
+     */
+    private static String expect(SocketChannel channel, String keyword) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new IOException("Connection closed");
+            }
+            char c = (char) one.get(0);
+            if (c == '\n') {
+                break;
+            }
+            line.append(c);
+        }
+        String reply = line.toString().trim();
+        if (!reply.startsWith(keyword)) {
+            throw new IOException(reply.startsWith("ERROR ") ? reply.substring("ERROR ".length()) : reply);
+        }
+        return reply.substring(keyword.length()).trim();
+    }
+}
@@ -0,0 +1,324 @@
+package fr.unilasalle.chat.transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Binary file transfers on their own TCP port, so a big file never goes
+ * through the chat connection. The chat server hands out a ticket
+ * (/transfer upload|download) and the client then talks to this port:
+ *
+ *   PUT <token>\n            -> OFFSET <bytes already received>\n
+ *                               then the client sends the rest of the file
+ *                            -> DONE\n once the whole file is stored
+ *   GET <token> <offset>\n   -> SIZE <file size>\n, then the bytes from offset
+ *
+ * A dropped transfer is resumed by reconnecting with the same ticket: an
+ * upload continues from the OFFSET the server reports, a download from the
+ * offset the client asks for. Errors are answered with "ERROR <reason>\n".
+ *
+ * Uploads are written to a staging directory and handed to an
+ * UploadListener once complete, with their SHA-256 computed on the way in.
+ * Where downloads are read from is decided by the resolver given to the
+ * constructor.
+ */
+public class FileTransferServer extends Thread {
+    private static final long TICKET_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final int MAX_HEADER_BYTES = 256;
+
+    public interface UploadListener {
+        /**
+         * Called with the complete file, which the listener must move away
+         * or delete.
+         */
+        void uploaded(String fileId, Path file, String sha256) throws IOException;
+    }
+
+    /**
+     * An upload or download allowed by the chat server, with its progress.
+     */
+    private static class Ticket {
+        final boolean upload;
+        final String fileId;
+        final Path file;
+        final long size;
+        final UploadListener onUploaded;
+        final long expiresAt = System.currentTimeMillis() + TICKET_TTL_MILLIS;
+        volatile long transferred;
+        volatile boolean active;
+        // Digest of the first 'digested' bytes of an upload
+        MessageDigest digest;
+        long digested;
+
+        Ticket(boolean upload, String fileId, Path file, long size, UploadListener onUploaded) {
+            this.upload = upload;
+            this.fileId = fileId;
+            this.file = file;
+            this.size = size;
+            this.onUploaded = onUploaded;
+        }
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Path staging;
+    private final Function<String, Path> resolver;
+    private final ConcurrentHashMap<String, Ticket> tickets = new ConcurrentHashMap<>();
+
+    /**
+     * @param staging  directory where uploads are received
+     * @param resolver file to send for a file id, null if there is none
+     */
+    public FileTransferServer(int port, Path staging, Function<String, Path> resolver) throws IOException {
+        this.staging = staging;
+        this.resolver = resolver;
+        Files.createDirectories(staging);
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        setName("file-transfer");
+        setDaemon(true);
+        System.out.println("File transfer server listening on TCP port " + port);
+    }
+
+    /**
+     * Allows the upload of a file of {@code size} bytes for {@code fileId}.
+     * {@code onUploaded} gets the file once it is complete. Returns the
+     * ticket token.
+     */
+    public String allowUpload(String fileId, long size, UploadListener onUploaded) {
+        purgeExpired();
+        String token = UUID.randomUUID().toString();
+        tickets.put(token, new Ticket(true, fileId, staging.resolve(token + ".part"), size, onUploaded));
+        return token;
+    }
+
+    /**
+     * Allows downloading an uploaded file. Returns the ticket token, or null
+     * if there is no such file.
+     */
+    public String allowDownload(String fileId) {
+        purgeExpired();
+        Path file = resolver.apply(fileId);
+        if (file == null) {
+            return null;
+        }
+        String token = UUID.randomUUID().toString();
+        try {
+            tickets.put(token, new Ticket(false, fileId, file, Files.size(file), null));
+        } catch (IOException e) {
+            return null;
+        }
+        return token;
+    }
+
+    /**
+     * Size of the file of a ticket, -1 if the ticket is unknown.
+     */
+    public long getSize(String token) {
+        Ticket ticket = tickets.get(token);
+        return ticket != null ? ticket.size : -1;
+    }
+
+    /**
+     * One "<up|down> <file id> <bytes>/<size>" entry per transfer in progress.
+     */
+    public List<String> getActiveTransfers() {
+        List<String> active = new ArrayList<>();
+        for (Ticket ticket : tickets.values()) {
+            if (ticket.active) {
+                active.add((ticket.upload ? "up " : "down ") + ticket.fileId + " " + ticket.transferred + "/" + ticket.size);
+            }
+        }
+        return active;
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        tickets.values().removeIf(ticket -> {
+            if (ticket.active || ticket.expiresAt >= now) {
+                return false;
+            }
+            if (ticket.upload) {
+                try {
+                    Files.deleteIfExists(ticket.file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public void run() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                // Transfers block on disk and network: one virtual thread each
+                Thread.ofVirtual().name("transfer-", 0).start(() -> serve(channel));
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (channel) {
+            String[] header = readHeader(channel).split(" ");
+            Ticket ticket = header.length >= 2 ? tickets.get(header[1]) : null;
+            if (ticket == null || ticket.expiresAt < System.currentTimeMillis()) {
+                reply(channel, "ERROR unknown or expired ticket");
+            } else if (header[0].equals("PUT") && ticket.upload) {
+                receive(channel, header[1], ticket);
+            } else if (header[0].equals("GET") && !ticket.upload && header.length >= 3) {
+                send(channel, ticket, Long.parseLong(header[2]));
+            } else {
+                reply(channel, "ERROR bad request");
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Client went away: the ticket stays valid for a resume
+        }
+    }
+
+    private void receive(SocketChannel channel, String token, Ticket ticket) throws IOException {
+        synchronized (ticket) {
+            if (ticket.active) {
+                reply(channel, "ERROR transfer already running");
+                return;
+            }
+            ticket.active = true;
+        }
+        try (FileChannel file = FileChannel.open(ticket.file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long offset = Math.min(file.size(), ticket.size);
+            file.truncate(offset);
+            if (ticket.digest == null || ticket.digested != offset) {
+                rehash(ticket, file, offset);
+            }
+            file.position(offset);
+            ticket.transferred = offset;
+            reply(channel, "OFFSET " + offset);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            while (ticket.transferred < ticket.size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), ticket.size - ticket.transferred));
+                if (channel.read(buffer) < 0) {
+                    return;
+                }
+                buffer.flip();
+                ticket.digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+                ticket.digested = file.position();
+                ticket.transferred = ticket.digested;
+            }
+            file.force(false);
+        } finally {
+            ticket.active = false;
+        }
+        tickets.remove(token);
+        try {
+            ticket.onUploaded.uploaded(ticket.fileId, ticket.file, HexFormat.of().formatHex(ticket.digest.digest()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            reply(channel, "ERROR could not store the file");
+            return;
+        }
+        reply(channel, "DONE");
+    }
+
+    /**
+     * Restarts the digest of a resumed upload from what is on disk.
+     */
+    private static void rehash(Ticket ticket, FileChannel file, long length) throws IOException {
+        try {
+            ticket.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            int n = file.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            buffer.flip();
+            ticket.digest.update(buffer);
+            position += n;
+        }
+        ticket.digested = position;
+    }
+
+    private void send(SocketChannel channel, Ticket ticket, long offset) throws IOException {
+        try (FileChannel file = FileChannel.open(ticket.file, StandardOpenOption.READ)) {
+            long size = file.size();
+            long position = Math.max(0, Math.min(offset, size));
+            reply(channel, "SIZE " + size);
+            ticket.active = true;
+            ticket.transferred = position;
+            // Zero-copy from the page cache to the socket
+            while (position < size) {
+                position += file.transferTo(position, size - position, channel);
+                ticket.transferred = position;
+            }
+        } finally {
+            ticket.active = false;
+        }
+    }
+
+    private static String readHeader(SocketChannel channel) throws IOException {
+        // Byte by byte, so nothing of the body is consumed with the header
+        ByteBuffer one = ByteBuffer.allocate(1);
+        StringBuilder line = new StringBuilder();
+        while (line.length() < MAX_HEADER_BYTES) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new IOException("Connection closed");
+            }
+            char c = (char) one.get(0);
+            if (c == '\n') {
+                return line.toString().trim();
+            }
+            line.append(c);
+        }
+        throw new IOException("Header too long");
+    }
+
+    private static void reply(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}